@@ -0,0 +1,392 @@
+package com.oose2016.jsham2.dots;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class is the board of a game as it is sent to clients. It is a
+ * copy of the game's bitboards taken while the game is locked, so it can
+ * be written out after the lock is released. Its TypeAdapter writes the
+ * line and box lists straight from the bits, without building a map per
+ * line or box, and reads a whole board back into bits.
+ *
+ * A board can also hold only the lines played after some version (see
+ * since), together with the won boxes next to them. Those are only
+ * written: their JSON does not give the size of the board.
+ *
+ * @author jsham2, Jeffrey Sham CS421
+ */
+@JsonAdapter(BoardView.Adapter.class)
+public class BoardView {
+	private final int rows;
+	private final int cols;
+	private final int horizontalLineCount;
+	private final long[] horizontalLines;
+	private final long[] verticalLines;
+	private final long[] wonBoxes;
+	private final long[] blueBoxes;
+
+	// Lines played after sinceVersion, see Game.getPlayedLine, or null for the whole board
+	private final int[] changedLines;
+
+	// Whether "full", "sinceVersion" and "version" are written
+	private boolean versioned;
+	private long sinceVersion = -1;
+	private long version;
+
+	private BoardView(Game game, int[] changedLines) {
+		this.rows = game.getRows();
+		this.cols = game.getCols();
+		this.horizontalLineCount = game.getHorizontalLineCount();
+		this.horizontalLines = game.copyHorizontalLines();
+		this.verticalLines = game.copyVerticalLines();
+		this.wonBoxes = game.copyWonBoxes();
+		this.blueBoxes = game.copyBlueBoxes();
+		this.changedLines = changedLines;
+		this.version = game.getVersion();
+	}
+
+	private BoardView(int rows, int cols, long[] horizontalLines, long[] verticalLines, 
+			long[] wonBoxes, long[] blueBoxes) {
+		this.rows = rows;
+		this.cols = cols;
+		this.horizontalLineCount = (rows + 1) * cols;
+		this.horizontalLines = horizontalLines;
+		this.verticalLines = verticalLines;
+		this.wonBoxes = wonBoxes;
+		this.blueBoxes = blueBoxes;
+		this.changedLines = null;
+	}
+
+	/**
+	 * This method copies the whole board of a game.
+	 * The caller must hold the game's lock.
+	 * @param game the game
+	 * @return the board
+	 */
+	public static BoardView of(Game game) {
+		return new BoardView(game, null);
+	}
+
+	/**
+	 * This method copies the lines played after a version, and the boxes
+	 * next to them that are won. A box can only be won by the last of its
+	 * four lines, so every box won after the version is next to one of
+	 * those lines. The caller must hold the game's lock.
+	 * @param game the game
+	 * @param sinceVersion the version the client already has
+	 * @return the changes, or the whole board if the version is unknown
+	 * 		   or so old that most of the board changed since (see isFull)
+	 */
+	public static BoardView since(Game game, long sinceVersion) {
+		int totalLines = game.getHorizontalLineCount() + game.getRows() * (game.getCols() + 1);
+
+		// Moves are the last getFilledLines() versions, move seq has version base + seq
+		long base = game.getVersion() - game.getFilledLines();
+		long firstSeq = Math.max(1, sinceVersion - base + 1);
+		long changed = game.getFilledLines() - firstSeq + 1;
+		if (sinceVersion < 0 || sinceVersion > game.getVersion() || changed * 2 > totalLines) {
+			return of(game);
+		}
+
+		int[] lines = new int[(int) changed];
+		for (int i = 0; i < lines.length; i++) {
+			lines[i] = game.getPlayedLine((int) firstSeq + i);
+		}
+		return new BoardView(game, lines);
+	}
+
+	/**
+	 * This method makes the board also write "full", "sinceVersion" and
+	 * "version", for clients that asked for the changes since a version.
+	 * @param sinceVersion the version the client asked from
+	 * @return this board
+	 */
+	public BoardView withVersion(long sinceVersion) {
+		this.versioned = true;
+		this.sinceVersion = sinceVersion;
+		return this;
+	}
+
+	/**
+	 * @return true if this is the whole board, false if it only holds changes
+	 */
+	public boolean isFull() {
+		return changedLines == null;
+	}
+
+	/**
+	 * @return the version of the game the board was copied at
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	private static boolean bit(long[] words, int index) {
+		return ((words[index >>> 6] >>> index) & 1L) != 0;
+	}
+
+	private static void setBit(long[] words, int index) {
+		words[index >>> 6] |= 1L << index;
+	}
+
+	/**
+	 * Writes a board as {"horizontalLines": [{"row", "col", "filled"}, ...],
+	 * "verticalLines": [...], "boxes": [{"row", "col", "owner"}, ...]},
+	 * and reads a whole board back. The size is taken from the boxes,
+	 * since a whole board lists every box.
+	 */
+	public static class Adapter extends TypeAdapter<BoardView> {
+		@Override
+		public void write(JsonWriter out, BoardView board) throws IOException {
+			if (board == null) {
+				out.nullValue();
+				return;
+			}
+
+			out.beginObject();
+			if (board.versioned) {
+				out.name("full").value(board.isFull());
+				out.name("sinceVersion").value(board.sinceVersion);
+				out.name("version").value(board.version);
+			}
+			if (board.isFull()) {
+				writeFullBoard(out, board);
+			} else {
+				writeChanges(out, board);
+			}
+			out.endObject();
+		}
+
+		private void writeFullBoard(JsonWriter out, BoardView board) throws IOException {
+			out.name("horizontalLines").beginArray();
+			for (int i = 0; i <= board.rows; i++) {
+				for (int j = 0; j < board.cols; j++) {
+					writeLine(out, i, j, bit(board.horizontalLines, i * board.cols + j));
+				}
+			}
+			out.endArray();
+
+			out.name("verticalLines").beginArray();
+			for (int i = 0; i < board.rows; i++) {
+				for (int j = 0; j <= board.cols; j++) {
+					writeLine(out, i, j, bit(board.verticalLines, i * (board.cols + 1) + j));
+				}
+			}
+			out.endArray();
+
+			out.name("boxes").beginArray();
+			for (int i = 0; i < board.rows; i++) {
+				for (int j = 0; j < board.cols; j++) {
+					writeBox(out, board, i, j);
+				}
+			}
+			out.endArray();
+		}
+
+		private void writeChanges(JsonWriter out, BoardView board) throws IOException {
+			int cols = board.cols;
+
+			out.name("horizontalLines").beginArray();
+			for (int line : board.changedLines) {
+				if (line < board.horizontalLineCount) {
+					writeLine(out, line / cols, line % cols, true);
+				}
+			}
+			out.endArray();
+
+			out.name("verticalLines").beginArray();
+			for (int line : board.changedLines) {
+				if (line >= board.horizontalLineCount) {
+					line -= board.horizontalLineCount;
+					writeLine(out, line / (cols + 1), line % (cols + 1), true);
+				}
+			}
+			out.endArray();
+
+			// Each won box once, even if more than one of its lines changed
+			long[] written = new long[board.wonBoxes.length];
+			out.name("boxes").beginArray();
+			for (int line : board.changedLines) {
+				if (line < board.horizontalLineCount) {
+					int row = line / cols;
+					int col = line % cols;
+					writeWonBox(out, board, row - 1, col, written);
+					writeWonBox(out, board, row, col, written);
+				} else {
+					line -= board.horizontalLineCount;
+					int row = line / (cols + 1);
+					int col = line % (cols + 1);
+					writeWonBox(out, board, row, col - 1, written);
+					writeWonBox(out, board, row, col, written);
+				}
+			}
+			out.endArray();
+		}
+
+		private void writeLine(JsonWriter out, int row, int col, boolean filled) throws IOException {
+			out.beginObject();
+			out.name("row").value(row);
+			out.name("col").value(col);
+			out.name("filled").value(filled);
+			out.endObject();
+		}
+
+		private void writeWonBox(JsonWriter out, BoardView board, int row, int col, long[] written)
+				throws IOException {
+			if (row < 0 || row >= board.rows || col < 0 || col >= board.cols) {
+				return;
+			}
+			int box = row * board.cols + col;
+			if (!bit(board.wonBoxes, box) || bit(written, box)) {
+				return;
+			}
+			written[box >>> 6] |= 1L << box;
+			writeBox(out, board, row, col);
+		}
+
+		private void writeBox(JsonWriter out, BoardView board, int row, int col) throws IOException {
+			int box = row * board.cols + col;
+			String owner = "NONE";
+			if (bit(board.wonBoxes, box)) {
+				owner = bit(board.blueBoxes, box) ? "BLUE" : "RED";
+			}
+			out.beginObject();
+			out.name("row").value(row);
+			out.name("col").value(col);
+			out.name("owner").value(owner);
+			out.endObject();
+		}
+
+		@Override
+		public BoardView read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+			boolean full = true;
+			long sinceVersion = -1;
+			long version = 0;
+			List<int[]> horizontal = new ArrayList<>();
+			List<int[]> vertical = new ArrayList<>();
+			List<int[]> boxes = new ArrayList<>();
+			in.beginObject();
+			while (in.hasNext()) {
+				switch (in.nextName()) {
+				case "full":
+					full = in.nextBoolean();
+					break;
+				case "sinceVersion":
+					sinceVersion = in.nextLong();
+					break;
+				case "version":
+					version = in.nextLong();
+					break;
+				case "horizontalLines":
+					readList(in, "filled", horizontal);
+					break;
+				case "verticalLines":
+					readList(in, "filled", vertical);
+					break;
+				case "boxes":
+					readList(in, "owner", boxes);
+					break;
+				default:
+					in.skipValue();
+				}
+			}
+			in.endObject();
+			if (!full) {
+				throw new JsonParseException("Only whole boards can be read, not the changes since a version");
+			}
+
+			int rows = 0;
+			int cols = 0;
+			for (int[] box : boxes) {
+				rows = Math.max(rows, box[0] + 1);
+				cols = Math.max(cols, box[1] + 1);
+			}
+			if (rows == 0 || cols == 0) {
+				throw new JsonParseException("A whole board lists every box");
+			}
+			long[] horizontalLines = new long[Game.words((rows + 1) * cols)];
+			long[] verticalLines = new long[Game.words(rows * (cols + 1))];
+			long[] wonBoxes = new long[Game.words(rows * cols)];
+			long[] blueBoxes = new long[Game.words(rows * cols)];
+			for (int[] line : horizontal) {
+				if (line[2] != 0) {
+					setBit(horizontalLines, index(line, rows + 1, cols));
+				}
+			}
+			for (int[] line : vertical) {
+				if (line[2] != 0) {
+					setBit(verticalLines, index(line, rows, cols + 1));
+				}
+			}
+			for (int[] box : boxes) {
+				if (box[2] != 0) {
+					setBit(wonBoxes, index(box, rows, cols));
+				}
+				if (box[2] == 2) {
+					setBit(blueBoxes, index(box, rows, cols));
+				}
+			}
+
+			BoardView board = new BoardView(rows, cols, horizontalLines, verticalLines, wonBoxes, blueBoxes);
+			board.version = version;
+			if (sinceVersion >= 0) {
+				board.withVersion(sinceVersion);
+			}
+			return board;
+		}
+
+		/**
+		 * This method reads a list of lines or boxes as {row, col, value},
+		 * where value is 1 for a filled line, 0 for an open one, and for
+		 * a box 0 for NONE, 1 for RED and 2 for BLUE.
+		 */
+		private void readList(JsonReader in, String valueName, List<int[]> items) throws IOException {
+			in.beginArray();
+			while (in.hasNext()) {
+				int[] item = new int[3];
+				in.beginObject();
+				while (in.hasNext()) {
+					String name = in.nextName();
+					if (name.equals("row")) {
+						item[0] = in.nextInt();
+					} else if (name.equals("col")) {
+						item[1] = in.nextInt();
+					} else if (name.equals("filled") && valueName.equals(name)) {
+						item[2] = in.nextBoolean() ? 1 : 0;
+					} else if (name.equals("owner") && valueName.equals(name)) {
+						String owner = in.nextString();
+						item[2] = owner.equals("BLUE") ? 2 : owner.equals("RED") ? 1 : 0;
+					} else {
+						in.skipValue();
+					}
+				}
+				in.endObject();
+				items.add(item);
+			}
+			in.endArray();
+		}
+
+		/**
+		 * @return the bit of a line or box, checked against the board size
+		 */
+		private int index(int[] item, int rows, int cols) {
+			if (item[0] < 0 || item[0] >= rows || item[1] < 0 || item[1] >= cols) {
+				throw new JsonParseException("Line or box (" + item[0] + ", " + item[1] + ") is off the board");
+			}
+			return item[0] * cols + item[1];
+		}
+	}
+}
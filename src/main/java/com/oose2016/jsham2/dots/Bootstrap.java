@@ -6,22 +6,33 @@
 
 package com.oose2016.jsham2.dots;
 
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.sqlite.SQLiteConfig;
 import org.sqlite.SQLiteDataSource;
 
-import javax.sql.DataSource;
-
 import static spark.Spark.*;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
 
 /**
  * This class sets up the ports and the IP address. It also
- * sets up the database file.
+ * sets up the database file and its connection pool.
+ * 
+ * The database and request thread settings can be changed with system
+ * properties, for example -Ddots.db.poolSize=8 -Ddots.db.synchronous=FULL
+ * -Ddots.server.maxThreads=400 -Ddots.server.maxQueued=500. With -Ddots.store=journal the games are
+ * kept in an append-only journal file instead of dots.db, and with
+ * -Ddots.store=memory they are not kept at all.
  * 
  * @author jsham2, Jeffrey Sham CS421
  *
@@ -33,17 +44,81 @@ public class Bootstrap {
 	// The port number
 	public static final int PORT = 8080;
 	
+	// Number of pooled database connections
+	public static final int DB_POOL_SIZE = Integer.getInteger("dots.db.poolSize", 4);
+	
+	// SQLite synchronous level: OFF, NORMAL or FULL. NORMAL is safe with WAL.
+	public static final String DB_SYNCHRONOUS = System.getProperty("dots.db.synchronous", "NORMAL");
+	
+	// Bytes of the database file SQLite may memory-map
+	public static final long DB_MMAP_SIZE = Long.getLong("dots.db.mmapSize", 256L * 1024 * 1024);
+	
+	// SQLite page cache per connection, in KiB
+	public static final int DB_CACHE_SIZE_KB = Integer.getInteger("dots.db.cacheSizeKb", 16 * 1024);
+	
+	// Moves between snapshots of a game in dots.db, so a load replays fewer moves, 0 for none
+	public static final int DB_SNAPSHOT_MOVES = Integer.getInteger("dots.db.snapshotMoves", 
+			SqliteGameRepository.DEFAULT_SNAPSHOT_MOVES);
+	
+	// Most and fewest request threads
+	public static final int SERVER_MAX_THREADS = Integer.getInteger("dots.server.maxThreads", 200);
+	public static final int SERVER_MIN_THREADS = Integer.getInteger("dots.server.minThreads", 8);
+	
+	// How long a request thread above the minimum is kept idle, in milliseconds
+	public static final int SERVER_IDLE_TIMEOUT = Integer.getInteger("dots.server.idleTimeoutMillis", 60000);
+	
+	// Requests that may wait for a request thread before new ones are turned away, 0 for no limit
+	public static final int SERVER_MAX_QUEUED = Integer.getInteger("dots.server.maxQueued", 1000);
+	
+	// Minutes a finished game stays in the game tables before it is archived
+	public static final long ARCHIVE_FINISHED_MINUTES = Long.getLong("dots.archive.finishedMinutes", 24 * 60);
+	
+	// Minutes a game may wait for a second player before it is deleted
+	public static final long ARCHIVE_WAITING_MINUTES = Long.getLong("dots.archive.waitingMinutes", 24 * 60);
+	
+	// Minutes between looks for games to archive
+	public static final long ARCHIVE_INTERVAL_MINUTES = Long.getLong("dots.archive.intervalMinutes", 10);
+	
+	// Where games are kept: "sqlite" for dots.db, "journal" for a MoveJournal, "memory" for nowhere
+	public static final String STORE = System.getProperty("dots.store", "sqlite");
+	
+	// The journal file, when games are kept in a journal
+	public static final String JOURNAL_PATH = System.getProperty("dots.journal.path", "dots.journal");
+	
+	// Journal records written between forcing the file to disk, 0 to only force on a timer
+	public static final int JOURNAL_SYNC_RECORDS = Integer.getInteger("dots.journal.syncRecords", 256);
+	
+	// Milliseconds between forcing the journal to disk, 0 to only force by record count
+	public static final long JOURNAL_SYNC_MILLIS = Long.getLong("dots.journal.syncMillis", 50);
+	
+	// Journal records between snapshots of every game, which bounds the replay at startup, 0 for none
+	public static final long JOURNAL_SNAPSHOT_RECORDS = Long.getLong("dots.journal.snapshotRecords", 100000);
+	
+	// How long a connection waits on a locked database, in milliseconds
+	private static final int DB_BUSY_TIMEOUT = 5000;
+	
 	// The logger
 	private static final Logger logger = LoggerFactory.getLogger(Bootstrap.class);
 	
+	// The running service, flushed when the server stops
+	private static DotsService dotsService;
+	
+	// The connection pool, closed after the service is flushed
+	private static HikariDataSource dataSource;
+	
+	// Whether the shutdown hook has been added
+	private static boolean shutdownHookAdded = false;
+	
 	/**
 	 * This method sets up the ports, IP address, and database file.
 	 * @param args
 	 */
 	public static void main(String[] args) {
+		boolean sqlite = STORE.equalsIgnoreCase("sqlite");
+		
 		//Check for database file
-		DataSource dataSource = configureDataSource();
-		if (dataSource == null) {
+		HikariDataSource dataSource = sqlite ? configureDataSource() : null;
+		if (sqlite && dataSource == null) {
 			System.out.printf("Could not find dots.db in current directory: %s", 
 					Paths.get(".").toAbsolutePath().normalize());
 			System.exit(1);
@@ -52,23 +127,110 @@ public class Bootstrap {
 		ipAddress(IP_ADDRESS);
 		port(PORT);
 		
+		threadPool(SERVER_MAX_THREADS, SERVER_MIN_THREADS, SERVER_IDLE_TIMEOUT);
+		
 		staticFileLocation("/public");
 		
 		try {
-			DotsService service = new DotsService(dataSource);
-			new DotsController(service);
+			DotsService service = new DotsService(openRepository(dataSource));
+			new DotsController(service, SERVER_MAX_QUEUED);
+			service.startArchiver(TimeUnit.MINUTES.toMillis(ARCHIVE_FINISHED_MINUTES), 
+					TimeUnit.MINUTES.toMillis(ARCHIVE_WAITING_MINUTES), 
+					TimeUnit.MINUTES.toMillis(ARCHIVE_INTERVAL_MINUTES));
+			dotsService = service;
+			Bootstrap.dataSource = dataSource;
 		} catch (DotsService.DotsServiceException ex) {
 			logger.error("Failed to create Dots instance. Aborting.");
 		}
+		
+		if (!shutdownHookAdded) {
+			Runtime.getRuntime().addShutdownHook(new Thread(Bootstrap::flush, "dots-shutdown"));
+			shutdownHookAdded = true;
+		}
+	}
+	
+	/**
+	 * @return the running service, or null if the server is not running
+	 */
+	static DotsService getService() {
+		return dotsService;
+	}
+	
+	/**
+	 * This method ends the open event streams, stops the server
+	 * and writes every queued game change to the database.
+	 */
+	public static void stop() {
+		DotsService service = dotsService;
+		if (service != null) {
+			service.stopUpdates();
+		}
+		spark.Spark.stop();
+		flush();
+	}
+	
+	/**
+	 * This method writes every queued game change to the database
+	 * and closes the connection pool.
+	 */
+	private static synchronized void flush() {
+		try {
+			if (dotsService != null) {
+				DotsService service = dotsService;
+				dotsService = null;
+				service.close();
+			}
+		} finally {
+			if (dataSource != null) {
+				dataSource.close();
+				dataSource = null;
+			}
+		}
+	}
+	
+	/**
+	 * This method opens the repository picked by dots.store.
+	 * @param dataSource the database, when games are kept in dots.db
+	 * @return the repository
+	 * @throws DotsService.DotsServiceException if the repository could not be opened
+	 */
+	static GameRepository openRepository(DataSource dataSource) throws DotsService.DotsServiceException {
+		switch (STORE.toLowerCase()) {
+		case "journal":
+			return new JournalGameRepository(openJournal(Paths.get(JOURNAL_PATH)), 
+					Paths.get(JOURNAL_PATH + ".snapshot"), JOURNAL_SNAPSHOT_RECORDS);
+		case "memory":
+			return new MemoryGameRepository();
+		default:
+			return new SqliteGameRepository(dataSource, DB_SNAPSHOT_MOVES);
+		}
+	}
+	
+	/**
+	 * This method opens the journal the games are kept in, creating it
+	 * if it does not exist yet.
+	 * @param path the journal file
+	 * @return the journal
+	 * @throws DotsService.DotsServiceException if the journal could not be opened
+	 */
+	static MoveJournal openJournal(Path path) throws DotsService.DotsServiceException {
+		try {
+			return new MoveJournal(path, JOURNAL_SYNC_RECORDS, JOURNAL_SYNC_MILLIS);
+		} catch (IOException ex) {
+			logger.error("Could not open " + path, ex);
+			throw new DotsService.DotsServiceException("Could not open " + path, ex);
+		}
 	}
 	
 	/**
 	 * Check if the database file exists. Returns
-	 * a newly created DataSource instance for the
-	 * file if it exists 
+	 * a newly created connection pool for the
+	 * file if it exists. Every pooled connection
+	 * uses WAL journaling and the configured
+	 * synchronous level, mmap size and page cache.
 	 * @return javax.sql.DataSource corresponding to the dots database
 	 */
-	private static DataSource configureDataSource() {
+	private static HikariDataSource configureDataSource() {
 		Path dotsPath = Paths.get(".", "dots.db");
 		if (!Files.exists(dotsPath)) {
 			try {
@@ -78,8 +240,22 @@ public class Bootstrap {
 			}
 		}
 		
-		SQLiteDataSource dataSource = new SQLiteDataSource();
-		dataSource.setUrl("jdbc:sqlite:dots.db");
-		return dataSource;
+		SQLiteConfig sqliteConfig = new SQLiteConfig();
+		sqliteConfig.setJournalMode(SQLiteConfig.JournalMode.WAL);
+		sqliteConfig.setSynchronous(SQLiteConfig.SynchronousMode.valueOf(DB_SYNCHRONOUS.toUpperCase()));
+		// A negative cache size is in KiB rather than pages
+		sqliteConfig.setCacheSize(-DB_CACHE_SIZE_KB);
+		sqliteConfig.setBusyTimeout(String.valueOf(DB_BUSY_TIMEOUT));
+		
+		SQLiteDataSource sqliteDataSource = new SQLiteDataSource(sqliteConfig);
+		sqliteDataSource.setUrl("jdbc:sqlite:dots.db");
+		
+		HikariConfig poolConfig = new HikariConfig();
+		poolConfig.setPoolName("dots-db");
+		poolConfig.setDataSource(sqliteDataSource);
+		poolConfig.setMaximumPoolSize(DB_POOL_SIZE);
+		poolConfig.setMinimumIdle(1);
+		poolConfig.setConnectionInitSql("PRAGMA mmap_size = " + DB_MMAP_SIZE + ";");
+		return new HikariDataSource(poolConfig);
 	}
 }
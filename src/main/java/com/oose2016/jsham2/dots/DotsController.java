@@ -2,8 +2,29 @@ package com.oose2016.jsham2.dots;
 
 import com.google.gson.JsonObject;
 
+import spark.Request;
+import spark.Response;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import com.oose2016.jsham2.dots.DotsService.Status;
 
 import static spark.Spark.*;
 
@@ -18,16 +39,88 @@ public class DotsController {
 
 	// The base path
 	private static final String API_CONTEXT = "/dots/api/games";
+	
+	// Pairs players who have no game id to share
+	private static final String MATCHMAKE_PATH = "/dots/api/matchmake";
+	
+	// How busy the server is
+	private static final String METRICS_PATH = "/dots/api/metrics";
+	
+	// How long an event stream stays quiet before it sends a heartbeat
+	private static final long EVENT_HEARTBEAT_MILLIS = 15000;
+	
+	// How many events a slow client may fall behind before its stream is cut off
+	private static final int MAX_PENDING_EVENTS = 64;
+	
+	// Sends the heartbeats of every open event stream
+	private static final ScheduledExecutorService HEARTBEATS = Executors.newSingleThreadScheduledExecutor(task -> {
+		Thread thread = new Thread(task, "dots-event-heartbeat");
+		thread.setDaemon(true);
+		return thread;
+	});
 
 	// The database service
 	private final DotsService dotsService;
 	
+	// Requests that may wait for a request thread before new ones are turned away, 0 for no limit
+	private final int maxQueued;
+	
+	// Writes every response body
+	private final JsonTransformer transformer = new JsonTransformer();
+	
+	// The error sent for each way a request can be turned down, by end point.
+	// Anything else is sent as an empty body.
+	private static final Map<Status, String> CREATE_ERRORS = errors(
+			Status.BAD_REQUEST, "Could not create game.");
+	private static final Map<Status, String> LIST_ERRORS = errors(
+			Status.BAD_REQUEST, "Could not list games.");
+	private static final Map<Status, String> JOIN_ERRORS = errors(
+			Status.NOT_FOUND, "Invalid game ID",
+			Status.GONE, "Player already joined / game full",
+			Status.BAD_REQUEST, "Could not join game.");
+	private static final Map<Status, String> MATCHMAKE_ERRORS = errors(
+			Status.BAD_REQUEST, "Could not matchmake.");
+	private static final Map<Status, String> HMOVE_ERRORS = errors(
+			Status.NOT_FOUND, "Invalid game or player ID",
+			Status.ILLEGAL_MOVE, "Incorrect turn or illegal move",
+			Status.BAD_REQUEST, "Could not make horizontal move.");
+	private static final Map<Status, String> VMOVE_ERRORS = errors(
+			Status.NOT_FOUND, "Invalid game or player ID",
+			Status.ILLEGAL_MOVE, "Incorrect turn or illegal move",
+			Status.BAD_REQUEST, "Could not make vertical move.");
+	private static final Map<Status, String> MOVES_ERRORS = errors(
+			Status.NOT_FOUND, "Invalid game or player ID",
+			Status.ILLEGAL_MOVE, "Incorrect turn or illegal move",
+			Status.BAD_REQUEST, "Could not make moves.");
+	private static final Map<Status, String> STATE_ERRORS = errors(
+			Status.NOT_FOUND, "Invalid game ID",
+			Status.BAD_REQUEST, "Could not get game state.");
+	private static final Map<Status, String> BOARD_ERRORS = STATE_ERRORS;
+	private static final Map<Status, String> SNAPSHOT_ERRORS = errors(
+			Status.NOT_FOUND, "Invalid game ID",
+			Status.BAD_REQUEST, "Could not get game snapshot.");
+	private static final Map<Status, String> EVENTS_ERRORS = errors(
+			Status.NOT_FOUND, "Invalid game ID",
+			Status.GONE, "Game is gone",
+			Status.STOPPING, "Server is stopping.");
+	
 	/**
 	 * The constructor that setups service and the end points
 	 * @param dotsService the database service
 	 */
 	public DotsController(DotsService dotsService) {
+		this(dotsService, 0);
+	}
+	
+	/**
+	 * The constructor that setups service and the end points, and turns
+	 * requests away while too many are waiting for a request thread.
+	 * @param dotsService the database service
+	 * @param maxQueued requests that may wait for a request thread, 0 for no limit
+	 */
+	public DotsController(DotsService dotsService, int maxQueued) {
 		this.dotsService = dotsService;
+		this.maxQueued = maxQueued;
 		setupEndpoints();
 	}
 	
@@ -35,7 +128,22 @@ public class DotsController {
 	 * This method sets up all the REST end points for the game.
 	 */
 	private void setupEndpoints() {
-		post(API_CONTEXT, "application/json", (request, response) -> {
+		// Web sockets have to be set up before any route
+		GameSocket.setService(dotsService);
+		webSocket(GameSocket.PATH, GameSocket.class);
+		
+		// A busy server answers at once instead of letting the queue grow
+		before((request, response) -> {
+			if (maxQueued > 0 && ServerThreads.isOverloaded(request.raw(), maxQueued)) {
+				JsonObject json = new JsonObject();
+				json.addProperty("error", "Server is busy.");
+				response.type("application/json");
+				response.header("Retry-After", "1");
+				halt(503, transformer.render(json));
+			}
+		});
+		
+		post(API_CONTEXT, "application/json", transformer.streaming((request, response) -> {
 			try {
 				Game game = dotsService.createGame(request.body());
 				if (game != null) {
@@ -44,6 +152,8 @@ public class DotsController {
 					json.addProperty("gameId", game.getId());
 					json.addProperty("playerId", game.getPlayerOne().getId());
 					json.addProperty("playerType", game.getPlayerOne().getType());
+					json.addProperty("rows", game.getRows());
+					json.addProperty("cols", game.getCols());
 					return json;
 				} else {
 					response.status(400);
@@ -52,18 +162,23 @@ public class DotsController {
 					return json;
 				}
 			} catch (DotsService.DotsServiceException ex) {
-				if (ex.getMessage().equals("400")) {
-					response.status(Integer.valueOf(ex.getMessage()));
-					JsonObject json = new JsonObject();
-					json.addProperty("error", "Could not create game.");
-					return json;
-				}
+				return error(response, ex, CREATE_ERRORS);
 			}
-			
-			return Collections.EMPTY_MAP;
-		}, new JsonTransformer());
+		}));
 		
-		put(API_CONTEXT + "/:gameId", "application/json", (request, response) -> {
+		get(API_CONTEXT, "application/json", transformer.streaming((request, response) -> {
+			try {
+				Map<String, Object> page = dotsService.listGames(request.queryParams("state"), 
+						request.queryParams("limit"), request.queryParams("cursor"));
+				response.header("Cache-Control", "no-cache");
+				response.status(200);
+				return page;
+			} catch (DotsService.DotsServiceException ex) {
+				return error(response, ex, LIST_ERRORS);
+			}
+		}));
+		
+		put(API_CONTEXT + "/:gameId", "application/json", transformer.streaming((request, response) -> {
 			try {
 				Game game = dotsService.joinGame(request.params("gameId"));
 				response.status(200);
@@ -71,119 +186,488 @@ public class DotsController {
 				json.addProperty("gameId", game.getId());
 				json.addProperty("playerId", game.getPlayerTwo().getId());
 				json.addProperty("playerType", game.getPlayerTwo().getType());
+				json.addProperty("rows", game.getRows());
+				json.addProperty("cols", game.getCols());
 				return json;
 			} catch (DotsService.DotsServiceException ex) {
-				JsonObject json = new JsonObject();
-				if (ex.getMessage().equals("404") || ex.getMessage().equals("410")) {
-					response.status(Integer.valueOf(ex.getMessage()));
-					json.addProperty("error", ex.getMessage().equals("404") ? 
-							"Invalid game ID" : "Player already joined / game full");
-					return json;
-				} else if (ex.getMessage().equals("400")) {
-					response.status(Integer.valueOf(ex.getMessage()));
-					json.addProperty("error", "Could not join game.");
-					return json;
-				}
+				return error(response, ex, JOIN_ERRORS);
 			}
-			
-			return Collections.EMPTY_MAP;
-		}, new JsonTransformer());
+		}));
+		
+		post(MATCHMAKE_PATH, "application/json", transformer.streaming((request, response) -> {
+			try {
+				Map<String, Object> match = dotsService.matchmake(request.body());
+				// A new game was created if nobody was waiting
+				response.status(match.get("state").equals("WAITING_TO_START") ? 201 : 200);
+				return match;
+			} catch (DotsService.DotsServiceException ex) {
+				return error(response, ex, MATCHMAKE_ERRORS);
+			}
+		}));
 		
-		post(API_CONTEXT + "/:gameId/hmove", "application/json", (request, response) -> {
+		post(API_CONTEXT + "/:gameId/hmove", "application/json", transformer.streaming((request, response) -> {
 			try {
 				dotsService.validateMove(request.params("gameId"), request.body(), "HOR");
 				response.status(200);
 			} catch (DotsService.DotsServiceException ex) {
-				JsonObject json = new JsonObject();
-				if (ex.getMessage().equals("404") || ex.getMessage().equals("422")) {
-					response.status(Integer.valueOf(ex.getMessage()));
-					json.addProperty("error", ex.getMessage().equals("404") ? 
-							"Invalid game or player ID" : "Incorrect turn or illegal move");
-					return json;
-				} else if (ex.getMessage().equals("400")) {
-					response.status(Integer.valueOf(ex.getMessage()));
-					json.addProperty("error", "Could not make horizontal move.");
-					return json;
-				}
+				return error(response, ex, HMOVE_ERRORS);
 			}
 			return Collections.EMPTY_MAP;
-		}, new JsonTransformer());
+		}));
 		
-		post(API_CONTEXT + "/:gameId/vmove", "application/json", (request, response) -> {
+		post(API_CONTEXT + "/:gameId/vmove", "application/json", transformer.streaming((request, response) -> {
 			try {
 				dotsService.validateMove(request.params("gameId"), request.body(), "VERT");
 				response.status(200);
 			} catch (DotsService.DotsServiceException ex) {
-				JsonObject json = new JsonObject();
-				if (ex.getMessage().equals("404") || ex.getMessage().equals("422")) {
-					response.status(Integer.valueOf(ex.getMessage()));
-					json.addProperty("error", ex.getMessage().equals("404") ? 
-							"Invalid game or player ID" : "Incorrect turn or illegal move");
-					return json;
-				} else if (ex.getMessage().equals("400")) {
-					response.status(Integer.valueOf(ex.getMessage()));
-					json.addProperty("error", "Could not make vertical move.");
-					return json;
-				}
+				return error(response, ex, VMOVE_ERRORS);
 			}
 			return Collections.EMPTY_MAP;
-		}, new JsonTransformer());
+		}));
 		
-		get(API_CONTEXT + "/:gameId/state", "application/json", (request, response) -> {
+		post(API_CONTEXT + "/:gameId/moves", "application/json", transformer.streaming((request, response) -> {
 			try {
-				Map<String, Object> result = dotsService.getGameState(request.params("gameId"));
-				
-				if (!result.containsKey("redScore")) {
-					result.put("redScore", 0);
-				}
-				
-				if (!result.containsKey("blueScore")) {
-					result.put("blueScore", 0);
+				Map<String, Object> result = dotsService.validateMoves(request.params("gameId"), request.body());
+				if (result.containsKey("stoppedAt")) {
+					// Nothing was played unless the batch asked for partial, the body says how many
+					response.status(Status.ILLEGAL_MOVE.getCode());
+					result.put("error", MOVES_ERRORS.get(Status.ILLEGAL_MOVE));
+				} else {
+					response.status(200);
 				}
-				
-				if (!result.containsKey("state")) {
-					result.put("state", "WAITING_TO_START");
+				return result;
+			} catch (DotsService.DotsServiceException ex) {
+				return error(response, ex, MOVES_ERRORS);
+			}
+		}));
+		
+		get(API_CONTEXT + "/:gameId/state", "application/json", transformer.streaming((request, response) -> {
+			try {
+				String representation = encoding(request);
+				checkVersion(request, response, representation);
+				ResponseCache.Body result = dotsService.render(request.params("gameId"), ResponseCache.View.STATE);
+				tag(response, result.getVersion(), representation);
+				response.status(200);
+				return result;
+			} catch (DotsService.DotsServiceException ex) {
+				return error(response, ex, STATE_ERRORS);
+			}
+		}));
+		
+		get(API_CONTEXT + "/:gameId/board", "application/json", transformer.streaming((request, response) -> {
+			try {
+				String sinceVersion = request.queryParams("sinceVersion");
+				String format = request.queryParams("format");
+				String representation;
+				if ("packed".equals(format)) {
+					representation = "-packed";
+				} else if (sinceVersion != null) {
+					representation = "-since" + parseVersion(sinceVersion);
+				} else {
+					representation = encoding(request);
 				}
-				
-				if (!result.containsKey("whoseTurn")) {
-					result.put("whoseTurn", "RED");
+				checkVersion(request, response, representation);
+				Object result;
+				if ("packed".equals(format)) {
+					// Always the whole board, it is small enough already
+					result = dotsService.getPackedBoard(request.params("gameId"));
+				} else if (format != null && !format.equals("list")) {
+					throw DotsService.DotsServiceException.BAD_REQUEST;
+				} else if (sinceVersion == null) {
+					ResponseCache.Body body = dotsService.render(request.params("gameId"), ResponseCache.View.BOARD);
+					tag(response, body.getVersion(), representation);
+					result = body;
+				} else {
+					result = dotsService.getBoard(request.params("gameId"), parseVersion(sinceVersion));
 				}
 				response.status(200);
 				return result;
 			} catch (DotsService.DotsServiceException ex) {
-				JsonObject json = new JsonObject();
-				if (ex.getMessage().equals("404")) {
-					response.status(Integer.valueOf(ex.getMessage()));
-					json.addProperty("error", "Invalid game ID");
-					return json;
-				} else if (ex.getMessage().equals("400")) {
-					response.status(Integer.valueOf(ex.getMessage()));
-					json.addProperty("error", "Could not get game state.");
-					return json;
-				}
+				return error(response, ex, BOARD_ERRORS);
 			}
-			return Collections.EMPTY_MAP;
-		}, new JsonTransformer());
+		}));
 		
-		get(API_CONTEXT + "/:gameId/board", "application/json", (request, response) -> {
+		get(API_CONTEXT + "/:gameId/snapshot", "application/json", transformer.streaming((request, response) -> {
 			try {
-				Map<String, Object> result = dotsService.getBoard(request.params("gameId"));
+				String representation = encoding(request);
+				checkVersion(request, response, representation);
+				ResponseCache.Body result = dotsService.render(request.params("gameId"), ResponseCache.View.SNAPSHOT);
+				// The game may have moved on since checkVersion, tag the body with its own version instead
+				tag(response, result.getVersion(), representation);
 				response.status(200);
 				return result;
 			} catch (DotsService.DotsServiceException ex) {
-				JsonObject json = new JsonObject();
-				if (ex.getMessage().equals("404")) {
-					response.status(Integer.valueOf(ex.getMessage()));
-					json.addProperty("error", "Invalid game ID");
-					return json;
-				} else if (ex.getMessage().equals("400")) {
-					response.status(Integer.valueOf(ex.getMessage()));
-					json.addProperty("error", "Could not get game state.");
-					return json;
-				}
+				return error(response, ex, SNAPSHOT_ERRORS);
 			}
+		}));
+		
+		get(API_CONTEXT + "/:gameId/events", (request, response) -> streamEvents(request, response));
+		
+		get(METRICS_PATH, "application/json", transformer.streaming((request, response) -> {
+			Map<String, Object> metrics = new HashMap<>();
+			Map<String, Object> threads = ServerThreads.metrics(request.raw());
+			threads.put("maxQueued", maxQueued);
+			metrics.put("threads", threads);
+			response.header("Cache-Control", "no-cache");
+			response.status(200);
+			return metrics;
+		}));
+	}
+	
+	/**
+	 * This method builds an error table from status and message pairs.
+	 * @param entries the pairs
+	 * @return the table
+	 */
+	private static Map<Status, String> errors(Object... entries) {
+		Map<Status, String> errors = new EnumMap<>(Status.class);
+		for (int i = 0; i < entries.length; i += 2) {
+			errors.put((Status) entries[i], (String) entries[i + 1]);
+		}
+		return Collections.unmodifiableMap(errors);
+	}
+	
+	/**
+	 * This method turns a failed request into its error response.
+	 * @param response the response
+	 * @param ex why the request failed
+	 * @param errors the end point's error table
+	 * @return the error body, or an empty body if the table has no entry
+	 */
+	private static Object error(Response response, DotsService.DotsServiceException ex, 
+			Map<Status, String> errors) {
+		String message = errors.get(ex.getStatus());
+		if (message == null) {
 			return Collections.EMPTY_MAP;
-		}, new JsonTransformer());
+		}
+		response.status(ex.getStatus().getCode());
+		JsonObject json = new JsonObject();
+		json.addProperty("error", message);
+		return json;
+	}
+	
+	/**
+	 * @param version a game version
+	 * @param representation which body of that version is sent
+	 * @return the ETag for that version and body
+	 */
+	private static String etag(long version, String representation) {
+		return "\"" + version + representation + "\"";
+	}
+	
+	/**
+	 * This method names the encoding of a rendered body, which is gzipped
+	 * when the client accepts it. The gzipped and plain bodies are
+	 * different bytes, so they must not share an ETag.
+	 * @param request the request
+	 * @return "-gzip", or an empty string for the plain body
+	 */
+	private static String encoding(Request request) {
+		return JsonTransformer.acceptsGzip(request) ? "-gzip" : "";
+	}
+	
+	/**
+	 * This method sets the response's ETag to a game version, replacing
+	 * the one checkVersion set if the body was built at a newer version,
+	 * so the response never carries two tags.
+	 * @param response the response
+	 * @param version the game version
+	 * @param representation which body of that version is sent
+	 */
+	private static void tag(Response response, long version, String representation) {
+		// Spark's header() adds a header rather than replacing it
+		response.raw().setHeader("ETag", etag(version, representation));
 	}
 	
+	/**
+	 * This method reads a version from a query parameter.
+	 * @param version the parameter
+	 * @return the version
+	 * @throws DotsService.DotsServiceException 400 if it is not a number
+	 */
+	private long parseVersion(String version) throws DotsService.DotsServiceException {
+		try {
+			return Long.parseLong(version.trim());
+		} catch (NumberFormatException ex) {
+			throw DotsService.DotsServiceException.BAD_REQUEST;
+		}
+	}
+	
+	/**
+	 * This method tags the response with the game's version as its ETag.
+	 * Each representation of a version, such as the packed board or a
+	 * gzipped body, gets its own tag, and the tag varies with the
+	 * client's Accept-Encoding, so caches keep them apart.
+	 * If the client already has that version, the request is stopped here
+	 * with 304 Not Modified and nothing else is looked up. The version is
+	 * read before the body is built, so the body is never older than its tag.
+	 * @param request the request
+	 * @param response the response
+	 * @param representation which body of the version is sent
+	 * @throws DotsService.DotsServiceException
+	 */
+	private void checkVersion(Request request, Response response, String representation) throws DotsService.DotsServiceException {
+		long version = dotsService.getVersion(request.params("gameId"));
+		String etag = etag(version, representation);
+		tag(response, version, representation);
+		response.header("Cache-Control", "no-cache");
+		response.raw().setHeader("Vary", "Accept-Encoding");
+		
+		String ifNoneMatch = request.headers("If-None-Match");
+		if (ifNoneMatch == null) {
+			return;
+		}
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			if (tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+			if (tag.equals(etag) || tag.equals("*")) {
+				halt(304);
+			}
+		}
+	}
+	
+	/**
+	 * This method sends a game's changes to the client as Server-Sent Events.
+	 * The first event is the current version, state and board of the game;
+	 * after that one "update" event is sent every time a move or join is
+	 * applied. A client that reconnects with Last-Event-ID only gets the
+	 * changes it missed. The stream ends when the game is finished, the
+	 * client goes away or the server stops; a game that is archived or
+	 * deleted while it is watched ends it with a "gone" event.
+	 * 
+	 * The request is made asynchronous and the events are written by an
+	 * EventStream as the game changes, so an open stream holds no request
+	 * thread while it waits.
+	 * @param request the request
+	 * @param response the response
+	 * @return an empty body, since the events are written straight to the client
+	 */
+	private Object streamEvents(Request request, Response response) {
+		String gameId = request.params("gameId");
+		long version = -1;
+		String lastEventId = request.headers("Last-Event-ID");
+		if (lastEventId != null) {
+			try {
+				version = Long.parseLong(lastEventId.trim());
+			} catch (NumberFormatException ex) {
+				version = -1;
+			}
+		}
+		
+		try {
+			dotsService.getVersion(gameId);
+		} catch (DotsService.DotsServiceException ex) {
+			JsonObject json = new JsonObject();
+			response.type("application/json");
+			String message = EVENTS_ERRORS.get(ex.getStatus());
+			if (message != null) {
+				response.status(ex.getStatus().getCode());
+				json.addProperty("error", message);
+			} else {
+				response.status(400);
+				json.addProperty("error", "Could not get game events.");
+			}
+			return transformer.render(json);
+		}
+		
+		response.status(200);
+		response.type("text/event-stream");
+		response.header("Cache-Control", "no-cache");
+		
+		EventStream stream;
+		try {
+			// Sent now, so Spark does not write and close the body after the route
+			response.raw().flushBuffer();
+			AsyncContext context = request.raw().startAsync();
+			context.setTimeout(0);
+			stream = new EventStream(gameId, version, context);
+		} catch (IOException ex) {
+			// The client closed the stream
+			return "";
+		}
+		
+		try {
+			dotsService.subscribe(gameId, version, stream);
+		} catch (DotsService.DotsServiceException ex) {
+			// The game went away, or the server is stopping, since it was found
+			if (ex.getStatus() == Status.GONE) {
+				stream.gameGone();
+			} else {
+				stream.stopping();
+			}
+		}
+		return "";
+	}
+	
+	/**
+	 * One open event stream, subscribed to one game. Events are queued and
+	 * written without blocking whenever the client can take more, so a
+	 * slow client never holds up the move that changed the game. A client
+	 * that falls MAX_PENDING_EVENTS behind is cut off, and catches up with
+	 * Last-Event-ID when it reconnects.
+	 */
+	private class EventStream implements DotsService.GameListener, WriteListener, AsyncListener {
+		private final String gameId;
+		private final AsyncContext context;
+		private final ServletOutputStream out;
+		private final ScheduledFuture<?> heartbeat;
+		
+		// Events not written yet
+		private final Queue<String> pending = new ArrayDeque<>();
+		
+		// The last version sent
+		private long version;
+		
+		// Whether something was written since the last flush
+		private boolean unflushed;
+		
+		// Whether the stream ends once the pending events are written
+		private boolean ending;
+		
+		private boolean closed;
+		
+		EventStream(String gameId, long version, AsyncContext context) throws IOException {
+			this.gameId = gameId;
+			this.version = version;
+			this.context = context;
+			this.out = context.getResponse().getOutputStream();
+			context.addListener(this);
+			out.setWriteListener(this);
+			// Comment lines keep proxies from closing an idle stream
+			this.heartbeat = HEARTBEATS.scheduleWithFixedDelay(() -> send(": heartbeat\n\n", false), 
+					EVENT_HEARTBEAT_MILLIS, EVENT_HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+		}
+		
+		/**
+		 * This method sends the board since the last event. It is called
+		 * with the game locked, so the board is read as of this change.
+		 */
+		@Override
+		public void gameChanged(Map<String, Object> update) {
+			Map<String, Object> snapshot;
+			synchronized (this) {
+				try {
+					snapshot = dotsService.getUpdate(gameId, version);
+				} catch (DotsService.DotsServiceException ex) {
+					close();
+					return;
+				}
+				if (snapshot == null) {
+					return;
+				}
+				version = (Long) snapshot.get("version");
+			}
+			
+			GameState state = (GameState) snapshot.get("state");
+			send("id: " + snapshot.get("version") + "\nevent: update\ndata: " + transformer.render(snapshot) + "\n\n", 
+					state.getState().equals("FINISHED"));
+		}
+		
+		@Override
+		public void gameGone() {
+			JsonObject gone = new JsonObject();
+			gone.addProperty("gameId", gameId);
+			send("event: gone\ndata: " + transformer.render(gone) + "\n\n", true);
+		}
+		
+		@Override
+		public void stopping() {
+			synchronized (this) {
+				ending = true;
+			}
+			onWritePossible();
+		}
+		
+		/**
+		 * This method queues an event and writes what the client can take.
+		 * @param event the event
+		 * @param last whether the stream ends after it
+		 */
+		private synchronized void send(String event, boolean last) {
+			if (closed || ending) {
+				return;
+			}
+			if (pending.size() >= MAX_PENDING_EVENTS) {
+				// The client fell too far behind
+				close();
+				return;
+			}
+			pending.add(event);
+			ending = last;
+			onWritePossible();
+		}
+		
+		/**
+		 * This method writes and flushes pending events while the client
+		 * can take them without blocking. Jetty calls it again once it can.
+		 */
+		@Override
+		public synchronized void onWritePossible() {
+			try {
+				while (!closed && out.isReady()) {
+					if (unflushed) {
+						unflushed = false;
+						out.flush();
+						continue;
+					}
+					String event = pending.poll();
+					if (event == null) {
+						if (ending) {
+							close();
+						}
+						return;
+					}
+					out.write(event.getBytes(StandardCharsets.UTF_8));
+					unflushed = true;
+				}
+			} catch (IOException | IllegalStateException ex) {
+				// The client closed the stream
+				close();
+			}
+		}
+		
+		/**
+		 * This method ends the stream, once.
+		 */
+		private synchronized void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			pending.clear();
+			heartbeat.cancel(false);
+			dotsService.unsubscribe(gameId, this);
+			try {
+				context.complete();
+			} catch (IllegalStateException ex) {
+				// Already completed
+			}
+		}
+		
+		@Override
+		public void onError(Throwable error) {
+			close();
+		}
+		
+		@Override
+		public void onComplete(AsyncEvent event) {
+			close();
+		}
+		
+		@Override
+		public void onTimeout(AsyncEvent event) {
+			close();
+		}
+		
+		@Override
+		public void onError(AsyncEvent event) {
+			close();
+		}
+		
+		@Override
+		public void onStartAsync(AsyncEvent event) {
+		}
+	}
 }
@@ -1,88 +1,353 @@
 package com.oose2016.jsham2.dots;
 
-import com.google.gson.Gson;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.sql2o.Connection;
-import org.sql2o.Sql2o;
-import org.sql2o.Sql2oException;
-import org.sql2o.data.Row;
-import org.sql2o.data.Table;
 
 import javax.sql.DataSource;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * This class holds all the game logic and database calls for the dots game.
+ * This class holds all the game logic for the dots game.
  * It also performs all of the game actions.
  * 
+ * Games are kept in memory once they are created or first looked up, and
+ * every move and read is served from there. Every change is handed to a
+ * GameRepository, which stores it in SQLite, in a journal or nowhere,
+ * and games that are not in memory yet are loaded from it.
+ * 
+ * Finished games that have not changed for a while are moved to a
+ * compact archive, and games nobody joined are deleted (see
+ * archiveGames), so memory only holds recent games. Only repositories
+ * that load games one by one archive them.
+ * 
+ * Each game is its own lock. A move is checked and applied while its
+ * game is locked, so two requests for the same game are applied one
+ * after the other, while requests for different games run in parallel.
+ * 
  * @author jsham2, Jeffrey Sham CS421
  *
  */
-public class DotsService {
-	// Database to hold all the objects
-	private Sql2o database;
+public class DotsService implements AutoCloseable {
+	// Where the games are stored
+	private final GameRepository repository;
+	
+	// Games that have been created or loaded, keyed by game id
+	private final Map<Integer, Game> games = new ConcurrentHashMap<>();
+	
+	// Locks that let only one request load a given game, picked by game id
+	private final Object[] loadLocks = new Object[LOAD_LOCK_STRIPES];
+	
+	// Listeners told about every change to a game, keyed by game id
+	private final Map<Integer, Set<GameListener>> listeners = new ConcurrentHashMap<>();
+	
+	// Games waiting for a second player, for the lobby, in game id order
+	private final ConcurrentNavigableMap<Integer, OpenGame> openGames = new ConcurrentSkipListMap<>();
+	
+	// The game waiting for a second player in matchmake, by board size
+	private final Map<Integer, AtomicReference<Waiting>> matchmaking = new ConcurrentHashMap<>();
+	
+	
+	// Rendered board, state and snapshot of each game, by version
+	private final ResponseCache responseCache = new ResponseCache();
+	
+	// Last game id handed out
+	private final AtomicInteger lastGameId;
+	
+	// Last player id handed out
+	private final AtomicInteger lastPlayerId;
+	
+	// Moves old games to the archive, once startArchiver is called
+	private ScheduledExecutorService archiver;
+	
+	// Set once the server is stopping, turns away new listeners
+	private volatile boolean stopping = false;
 	
 	// Logger
 	private final Logger logger = LoggerFactory.getLogger(DotsService.class);
 	
-	// Upper limit for grid
-	public static final int GRID_UPPER_SIZE = 5;
+	// Rows and columns of boxes when the request does not give a size
+	public static final int DEFAULT_BOARD_SIZE = 4;
 	
-	// Smaller side for grid
-	public static final int GRID_MID_SIZE = 4;
+	// Largest number of rows or columns of boxes
+	public static final int MAX_BOARD_SIZE = 200;
+	
+	// State of a game that nobody joined in time while it is being deleted
+	private static final String EXPIRED = "EXPIRED";
+	
+	// Games in a page of the lobby when the request does not say
+	public static final int DEFAULT_PAGE_SIZE = 20;
+	
+	// Most games in a page of the lobby
+	public static final int MAX_PAGE_SIZE = 100;
+	
+	// Number of load locks, a power of two
+	private static final int LOAD_LOCK_STRIPES = 64;
 	
 	/**
-	 * This is the constructor for the service. It sets up all the
-	 * database tables.
+	 * This is the constructor for the service. It keeps its games in the
+	 * database, setting up all the tables and upgrading an older
+	 * database file if needed.
 	 * @param dataSource The data source for the database
 	 * @throws DotsServiceException 
 	 */
 	public DotsService(DataSource dataSource) throws DotsServiceException {
-		database = new Sql2o(dataSource);
+		this(new SqliteGameRepository(dataSource));
+	}
+	
+	/**
+	 * This is the constructor for a service that keeps its games in the
+	 * given repository. Games the repository holds in memory are taken
+	 * over right away, and the games waiting for a second player are
+	 * put in the lobby. The first waiting game of each board size that
+	 * matchmake created is also handed back to matchmake.
+	 * @param repository the repository, closed when the service is closed
+	 * @throws DotsServiceException if the waiting games could not be found
+	 */
+	public DotsService(GameRepository repository) throws DotsServiceException {
+		this.repository = repository;
+		for (int i = 0; i < loadLocks.length; i++) {
+			loadLocks[i] = new Object();
+		}
 		
-		try (Connection conn = database.open()) {
-			String gameSql = "CREATE TABLE IF NOT EXISTS game (id INTEGER PRIMARY KEY AUTOINCREMENT, " +
-							 "							  	  player_one_id INTEGER, " +
-						     "							      player_two_id INTEGER, " +
-							 "							      state TEXT);";
-			
-			String movesSql = "CREATE TABLE IF NOT EXISTS moves (game_id INTEGER, " +
-							  " 								player_id INTEGER, " + 
-							  "									type TEXT, " + 
-							  " 								row INTEGER, " +
-							  " 								col INTEGER, " + 
-							  "									won_box INTEGER, " +	
-							  "									time TIMESTAMP DEFAULT CURRENT_TIMESTAMP);";
-			
-			String playerSql = "CREATE TABLE IF NOT EXISTS player (id INTEGER PRIMARY KEY AUTOINCREMENT, " +
-							   " 								  type TEXT, " +
-							   " 								  score INTEGER);";
-			
-			String boardSql = "CREATE TABLE IF NOT EXISTS blocks (game_id INTEGER, " +
-							  " 								 color TEXT, " + 
-							  "  								 row INTEGER, " +
-							  "									 col INTEGER);";
+		// Ids are handed out in memory, so start after the ones already stored
+		lastGameId = new AtomicInteger(repository.getLastGameId());
+		lastPlayerId = new AtomicInteger(repository.getLastPlayerId());
+		for (Game game : repository.loadAll()) {
+			games.put(Integer.valueOf(game.getId()), game);
+			responseCache.track(Integer.valueOf(game.getId()));
+			if (game.getState().equals("WAITING_TO_START")) {
+				openGames.put(Integer.valueOf(game.getId()), new OpenGame(game));
+			}
+		}
+		for (OpenGame openGame : repository.findOpenGames()) {
+			openGames.put(openGame.getGameId(), openGame);
+		}
+		
+		// Matchmake only remembers its games in memory, so it is given back the first one waiting of each size.
+		// Games created by id are left to the players they were shared with.
+		for (OpenGame openGame : openGames.values()) {
+			if (!openGame.isMatchmade()) {
+				continue;
+			}
+			AtomicReference<Waiting> waiting = matchmaking.computeIfAbsent(
+					sizeKey(openGame.getRows(), openGame.getCols()), size -> new AtomicReference<>());
+			if (waiting.get() == null) {
+				Game game = findGame(openGame.getGameId());
+				if (game != null) {
+					waiting.set(new Waiting(game));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * This method tells every listener that no more changes will be sent,
+	 * and makes later subscribers fail with 503, so event streams end
+	 * before the server stops.
+	 */
+	public void stopUpdates() {
+		stopping = true;
+		for (Set<GameListener> subscribed : listeners.values()) {
+			for (GameListener listener : subscribed) {
+				try {
+					listener.stopping();
+				} catch (RuntimeException ex) {
+					logger.error("DotsService.stopUpdates: Listener failed", ex);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * This method flushes every change still pending in the repository.
+	 * It blocks until it has caught up with the in-memory games.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (archiver != null) {
+				archiver.shutdownNow();
+				try {
+					archiver.awaitTermination(5, TimeUnit.SECONDS);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		repository.close();
+	}
+	
+	/**
+	 * This method runs archiveGames in the background every so often.
+	 * @param finishedAgeMillis how long a finished game stays in the game tables
+	 * @param waitingAgeMillis how long a game may wait for a second player
+	 * @param intervalMillis how often to look for old games
+	 */
+	public synchronized void startArchiver(long finishedAgeMillis, long waitingAgeMillis, long intervalMillis) {
+		if (archiver != null) {
+			return;
+		}
+		archiver = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "dots-archiver");
+			thread.setDaemon(true);
+			return thread;
+		});
+		archiver.scheduleWithFixedDelay(() -> {
+			long now = System.currentTimeMillis();
+			try {
+				int archived = archiveGames(now - finishedAgeMillis, now - waitingAgeMillis);
+				if (archived > 0) {
+					logger.info("DotsService.archiver: Archived or expired {} games", archived);
+				}
+			} catch (DotsServiceException | RuntimeException ex) {
+				logger.error("DotsService.archiver: Failed to archive games", ex);
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * This method moves finished games that have not changed since a
+	 * given time into the repository's archive, and deletes games that
+	 * have waited for a second player since a given time. The repository
+	 * does this behind any write still pending for those games. Once it
+	 * is done the games are dropped from memory; archived games are read
+	 * back from the archive when they are asked for again, deleted ones
+	 * are gone. Games read back from the archive since the last call are
+	 * dropped from memory again.
+	 * @param finishedBefore finished games last changed before this time are archived
+	 * @param waitingBefore games waiting since before this time are deleted
+	 * @return the number of games archived or deleted
+	 * @throws DotsServiceException if the old games could not be found
+	 */
+	public int archiveGames(long finishedBefore, long waitingBefore) throws DotsServiceException {
+		for (Game game : games.values()) {
+			if (game.isArchived()) {
+				forget(Integer.valueOf(game.getId()));
+			}
+		}
+		
+		int count = 0;
+		for (Map.Entry<Integer, String> oldGame : 
+				repository.findOldGames(finishedBefore, waitingBefore).entrySet()) {
+			int gameId = oldGame.getKey();
+			boolean done = oldGame.getValue().equals("FINISHED") ? 
+					archiveGame(gameId, finishedBefore) : expireGame(gameId, waitingBefore);
+			if (done) {
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * This method queues the move of a finished game to the archive.
+	 * @param gameId the game id
+	 * @param finishedBefore the game must not have changed since this time
+	 * @return true if the game was queued
+	 * @throws DotsServiceException
+	 */
+	private boolean archiveGame(int gameId, long finishedBefore) throws DotsServiceException {
+		Game game = findGame(gameId);
+		if (game == null) {
+			return false;
+		}
+		
+		synchronized (game) {
+			if (!game.getState().equals("FINISHED") || game.getUpdatedAt() >= finishedBefore) {
+				return false;
+			}
+			repository.archiveGame(game, () -> forget(gameId));
+		}
+		return true;
+	}
+	
+	/**
+	 * This method queues the delete of a game nobody joined. From here on
+	 * the game cannot be joined, even before it is deleted.
+	 * @param gameId the game id
+	 * @param waitingBefore the game must not have changed since this time
+	 * @return true if the game was queued
+	 * @throws DotsServiceException
+	 */
+	private boolean expireGame(int gameId, long waitingBefore) throws DotsServiceException {
+		Game game = findGame(gameId);
+		if (game == null) {
+			return false;
+		}
+		
+		synchronized (game) {
+			if (!game.getState().equals("WAITING_TO_START") || game.getUpdatedAt() >= waitingBefore) {
+				return false;
+			}
+			game.setState(EXPIRED);
+			openGames.remove(gameId);
+		}
+		
+		repository.deleteGame(gameId, () -> forget(gameId));
+		return true;
+	}
+	
+	/**
+	 * This method drops a game that was archived or deleted from memory.
+	 * Its listeners are told and unsubscribed.
+	 * @param gameId the game id
+	 */
+	private void forget(int gameId) {
+		Game game = games.get(gameId);
+		if (game == null) {
+			responseCache.forget(gameId);
+			return;
+		}
+		
+		synchronized (game) {
+			games.remove(gameId, game);
+			responseCache.forget(gameId);
 			
-			conn.createQuery(gameSql).executeUpdate();
-			conn.createQuery(movesSql).executeUpdate();
-			conn.createQuery(playerSql).executeUpdate();
-			conn.createQuery(boardSql).executeUpdate();
-		} catch (Sql2oException ex) {
-			logger.error("Failed to create table", ex);
-			throw new DotsServiceException("Failed to create table", ex);
+			Set<GameListener> subscribed = listeners.remove(gameId);
+			if (subscribed == null) {
+				return;
+			}
+			for (GameListener listener : subscribed) {
+				try {
+					listener.gameGone();
+				} catch (RuntimeException ex) {
+					logger.error("DotsService.forget: Listener failed", ex);
+				}
+			}
 		}
 	}
 	
+	/**
+	 * This method tells whether a game is held in memory.
+	 * @param gameId the game id
+	 * @return true if it is
+	 */
+	boolean isLoaded(int gameId) {
+		return games.containsKey(gameId);
+	}
+	
 	/**
 	 * This method takes in a request body and creates a
-	 * new player and a new game.
+	 * new player and a new game. The body may give the board
+	 * size as "rows" and "cols" (boxes); both default to 4.
 	 * 
 	 * @param body request body
 	 * @return The new Game object
@@ -92,10 +357,10 @@ public class DotsService {
 		// Get body info, create player
 		JsonObject json = null;
 		try {
-			json = new Gson().fromJson(body, JsonObject.class);
+			json = JsonTransformer.parseObject(body);
 		} catch (Exception ex) {
 			// Bad parameters
-			throw new DotsServiceException("400", null);
+			throw DotsServiceException.BAD_REQUEST;
 		}
 
 		String playerType = null;
@@ -105,45 +370,57 @@ public class DotsService {
 			playerType = playerType.toUpperCase();
 			if (!(playerType.equals("RED") || playerType.equals("BLUE"))) {
 				// Wrong type
-				throw new DotsServiceException("400", null);
+				throw DotsServiceException.BAD_REQUEST;
 			}
 		} else {
-			throw new DotsServiceException("400", null);
-		}
-		
-		String createPlayerSql = "INSERT INTO player (type, score) " +
-								 " 				VALUES (:playerType, 0);";
-		
-		try (Connection conn = database.open()) {
-			Object playerKey = conn.createQuery(createPlayerSql)
-				.addParameter("playerType", playerType)
-				.executeUpdate()
-				.getKey();
-			if (playerKey != null) {
-				int playerId = (int) playerKey;
-				
-				// Create game
-				String createGameSql = "INSERT INTO game (player_one_id, state) " +
-									   "  			VALUES (:playerId, 'WAITING_TO_START');";
-				Object gameKey = conn.createQuery(createGameSql)
-									.addParameter("playerId", playerId)
-									.executeUpdate()
-									.getKey();
-				if (gameKey != null) {
-					int gameId = (int) gameKey;
-					
-					// Return game
-					Player player = new Player(String.valueOf(playerId), playerType);
-					Game game = new Game(String.valueOf(gameId), player, null);
-					return game;
-				}
-			}
+			throw DotsServiceException.BAD_REQUEST;
+		}
+		
+		int rows = getBoardSize(json, "rows");
+		int cols = getBoardSize(json, "cols");
+		
+		int playerId = lastPlayerId.incrementAndGet();
+		int gameId = lastGameId.incrementAndGet();
+		
+		Player player = new Player(String.valueOf(playerId), playerType);
+		Game game = new Game(String.valueOf(gameId), player, null, rows, cols);
+		game.setUpdatedAt(System.currentTimeMillis());
+		
+		synchronized (game) {
+			games.put(gameId, game);
+			responseCache.track(gameId);
+			repository.createGame(game);
+			openGames.put(gameId, new OpenGame(game));
+		}
+		
+		return game;
+	}
+	
+	/**
+	 * This method reads one board dimension from a create game request.
+	 * @param json the request body
+	 * @param name the dimension, "rows" or "cols"
+	 * @return the dimension, or the default if the body does not give one
+	 * @throws DotsServiceException
+	 */
+	private int getBoardSize(JsonObject json, String name) throws DotsServiceException {
+		if (!json.has(name) || json.get(name).isJsonNull()) {
+			return DEFAULT_BOARD_SIZE;
+		}
+		
+		int size = 0;
+		try {
+			size = json.get(name).getAsInt();
 		} catch (Exception ex) {
-			logger.error("DotsService.createGame: Failed to create game", ex);
-			throw new DotsServiceException("DotsService.createGame: Failed to create game", ex);
+			// Bad parameters
+			throw DotsServiceException.BAD_REQUEST;
 		}
 		
-		return null;
+		if (size < 1 || size > MAX_BOARD_SIZE) {
+			// Board too small or too big
+			throw DotsServiceException.BAD_REQUEST;
+		}
+		return size;
 	}
 	
 	/**
@@ -158,66 +435,211 @@ public class DotsService {
 	public Game joinGame(String gameId) throws DotsServiceException {
 		if (gameId == null || gameId.equals("null") || !isNumeric(gameId)) {
 			// Bad game parameter
-			throw new DotsServiceException("400", null);
+			throw DotsServiceException.BAD_REQUEST;
 		}
 		
-		// Get the game
-		String gameSql = "SELECT g.id, g.player_two_id, p.type FROM game g, player p " + 
-						 " 		   WHERE g.id = :gameId " + 
-						 "		   		AND g.player_one_id = p.id;";
-		
-		try (Connection conn = database.open()) {
-			Table gameTable = conn.createQuery(gameSql)
-								.addParameter("gameId", Integer.valueOf(gameId))
-								.executeAndFetchTable();
-			if (!gameTable.rows().isEmpty()) {
-				Row gameRow = gameTable.rows().get(0);
-				
-				if (gameRow.getInteger("player_two_id") != null) {
-					// Game full
-					throw new DotsServiceException("410", null);
-				}
-				
-				// Get first player's type
-				String playerOneType = gameRow.getString("type");
-				
-				String playerTwoType = "RED";
-				if (playerOneType.equals(playerTwoType)) {
-					playerTwoType = "BLUE";
+		Game game = findGame(Integer.valueOf(gameId));
+		if (game == null) {
+			// Invalid Game Id
+			throw DotsServiceException.NOT_FOUND;
+		}
+		
+		synchronized (game) {
+			checkSaved(game);
+			if (game.getPlayerTwo() != null) {
+				// Game full
+				throw DotsServiceException.GONE;
+			}
+			if (game.getState().equals(EXPIRED)) {
+				// Nobody joined in time, the game is being deleted
+				throw DotsServiceException.NOT_FOUND;
+			}
+			
+			join(game);
+		}
+		
+		return game;
+	}
+	
+	/**
+	 * This method adds a second player to a game, with the color the
+	 * first player did not take, and starts it.
+	 * The caller must hold the game's lock and have checked that the
+	 * game is waiting for a second player.
+	 * @param game the game
+	 */
+	private void join(Game game) {
+		// Get first player's type
+		String playerOneType = game.getPlayerOne().getType();
+		
+		String playerTwoType = "RED";
+		if (playerOneType.equals(playerTwoType)) {
+			playerTwoType = "BLUE";
+		}
+		
+		int playerId = lastPlayerId.incrementAndGet();
+		Player playerTwo = new Player(String.valueOf(playerId), playerTwoType);
+		game.setPlayerTwo(playerTwo);
+		game.setState("IN_PROGRESS");
+		openGames.remove(Integer.valueOf(game.getId()));
+		changed(game, null);
+		repository.joinGame(game);
+	}
+	
+	/**
+	 * This method pairs a player with whoever is waiting for a game of the
+	 * same size. If someone is waiting, the player joins their game; if
+	 * not, a new game is created and the player waits in it for the next
+	 * player to matchmake, watching it like any other game.
+	 * 
+	 * Each board size has a slot holding at most the one game that is
+	 * waiting. Players take the game out of the slot, or put a place for
+	 * theirs in it, with compareAndSet, so any two players are paired
+	 * exactly once and no lock is shared by different games. Ids are only
+	 * handed out once the place is taken, and the place stays locked until
+	 * the new game has been stored, so whoever takes it from the slot
+	 * joins the game after. The slots start out with the games that were
+	 * already waiting when the service started.
+	 * @param body The json request body, with the optional rows and cols
+	 * @return the game id, the player's id and color, the board size and
+	 * 		   the game's state, WAITING_TO_START for a new game
+	 * @throws DotsServiceException
+	 */
+	public Map<String, Object> matchmake(String body) throws DotsServiceException {
+		JsonObject json = null;
+		try {
+			json = JsonTransformer.parseObject(body);
+		} catch (Exception ex) {
+			// Bad parameters
+			throw DotsServiceException.BAD_REQUEST;
+		}
+		if (json == null) {
+			// No body, the default size
+			json = new JsonObject();
+		}
+		
+		int rows = getBoardSize(json, "rows");
+		int cols = getBoardSize(json, "cols");
+		AtomicReference<Waiting> waiting = matchmaking.computeIfAbsent(sizeKey(rows, cols), 
+				size -> new AtomicReference<>());
+		
+		Waiting place = new Waiting(null);
+		while (true) {
+			Waiting taken = waiting.get();
+			if (taken != null) {
+				if (waiting.compareAndSet(taken, null)) {
+					Game game;
+					synchronized (taken) {
+						// Waits for the game to be stored, null if it could not be
+						game = taken.game;
+					}
+					if (game != null) {
+						synchronized (game) {
+							// Someone may have joined it by id, or it expired
+							if (game.getPlayerTwo() == null && !game.getState().equals(EXPIRED)) {
+								join(game);
+								return matched(game, game.getPlayerTwo());
+							}
+						}
+					}
 				}
-				
-				// Insert second player
-				String createPlayerTwoSql = "INSERT INTO player (type, score) " +
-						 				 " 				VALUES (:playerType, 0);";
-				Object playerKey = conn.createQuery(createPlayerTwoSql)
-						.addParameter("playerType", playerTwoType)
-						.executeUpdate()
-						.getKey();
-				
-				if (playerKey != null) {
-					int playerId = (int) playerKey;
-					
-					// Update and return game
-					String updateGameSql = "UPDATE game SET player_two_id = :playerId, state = 'IN_PROGRESS' " + 
-										   "			WHERE id = :id;";
-					conn.createQuery(updateGameSql)
-						.addParameter("playerId", playerId)
-						.addParameter("id", gameId)
-						.executeUpdate();
-					Player playerTwo = new Player(String.valueOf(playerId), playerTwoType);
-					return new Game(gameId, null, playerTwo);
+				continue;
+			}
+			
+			synchronized (place) {
+				if (waiting.compareAndSet(null, place)) {
+					int playerId = lastPlayerId.incrementAndGet();
+					int gameId = lastGameId.incrementAndGet();
+					Game created = new Game(String.valueOf(gameId), new Player(String.valueOf(playerId), "RED"), 
+							null, rows, cols);
+					created.setMatchmade(true);
+					synchronized (created) {
+						created.setUpdatedAt(System.currentTimeMillis());
+						games.put(Integer.valueOf(created.getId()), created);
+						responseCache.track(Integer.valueOf(created.getId()));
+						repository.createGame(created);
+						openGames.put(Integer.valueOf(created.getId()), new OpenGame(created));
+						place.game = created;
+						return matched(created, created.getPlayerOne());
+					}
 				}
-			} else {
-				// Invalid Game Id
-				throw new DotsServiceException("404", null);
 			}
 		}
-		
-		return null;
 	}
 	
+	/**
+	 * This method gives the key of a board size in matchmaking.
+	 * @param rows the rows of boxes
+	 * @param cols the columns of boxes
+	 * @return the key
+	 */
+	private static int sizeKey(int rows, int cols) {
+		return rows * (MAX_BOARD_SIZE + 1) + cols;
+	}
 	
+	/**
+	 * This method describes a game to the player matchmake put in it.
+	 * The caller must hold the game's lock.
+	 * @param game the game
+	 * @param player the player
+	 * @return the game id, player id and color, board size and state
+	 */
+	private static Map<String, Object> matched(Game game, Player player) {
+		Map<String, Object> match = new HashMap<>();
+		match.put("gameId", game.getId());
+		match.put("playerId", player.getId());
+		match.put("playerType", player.getType());
+		match.put("rows", game.getRows());
+		match.put("cols", game.getCols());
+		match.put("state", game.getState());
+		return match;
+	}
 	
+	/**
+	 * This method lists the games waiting for a second player, a page at
+	 * a time, in game id order. Each page starts after the cursor, the
+	 * last game id of the page before, so a page is found in the lobby
+	 * in the same time however many games there are, and games created
+	 * or joined meanwhile never make a page skip or repeat a game.
+	 * @param state the state of the games, only WAITING_TO_START, or null
+	 * @param limit the most games in the page, or null for DEFAULT_PAGE_SIZE
+	 * @param cursor the last game id of the page before, or null for the first page
+	 * @return the games and, if there may be more, the cursor of the next page
+	 * @throws DotsServiceException
+	 */
+	public Map<String, Object> listGames(String state, String limit, String cursor) 
+			throws DotsServiceException {
+		if (state != null && !state.equals("WAITING_TO_START")) {
+			// Only games waiting for a second player can be listed
+			throw DotsServiceException.BAD_REQUEST;
+		}
+		if ((limit != null && !isNumeric(limit)) || (cursor != null && !isNumeric(cursor))) {
+			// Bad parameters
+			throw DotsServiceException.BAD_REQUEST;
+		}
+		
+		int pageSize = limit == null ? DEFAULT_PAGE_SIZE : Integer.valueOf(limit);
+		if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+			// Bad parameters
+			throw DotsServiceException.BAD_REQUEST;
+		}
+		
+		Map<Integer, OpenGame> after = cursor == null ? openGames : openGames.tailMap(Integer.valueOf(cursor), false);
+		List<OpenGame> page = new ArrayList<>(pageSize);
+		for (OpenGame openGame : after.values()) {
+			if (page.size() == pageSize) {
+				break;
+			}
+			page.add(openGame);
+		}
+		
+		Map<String, Object> result = new HashMap<>();
+		result.put("games", page);
+		if (page.size() == pageSize) {
+			result.put("nextCursor", String.valueOf(page.get(pageSize - 1).getGameId()));
+		}
+		return result;
+	}
 	
 	/**
 	 * This method validates if a move will be valid. It uses
@@ -232,16 +654,16 @@ public class DotsService {
 		// Get body info, create player
 		JsonObject json = null;
 		try {
-			json = new Gson().fromJson(body, JsonObject.class);
+			json = JsonTransformer.parseObject(body);
 		} catch (Exception ex) {
 			// Bad parameters
-			throw new DotsServiceException("400", null);
+			throw DotsServiceException.BAD_REQUEST;
 		}
 		
 		if (json == null || gameId == null || gameId.equals("null") || !isNumeric(gameId) || 
 				!json.has("playerId") || !json.has("row") || !json.has("col")) {
 			// Bad parameters
-			throw new DotsServiceException("400", null);
+			throw DotsServiceException.BAD_REQUEST;
 		}
 		
 		String playerIdString = null;
@@ -258,79 +680,163 @@ public class DotsService {
 			col = json.get("col").getAsInt();
 		} catch (Exception ex) {
 			// Bad parameters
-			throw new DotsServiceException("400", ex);
+			throw DotsServiceException.BAD_REQUEST;
 		}
 		
 		if (playerIdString == null || !isNumeric(playerIdString)) {
 			// Invalid Player Id or Invalid Game Id
-			throw new DotsServiceException("404", null);
+			throw DotsServiceException.NOT_FOUND;
 		}
 		
 		int playerId = Integer.valueOf(playerIdString);
 		
 		// Get the game
-		String gameSql = "SELECT * FROM game g " + 
-						 " 		   WHERE g.id = :gameId;";
-		
-		try (Connection conn = database.open()) {
-			Table gameTable = conn.createQuery(gameSql)
-								  .addParameter("gameId", Integer.valueOf(gameId))
-								  .executeAndFetchTable();
-			if (!gameTable.rows().isEmpty()) {
-				Row gameRow = gameTable.rows().get(0);
-				String state = gameRow.getString("state");
-				if (!state.equals("IN_PROGRESS")) {
-					// Illegal Move.
-					throw new DotsServiceException("422", null);
-				}
-				
-				if (gameRow.getInteger("player_one_id") != playerId) {
-					if (gameRow.getInteger("player_two_id") != playerId) {
-						// Invalid Player Id
-						throw new DotsServiceException("404", null);
-					}
-				}
-				
-				String playerSql = "SELECT type FROM player " +
-								   " 			WHERE id = :id " +
-								   "			LIMIT 1;";
-				List<Row> playerRows = conn.createQuery(playerSql)
-										   .addParameter("id", playerId)
-										   .executeAndFetchTable()
-										   .rows();
-				
-				String playerOneType = "RED";
-				
-				if (!playerRows.isEmpty()) {
-					playerOneType = playerRows.get(0).getString("type");
-				}
-				
-				boolean playerTurn = false;
-				
-				if (playerOneType.equals("RED")) {
-					playerTurn = isPlayersTurn(playerId, gameId, true);
-				} else if (playerOneType.equals("BLUE")) {
-					playerTurn = isPlayersTurn(playerId, gameId, false);
-				}
-				
-				if (!playerTurn) {
-					// Incorrect turn / not this player's turn
-					throw new DotsServiceException("422", null);
-				}
-				
-				Game game = new Game(gameId, null, null);
-				fillBoard(game);
-				
-				if (moveType.equals("HOR")) {
-					addHorizontalMove(row, col, game, playerId, playerOneType);
-				} else {
-					addVerticalMove(row, col, game, playerId, playerOneType);
-				}
+		Game game = findGame(Integer.valueOf(gameId));
+		if (game == null) {
+			// Invalid Game Id
+			throw DotsServiceException.NOT_FOUND;
+		}
+		
+		synchronized (game) {
+			checkSaved(game);
+			if (!game.getState().equals("IN_PROGRESS")) {
+				// Illegal Move.
+				throw DotsServiceException.ILLEGAL_MOVE;
+			}
+			
+			Player player = game.getPlayer(String.valueOf(playerId));
+			if (player == null) {
+				// Invalid Player Id
+				throw DotsServiceException.NOT_FOUND;
+			}
+			
+			if (!player.getType().equals(game.getWhoseTurn())) {
+				// Incorrect turn / not this player's turn
+				throw DotsServiceException.ILLEGAL_MOVE;
+			}
+			
+			if (moveType.equals("HOR")) {
+				addHorizontalMove(row, col, game, player);
 			} else {
-				// Invalid Game Id
-				throw new DotsServiceException("404", null);
+				addVerticalMove(row, col, game, player);
+			}
+		}
+	}
+	
+	/**
+	 * This method plays a list of moves by one player, in order, such as
+	 * a chain of captures. The whole list is first tried on a copy of the
+	 * game, every move against the board the moves before it left, all
+	 * while the game is locked. If a move is out of turn or illegal none
+	 * of the moves are played. With "partial": true in the body the moves
+	 * before it are played instead. The moves that are played are handed
+	 * to the repository together, so they are stored as one change.
+	 * @param gameId The game id
+	 * @param body The json request body, with playerId, moves and an
+	 * 		  optional partial flag, each move having a type ("HOR" or
+	 * 		  "VERT"), row and col
+	 * @return the number of moves applied, the game's version and state
+	 * 		   after them and, if a move was turned down, its index
+	 * @throws DotsServiceException
+	 */
+	public Map<String, Object> validateMoves(String gameId, String body) 
+			throws DotsServiceException {
+		// Get body info
+		JsonObject json = null;
+		try {
+			json = JsonTransformer.parseObject(body);
+		} catch (Exception ex) {
+			// Bad parameters
+			throw DotsServiceException.BAD_REQUEST;
+		}
+		
+		if (json == null || gameId == null || gameId.equals("null") || !isNumeric(gameId) || 
+				!json.has("playerId") || !json.has("moves") || !json.get("moves").isJsonArray()) {
+			// Bad parameters
+			throw DotsServiceException.BAD_REQUEST;
+		}
+		
+		JsonArray moves = json.getAsJsonArray("moves");
+		if (moves.size() == 0) {
+			throw DotsServiceException.BAD_REQUEST;
+		}
+		
+		// Every move is read before any is played
+		String[] types = new String[moves.size()];
+		int[] rows = new int[moves.size()];
+		int[] cols = new int[moves.size()];
+		boolean partial;
+		try {
+			partial = json.has("partial") && json.get("partial").getAsBoolean();
+			for (int i = 0; i < types.length; i++) {
+				JsonObject move = moves.get(i).getAsJsonObject();
+				types[i] = move.get("type").getAsString();
+				rows[i] = move.get("row").getAsInt();
+				cols[i] = move.get("col").getAsInt();
+				if (!types[i].equals("HOR") && !types[i].equals("VERT")) {
+					throw DotsServiceException.BAD_REQUEST;
+				}
+			}
+		} catch (RuntimeException ex) {
+			// Bad parameters
+			throw DotsServiceException.BAD_REQUEST;
+		}
+		
+		String playerIdString = null;
+		if (!json.get("playerId").isJsonNull()) {
+			playerIdString = json.get("playerId").getAsString();
+		}
+		
+		if (playerIdString == null || !isNumeric(playerIdString)) {
+			// Invalid Player Id
+			throw DotsServiceException.NOT_FOUND;
+		}
+		
+		// Get the game
+		Game game = findGame(Integer.valueOf(gameId));
+		if (game == null) {
+			// Invalid Game Id
+			throw DotsServiceException.NOT_FOUND;
+		}
+		
+		Map<String, Object> result = new HashMap<>();
+		synchronized (game) {
+			checkSaved(game);
+			Player player = game.getPlayer(String.valueOf(Integer.valueOf(playerIdString)));
+			if (player == null) {
+				// Invalid Player Id
+				throw DotsServiceException.NOT_FOUND;
+			}
+			
+			// Tried on a copy first, so a bad move leaves the game untouched
+			Game scratch = game.copy();
+			int legal = 0;
+			while (legal < types.length && scratch.getState().equals("IN_PROGRESS") 
+					&& player.getType().equals(scratch.getWhoseTurn()) 
+					&& scratch.isOpenLine(types[legal], rows[legal], cols[legal])) {
+				scratch.play(types[legal], rows[legal], cols[legal], player.getType());
+				legal++;
+			}
+			if (legal < types.length) {
+				// Incorrect turn or illegal move
+				result.put("stoppedAt", legal);
+			}
+			
+			List<GameRepository.PlayedMove> played = new ArrayList<>();
+			int count = legal == types.length || partial ? legal : 0;
+			for (int i = 0; i < count; i++) {
+				int winBoxes = playMove(types[i], rows[i], cols[i], game, player);
+				played.add(new GameRepository.PlayedMove(types[i], rows[i], cols[i], winBoxes));
 			}
+			if (!played.isEmpty()) {
+				repository.addMoves(game, player, played);
+			}
+			
+			result.put("applied", played.size());
+			result.put("version", game.getVersion());
+			result.put("state", new GameState(game));
 		}
+		return result;
 	}
 	
 	/**
@@ -338,22 +844,21 @@ public class DotsService {
 	 * @param row the row
 	 * @param col the col
 	 * @param game the game object
-	 * @param playerId the player's id
-	 * @param playerOneType the color of the player
+	 * @param player the player
 	 * @throws DotsServiceException
 	 */
-	private void addHorizontalMove(int row, int col, Game game, int playerId, String playerOneType) 
+	private void addHorizontalMove(int row, int col, Game game, Player player) 
 			throws DotsServiceException {
-		if (row >= 0 && row < GRID_UPPER_SIZE && col >= 0 && col < GRID_MID_SIZE) {
-			if (game.getHorizontalGrid()[row][col]) {
+		if (row >= 0 && row <= game.getRows() && col >= 0 && col < game.getCols()) {
+			if (game.isHorizontalFilled(row, col)) {
 				// Illegal Move.
-				throw new DotsServiceException("422", null);
+				throw DotsServiceException.ILLEGAL_MOVE;
 			} else {
-				addMove("HOR", row, col, game, playerId, playerOneType);
+				addMove("HOR", row, col, game, player);
 			}
 		} else {
 			// Illegal Move.
-			throw new DotsServiceException("422", null);
+			throw DotsServiceException.ILLEGAL_MOVE;
 		}
 	}
 	
@@ -362,551 +867,533 @@ public class DotsService {
 	 * @param row the row
 	 * @param col the col
 	 * @param game the game object
-	 * @param playerId the player's id
-	 * @param playerOneType the color of the player
+	 * @param player the player
 	 * @throws DotsServiceException
 	 */
-	private void addVerticalMove(int row, int col, Game game, int playerId, String playerOneType) 
+	private void addVerticalMove(int row, int col, Game game, Player player) 
 			throws DotsServiceException {
-		if (row >= 0 && row < GRID_MID_SIZE && col >= 0 && col < GRID_UPPER_SIZE) {
-			if (game.getVerticalGrid()[row][col]) {
+		if (row >= 0 && row < game.getRows() && col >= 0 && col <= game.getCols()) {
+			if (game.isVerticalFilled(row, col)) {
 				// Illegal Move.
-				throw new DotsServiceException("422", null);
+				throw DotsServiceException.ILLEGAL_MOVE;
 			} else {
-				addMove("VERT", row, col, game, playerId, playerOneType);
+				addMove("VERT", row, col, game, player);
 			}
 		} else {
 			// Illegal Move.
-			throw new DotsServiceException("422", null);
+			throw DotsServiceException.ILLEGAL_MOVE;
 		}
 	}
 	
 	/**
-	 * This method checks if it is a specific player's turn.
-	 * @param playerId the player id
+	 * This method finds a game by its id. Games that are not in memory yet
+	 * are loaded from the repository once and kept from then on. Requests
+	 * that ask for the same unloaded game at once wait for one load
+	 * instead of each reading the game, while games on other load locks
+	 * load in parallel.
 	 * @param gameId the game id
-	 * @param isPlayerRed is the player red
-	 * @return true if it is the player's turn, false otherwise
+	 * @return the game, or null if there is no game with that id
 	 * @throws DotsServiceException
 	 */
-	private boolean isPlayersTurn(int playerId, String gameId, boolean isPlayerRed) 
-			throws DotsServiceException {
-		String sql = "SELECT * FROM moves " +
-					 " 		   WHERE game_id = :gameId " +
-					 "		   ORDER BY time DESC " +
-					 "		   LIMIT 1;";
-		
-		try (Connection conn = database.open()) {
-			Table movesTable = conn.createQuery(sql)
-					  .addParameter("gameId", Integer.valueOf(gameId))
-					  .executeAndFetchTable();
-			if (movesTable.rows().isEmpty()) {
-				return isPlayerRed;
-			} else {
-				Row move = movesTable.rows().get(0);
-				if (playerId == move.getInteger("player_id") && move.getInteger("won_box") == 1) {
-					// Player played last, they won a box.
-					return true;
-				} else if (playerId != move.getInteger("player_id") && move.getInteger("won_box") == 1) {
-					// Other player played last, they won a box.
-					return false;
-				} else if (playerId == move.getInteger("player_id")){
-					// Player played last, did not win a box.
-					return false;
-				} else if (playerId != move.getInteger("player_id")) {
-					// Other player played last, did not win a box.
-					return true;
+	private Game findGame(int gameId) throws DotsServiceException {
+		Game game = games.get(gameId);
+		if (game != null) {
+			return game;
+		}
+		
+		synchronized (loadLocks[gameId & (LOAD_LOCK_STRIPES - 1)]) {
+			game = games.get(gameId);
+			if (game == null) {
+				game = repository.loadGame(gameId);
+				if (game != null) {
+					games.put(gameId, game);
+					responseCache.track(gameId);
 				}
 			}
-		} catch (Exception ex) {
-			logger.error("DotsService.isPlayerTurn: Failed to determine turn", ex);
-			throw new DotsServiceException("DotsService.isPlayerTurn: Failed to determine turn", ex);
+		}
+		return game;
+	}
+	
+	/**
+	 * This method gets the current board.
+	 * @param gameId the game id
+	 * @return all the board information
+	 * @throws DotsServiceException
+	 */
+	public BoardView getBoard(String gameId) throws DotsServiceException {
+		if (gameId == null || gameId.equals("null") || !isNumeric(gameId)) {
+			// Bad game parameter
+			throw DotsServiceException.BAD_REQUEST;
 		}
 		
-		return false;
+		// Get the game
+		Game game = findGame(Integer.valueOf(gameId));
+		if (game == null) {
+			throw DotsServiceException.NOT_FOUND;
+		}
+		
+		synchronized (game) {
+			return BoardView.of(game);
+		}
 	}
 	
 	/**
-	 * This method gets the current board and puts the information in a hash map.
+	 * This method gets only the lines and boxes that changed after the given
+	 * version, together with the version they bring the client up to. If the
+	 * version is unknown or so old that most of the board changed since,
+	 * the whole board is sent instead and "full" is true.
 	 * @param gameId the game id
-	 * @return a hash map of all the board information
+	 * @param sinceVersion the version the client already has
+	 * @return the changed board information
 	 * @throws DotsServiceException
 	 */
-	public Map<String, Object> getBoard(String gameId) throws DotsServiceException {
+	public BoardView getBoard(String gameId, long sinceVersion) throws DotsServiceException {
 		if (gameId == null || gameId.equals("null") || !isNumeric(gameId)) {
 			// Bad game parameter
-			throw new DotsServiceException("400", null);
+			throw DotsServiceException.BAD_REQUEST;
 		}
 		
-		Map<String, Object> boardMap = new HashMap<>();
+		// Get the game
+		Game game = findGame(Integer.valueOf(gameId));
+		if (game == null) {
+			throw DotsServiceException.NOT_FOUND;
+		}
 		
-		List<Map<String, Object> > horLines = new ArrayList<>();
-		List<Map<String, Object> > vertLines = new ArrayList<>();
-		List<Map<String, Object> > boxes = new ArrayList<>();
+		synchronized (game) {
+			return BoardView.since(game, sinceVersion).withVersion(sinceVersion);
+		}
+	}
+	
+	/**
+	 * This method gives the rendered JSON of a game's board, state or
+	 * snapshot. Every reader of the same version gets the same bytes;
+	 * the game is only locked and serialized again after it changes.
+	 * @param gameId the game id
+	 * @param view which response to render
+	 * @return the rendered body and the version it belongs to
+	 * @throws DotsServiceException
+	 */
+	public ResponseCache.Body render(String gameId, ResponseCache.View view) throws DotsServiceException {
+		if (gameId == null || gameId.equals("null") || !isNumeric(gameId)) {
+			// Bad game parameter
+			throw DotsServiceException.BAD_REQUEST;
+		}
 		
 		// Get the game
-		String gameSql = "SELECT * FROM game g " + 
-						 " 		   WHERE g.id = :gameId;";
-		try (Connection conn = database.open()) {
-			List<Row> gameRows = conn.createQuery(gameSql)
-									  .addParameter("gameId", Integer.valueOf(gameId))
-									  .executeAndFetchTable()
-									  .rows();
-			if (!gameRows.isEmpty()) {
-				Game game = new Game(gameId, null, null);
-				fillBoard(game);
-				
-				boolean[][] horGrid = game.getHorizontalGrid();
-				boolean[][] vertGrid = game.getVerticalGrid();
-				String[][] gameBoxes = game.getBoxes();
-				
-				for (int i = 0; i < horGrid.length; i++) {
-					for (int j = 0; j < horGrid[0].length; j++) {
-						boolean filled = horGrid[i][j];
-						Map<String, Object> tempMap = new HashMap<>();
-						tempMap.put("row", i);
-						tempMap.put("col", j);
-						tempMap.put("filled", filled);
-						horLines.add(tempMap);
-					}
-				}
-				boardMap.put("horizontalLines", horLines);
-				
-				for (int i = 0; i < vertGrid.length; i++) {
-					for (int j = 0; j < vertGrid[0].length; j++) {
-						boolean filled = vertGrid[i][j];
-						Map<String, Object> tempMap = new HashMap<>();
-						tempMap.put("row", i);
-						tempMap.put("col", j);
-						tempMap.put("filled", filled);
-						vertLines.add(tempMap);
-					}
-				}
-				boardMap.put("verticalLines", vertLines);
-				
-				for (int i = 0; i < gameBoxes.length; i++) {
-					for (int j = 0; j < gameBoxes[0].length; j++) {
-						String color = gameBoxes[i][j];
-						Map<String, Object> tempMap = new HashMap<>();
-						tempMap.put("row", i);
-						tempMap.put("col", j);
-						
-						if (color != null) {
-							tempMap.put("owner", color);
-						} else {
-							tempMap.put("owner", "NONE");
-						}
-						
-						boxes.add(tempMap);
-					}
-				}
-				boardMap.put("boxes", boxes);
-				
-				return boardMap;
+		int id = Integer.valueOf(gameId);
+		Game game = findGame(id);
+		if (game == null) {
+			throw DotsServiceException.NOT_FOUND;
+		}
+		
+		Object model;
+		long version;
+		synchronized (game) {
+			version = game.getVersion();
+			ResponseCache.Body body = responseCache.get(id, view, version);
+			if (body != null) {
+				return body;
+			}
+			
+			if (view == ResponseCache.View.BOARD) {
+				model = BoardView.of(game);
+			} else if (view == ResponseCache.View.STATE) {
+				model = new GameState(game);
 			} else {
-				throw new DotsServiceException("404", null);
+				model = snapshotOf(game, -1);
 			}
 		}
+		
+		// Serialize outside the lock, the model is a copy
+		ResponseCache.Body body = new ResponseCache.Body(version, 
+				JsonTransformer.GSON.toJson(model).getBytes(StandardCharsets.UTF_8));
+		responseCache.put(id, view, body);
+		return body;
 	}
 	
 	/**
-	 * This method gives the state of the game at any moment.
+	 * This method gives the version of a game. It only reads the game
+	 * kept in memory, so it is cheap enough to call before every read.
 	 * @param gameId the game id
-	 * @return a map of the game state information
+	 * @return the game's version
 	 * @throws DotsServiceException
 	 */
-	public Map<String, Object> getGameState(String gameId) throws DotsServiceException {
+	public long getVersion(String gameId) throws DotsServiceException {
 		if (gameId == null || gameId.equals("null") || !isNumeric(gameId)) {
 			// Bad game parameter
-			throw new DotsServiceException("400", null);
+			throw DotsServiceException.BAD_REQUEST;
 		}
 		
-		Map<String, Object> stateMap = new HashMap<>();
+		// Get the game
+		Game game = findGame(Integer.valueOf(gameId));
+		if (game == null) {
+			throw DotsServiceException.NOT_FOUND;
+		}
+		
+		synchronized (game) {
+			return game.getVersion();
+		}
+	}
+	
+	/**
+	 * This method gets the current board in the packed format. The lines and
+	 * boxes are copied straight from the game's bitboards and sent as base64
+	 * strings, where bit i of the decoded bytes is bit i % 8 of byte i / 8:
+	 * "horizontalLines" has bit row * cols + col set for every filled
+	 * horizontal line, "verticalLines" bit row * (cols + 1) + col for every
+	 * filled vertical line, "boxes" bit row * cols + col for every won box
+	 * and "blueBoxes" the same for the boxes blue won.
+	 * @param gameId the game id
+	 * @return a hash map of the packed board
+	 * @throws DotsServiceException
+	 */
+	public Map<String, Object> getPackedBoard(String gameId) throws DotsServiceException {
+		if (gameId == null || gameId.equals("null") || !isNumeric(gameId)) {
+			// Bad game parameter
+			throw DotsServiceException.BAD_REQUEST;
+		}
 		
 		// Get the game
-		String gameSql = "SELECT * FROM game g " + 
-						 " 		   WHERE g.id = :gameId;";
-		
-		try (Connection conn = database.open()) {
-			List<Row> gameRows = conn.createQuery(gameSql)
-								  .addParameter("gameId", Integer.valueOf(gameId))
-								  .executeAndFetchTable()
-								  .rows();
-			if (!gameRows.isEmpty()) {
-				Row gameRow = gameRows.get(0);
-				
-				stateMap.put("state", gameRow.getString("state"));
-				
-				String playerSql = "SELECT * FROM player " +
-									"		  WHERE id = :id;";
-				List<Row> playerOneRows = conn.createQuery(playerSql)
-											  .addParameter("id", gameRow.getInteger("player_one_id"))
-											  .executeAndFetchTable()
-											  .rows();
-				List<Row> playerTwoRows = conn.createQuery(playerSql)
-						  .addParameter("id", gameRow.getInteger("player_two_id"))
-						  .executeAndFetchTable()
-						  .rows();
-				
-				if (!playerOneRows.isEmpty()) {
-					Row playerOne = playerOneRows.get(0);
-					boolean isPlayerTurn = false;
-					if (playerOne.getString("type").equals("RED")) {
-						stateMap.put("redScore", playerOne.getInteger("score"));
-						isPlayerTurn = isPlayersTurn(playerOne.getInteger("id"), gameId, true);
-						stateMap.put("whoseTurn", isPlayerTurn ? "RED" : "BLUE");
-					} else {
-						stateMap.put("blueScore", playerOne.getInteger("score"));
-						isPlayerTurn = isPlayersTurn(playerOne.getInteger("id"), gameId, false);
-						stateMap.put("whoseTurn", isPlayerTurn ? "BLUE" : "RED");
-					}
-				}
-				
-				if (!playerTwoRows.isEmpty()) {
-					Row playerTwo = playerTwoRows.get(0);
-					if (playerTwo.getString("type").equals("RED")) {
-						stateMap.put("redScore", playerTwo.getInteger("score"));
-					} else {
-						stateMap.put("blueScore", playerTwo.getInteger("score"));
-					}
-				}
-				
-				if (gameRow.getString("state").equals("FINISHED")) {
-					stateMap.put("whoseTurn", "FINISHED");
-				}
-				
-				return stateMap;
-			} else {
-				throw new DotsServiceException("404", null);
-			}
+		Game game = findGame(Integer.valueOf(gameId));
+		if (game == null) {
+			throw DotsServiceException.NOT_FOUND;
+		}
+		
+		Base64.Encoder base64 = Base64.getEncoder();
+		Map<String, Object> boardMap = new HashMap<>();
+		synchronized (game) {
+			boardMap.put("format", "packed");
+			boardMap.put("version", game.getVersion());
+			boardMap.put("rows", game.getRows());
+			boardMap.put("cols", game.getCols());
+			boardMap.put("horizontalLines", base64.encodeToString(game.packHorizontalLines()));
+			boardMap.put("verticalLines", base64.encodeToString(game.packVerticalLines()));
+			boardMap.put("boxes", base64.encodeToString(game.packWonBoxes()));
+			boardMap.put("blueBoxes", base64.encodeToString(game.packBlueBoxes()));
 		}
+		return boardMap;
 	}
 	
 	/**
-	 * This method actually adds the move to the database and updates the database
-	 * if boxes are won.
-	 * 
-	 * @param type the type of move
-	 * @param row the row
-	 * @param col the col
-	 * @param game the game object
-	 * @param playerId the player id
-	 * @param playerType the player's color
+	 * This method gives the state of the game at any moment.
+	 * @param gameId the game id
+	 * @return the game state information
 	 * @throws DotsServiceException
 	 */
-	private void addMove(String type, int row, int col, Game game, int playerId, String playerType) 
-			throws DotsServiceException {
-		// Create move
-		String createMoveSql = "INSERT INTO moves (game_id, player_id, type, row, col, won_box) " +
-							   "  			VALUES (:gameId, :playerId, :type, :row, :col, :wonBox);";
-		
-		Map<String, Integer> winBoxes = willWinBox(game, type, row, col);
-		try (Connection conn = database.open()) {
-			if (winBoxes == null) {
-				// Did not win boxes 
-				conn.createQuery(createMoveSql)
-					.addParameter("gameId", Integer.valueOf(game.getId()))
-					.addParameter("playerId", playerId)
-					.addParameter("type", type)
-					.addParameter("row", row)
-					.addParameter("col", col)
-					.addParameter("wonBox", 0)
-					.executeUpdate();
-			} else {
-				// Won either 1 or 2 boxes
-				conn.createQuery(createMoveSql)
-					.addParameter("gameId", Integer.valueOf(game.getId()))
-					.addParameter("playerId", playerId)
-					.addParameter("type", type)
-					.addParameter("row", row)
-					.addParameter("col", col)
-					.addParameter("wonBox", 1)
-					.executeUpdate();
-				
-				String boxSql = "INSERT INTO blocks (game_id, color, row, col) " +
-								" 			 VALUES (:gameId, :color, :row, :col);";	
-				
-				String scoreSql = "UPDATE player SET score = score + :score " + 
-						   				   "			WHERE id = :id;";
-				
-				conn.createQuery(boxSql)
-					.addParameter("gameId", game.getId())
-					.addParameter("color", playerType)
-					.addParameter("row", winBoxes.get("row1"))
-					.addParameter("col", winBoxes.get("col1"))
-					.executeUpdate();
-				
-				if (winBoxes.size() == 4) {
-					conn.createQuery(boxSql)
-						.addParameter("gameId", game.getId())
-						.addParameter("color", playerType)
-						.addParameter("row", winBoxes.get("row2"))
-						.addParameter("col", winBoxes.get("col2"))
-						.executeUpdate();
-					conn.createQuery(scoreSql)
-						.addParameter("score", 2)
-						.addParameter("id", playerId)
-						.executeUpdate();
-				} else {
-					conn.createQuery(scoreSql)
-						.addParameter("score", 1)
-						.addParameter("id", playerId)
-						.executeUpdate();
-				}
-				
-				// Check if the move ended the game.
-				String gameBlocksSql = "SELECT * FROM blocks " +
-						 			"		   WHERE game_id = :gameId;";
-				List<Row> gameBlocks = conn.createQuery(gameBlocksSql)
-											.addParameter("gameId", Integer.valueOf(game.getId()))
-											.executeAndFetchTable()
-											.rows();
-				if (gameBlocks.size() == 16) {
-					String gameEndSql = "UPDATE game SET state = 'FINISHED' " + 
-							   			"			WHERE id = :id;";
-					conn.createQuery(gameEndSql)
-						.addParameter("id", Integer.valueOf(game.getId()))
-						.executeUpdate();
-				}
-			}
-		} catch (Exception ex) {
-			logger.error("DotsService.addMove: Failed to add move", ex);
-			throw new DotsServiceException("DotsService.addMove: Failed to add move", ex);
+	public GameState getGameState(String gameId) throws DotsServiceException {
+		if (gameId == null || gameId.equals("null") || !isNumeric(gameId)) {
+			// Bad game parameter
+			throw DotsServiceException.BAD_REQUEST;
 		}
 		
+		// Get the game
+		Game game = findGame(Integer.valueOf(gameId));
+		if (game == null) {
+			throw DotsServiceException.NOT_FOUND;
+		}
+		
+		synchronized (game) {
+			return new GameState(game);
+		}
 	}
 	
 	/**
-	 * This method checks if a move will win a box(es). It fills a map with rows and cols
-	 * if the move will win a box(es).
-	 *  
-	 * @param game the game object
-	 * @param type the type of move
-	 * @param row the row
-	 * @param col the col
-	 * @return a map of row and cols if the move will win a box, null otherwise
-	 */
-	private Map<String, Integer> willWinBox(Game game, String type, int row, int col) {
-		Map<String, Integer> box = new HashMap<>();
-		boolean[][] horGrid = game.getHorizontalGrid();
-		boolean[][] vertGrid = game.getVerticalGrid();
-		if (type.equals("HOR")) {
-			if (row == 0) {
-				// Only check bottom
-				boolean botResult = willWinBotHorizontal(horGrid, vertGrid, row, col);
-				if (botResult) {
-					box.put("row1", row);
-					box.put("col1", col);
-					return box;
-				} else {
-					return null;
-				}
-			} else if (row == horGrid[0].length) {
-				// Only check top
-				boolean topResult = willWinTopHorizontal(horGrid, vertGrid, row, col);
-				if (topResult) {
-					box.put("row1", row - 1);
-					box.put("col1", col);
-					return box;
-				} else {
-					return null;
-				}
-			} else {
-				// Check top and bottom
-				boolean botResult = willWinBotHorizontal(horGrid, vertGrid, row, col);
-				boolean topResult = willWinTopHorizontal(horGrid, vertGrid, row, col);
-				
-				if (botResult && topResult) {
-					// Will win 2 boxes
-					box.put("row1", row);
-					box.put("col1", col);
-					box.put("row2", row - 1);
-					box.put("col2", col);
-				} else if (botResult) {
-					box.put("row1", row);
-					box.put("col1", col);
-				} else if (topResult) {
-					box.put("row1", row - 1);
-					box.put("col1", col);
-				} else {
-					box = null;
-				}
-				return box;
+	 * This method gives a game's version, state and board together if the
+	 * game has changed since the given version. The board only holds what
+	 * changed since that version unless "full" is true. It never waits, so
+	 * a listener can call it from gameChanged to read the board as of the
+	 * change it is told about.
+	 * @param gameId the game id
+	 * @param sinceVersion the last version the caller has seen, or -1 for none
+	 * @return a map with "version", "state", "board" and "full", or null
+	 * 		   if the game has not changed since that version
+	 * @throws DotsServiceException
+	 */
+	public Map<String, Object> getUpdate(String gameId, long sinceVersion) throws DotsServiceException {
+		if (gameId == null || gameId.equals("null") || !isNumeric(gameId)) {
+			// Bad game parameter
+			throw DotsServiceException.BAD_REQUEST;
+		}
+		
+		// Get the game
+		Game game = findGame(Integer.valueOf(gameId));
+		if (game == null) {
+			throw DotsServiceException.NOT_FOUND;
+		}
+		
+		synchronized (game) {
+			return game.getVersion() > sinceVersion ? snapshotOf(game, sinceVersion) : null;
+		}
+	}
+	
+	/**
+	 * This method subscribes a listener to a game. The listener is first
+	 * given the game's version, state and board, and from then on every
+	 * change to the game until it is unsubscribed or the game is gone.
+	 * @param gameId the game id
+	 * @param listener the listener
+	 * @throws DotsServiceException
+	 */
+	public void subscribe(String gameId, GameListener listener) throws DotsServiceException {
+		subscribe(gameId, -1, listener);
+	}
+	
+	/**
+	 * This method subscribes a listener to a game it has already seen up
+	 * to a version. The listener is first given the game's version, state
+	 * and the board since that version, if the game has changed since, and
+	 * from then on every change to the game until it is unsubscribed or
+	 * the game is gone.
+	 * @param gameId the game id
+	 * @param sinceVersion the last version the listener has seen, or -1 for none
+	 * @param listener the listener
+	 * @throws DotsServiceException 503 once stopUpdates has been called
+	 */
+	public void subscribe(String gameId, long sinceVersion, GameListener listener) throws DotsServiceException {
+		if (stopping) {
+			// Server is stopping
+			throw DotsServiceException.STOPPING;
+		}
+		if (gameId == null || gameId.equals("null") || !isNumeric(gameId)) {
+			// Bad game parameter
+			throw DotsServiceException.BAD_REQUEST;
+		}
+		
+		// Get the game
+		Game game = findGame(Integer.valueOf(gameId));
+		if (game == null) {
+			throw DotsServiceException.NOT_FOUND;
+		}
+		
+		synchronized (game) {
+			if (games.get(Integer.valueOf(gameId)) != game) {
+				// Archived or deleted since it was found
+				throw DotsServiceException.GONE;
 			}
-		} else {
-			if (col == 0) {
-				// Only check right
-				boolean rightResult = willWinRightVertical(horGrid, vertGrid, row, col);
-				if (rightResult) {
-					box.put("row1", row);
-					box.put("col1", col);
-					return box;
-				} else {
-					return null;
+			listeners.compute(Integer.valueOf(gameId), (id, subscribed) -> {
+				if (subscribed == null) {
+					subscribed = ConcurrentHashMap.newKeySet();
 				}
-			} else if (col == vertGrid.length) {
-				// Only check left
-				boolean leftResult = willWinLeftVertical(horGrid, vertGrid, row, col);
-				if (leftResult) {
-					box.put("row1", row);
-					box.put("col1", col - 1);
-					return box;
-				} else {
-					return null;
-				}
-			} else {
-				// Check both left and right
-				boolean rightResult = willWinRightVertical(horGrid, vertGrid, row, col);
-				boolean leftResult = willWinLeftVertical(horGrid, vertGrid, row, col);
-				
-				if (rightResult && leftResult) {
-					box.put("row1", row);
-					box.put("col1", col);
-					box.put("row2", row);
-					box.put("col2", col - 1);
-				} else if (rightResult) {
-					box.put("row1", row);
-					box.put("col1", col);
-				} else if (leftResult) {
-					box.put("row1", row);
-					box.put("col1", col - 1);
-				} else {
-					box = null;
-				}
-				return box;
+				subscribed.add(listener);
+				return subscribed;
+			});
+			if (game.getVersion() > sinceVersion) {
+				listener.gameChanged(snapshotOf(game, sinceVersion));
 			}
 		}
 	}
 	
 	/**
-	 * This method checks if a vertical move will win a box to its left
-	 * @param horGrid the horizontal grid
-	 * @param vertGrid the vertical grid
-	 * @param row the row
-	 * @param col the col
-	 * @return true if won, false otherwise
+	 * This method stops telling a listener about a game.
+	 * @param gameId the game id
+	 * @param listener the listener
 	 */
-	private boolean willWinLeftVertical(boolean[][] horGrid, boolean[][] vertGrid, int row, int col) {
-		boolean topHor = horGrid[row][col - 1];
-		boolean leftVert = vertGrid[row][col - 1];
-		boolean botHor = horGrid[row + 1][col - 1];
-		return topHor && leftVert && botHor;
+	public void unsubscribe(String gameId, GameListener listener) {
+		if (gameId == null || !isNumeric(gameId)) {
+			return;
+		}
+		listeners.computeIfPresent(Integer.valueOf(gameId), (id, subscribed) -> {
+			subscribed.remove(listener);
+			return subscribed.isEmpty() ? null : subscribed;
+		});
 	}
 	
 	/**
-	 * The method checks if a vertical move will win a box to its right
-	 * @param horGrid the horizontal grid
-	 * @param vertGrid the vertical grid
-	 * @param row the row
-	 * @param col the col
-	 * @return true if won, false otherwise
+	 * This method puts the version, state and board of a game in a hash map.
+	 * The caller must hold the game's lock.
+	 * @param game the game object
+	 * @param sinceVersion the version the caller already has, or -1 for the whole board
+	 * @return a map with "version", "state", "board" and "full", which
+	 * 		   is false when the board only holds what changed since sinceVersion
 	 */
-	private boolean willWinRightVertical(boolean[][] horGrid, boolean[][] vertGrid, int row, int col) {
-		boolean topHor = horGrid[row][col];
-		boolean rightVert = vertGrid[row][col + 1];
-		boolean botHor = horGrid[row + 1][col];
-		return topHor && rightVert && botHor;
+	private Map<String, Object> snapshotOf(Game game, long sinceVersion) {
+		BoardView board = BoardView.since(game, sinceVersion);
+		
+		Map<String, Object> update = new HashMap<>();
+		update.put("version", game.getVersion());
+		update.put("state", new GameState(game));
+		update.put("board", board);
+		update.put("full", board.isFull());
+		return update;
 	}
 	
 	/**
-	 * The method checks if a horizontal move will win a box below it
-	 * @param horGrid the horizontal grid
-	 * @param vertGrid the vertical grid
-	 * @param row the row
-	 * @param col the col
-	 * @return true if won, false otherwise
+	 * This method moves a game to its next version, records when it
+	 * changed, drops its cached responses and tells the game's listeners.
+	 * Listeners get the new version and state, plus the move if the change
+	 * was a move.
+	 * The caller must hold the game's lock.
+	 * @param game the game that changed
+	 * @param move the move that was played, or null
 	 */
-	private boolean willWinBotHorizontal(boolean[][] horGrid, boolean[][] vertGrid, int row, int col) {
-		boolean leftVert = vertGrid[row][col];
-		boolean lowerHor = horGrid[row + 1][col];
-		boolean rightVert = vertGrid[row][col + 1];
-		return leftVert && lowerHor && rightVert;
+	private void changed(Game game, Map<String, Object> move) {
+		game.setVersion(game.getVersion() + 1);
+		game.setUpdatedAt(System.currentTimeMillis());
+		responseCache.invalidate(Integer.valueOf(game.getId()));
+		
+		Set<GameListener> subscribed = listeners.get(Integer.valueOf(game.getId()));
+		if (subscribed == null || subscribed.isEmpty()) {
+			return;
+		}
+		
+		Map<String, Object> update = new HashMap<>();
+		update.put("version", game.getVersion());
+		update.put("state", new GameState(game));
+		if (move != null) {
+			update.put("move", move);
+		}
+		for (GameListener listener : subscribed) {
+			try {
+				listener.gameChanged(update);
+			} catch (RuntimeException ex) {
+				logger.error("DotsService.changed: Listener failed", ex);
+			}
+		}
 	}
 	
 	/**
-	 * The method checks if a horizontal move will win a box above it
-	 * @param horGrid the horizontal grid
-	 * @param vertGrid the vertical grid
+	 * This method turns away a change to a game whose earlier changes
+	 * could not be saved. The caller must hold the game's lock.
+	 * @param game the game object
+	 * @throws DotsServiceException if a change to the game was lost
+	 */
+	private void checkSaved(Game game) throws DotsServiceException {
+		if (repository.isFailed(Integer.valueOf(game.getId()))) {
+			throw new DotsServiceException("Game " + game.getId() + " could not be saved", null);
+		}
+	}
+	
+	/**
+	 * This method actually adds the move to the game, updates the game
+	 * if boxes are won, and hands it to the repository.
+	 * The caller must hold the game's lock.
+	 * 
+	 * @param type the type of move
 	 * @param row the row
 	 * @param col the col
-	 * @return true if won, false otherwise
+	 * @param game the game object
+	 * @param player the player
 	 */
-	private boolean willWinTopHorizontal(boolean[][] horGrid, boolean[][] vertGrid, int row, int col) {
-		boolean leftVert = vertGrid[row - 1][col];
-		boolean topHor = horGrid[row - 1][col];
-		boolean rightVert = vertGrid[row - 1][col + 1];
-		return leftVert && topHor && rightVert;
+	private void addMove(String type, int row, int col, Game game, Player player) {
+		int winBoxes = playMove(type, row, col, game, player);
+		repository.addMove(game, player, type, row, col, winBoxes);
 	}
 	
 	/**
-	 * This method fills the game board will all of the moves that have happened in the game
+	 * This method plays the move on the game and tells everyone about it,
+	 * without storing it. The caller must hold the game's lock.
+	 * 
+	 * @param type the type of move
+	 * @param row the row
+	 * @param col the col
 	 * @param game the game object
-	 * @return the game object with all of the arrays filled
-	 * @throws DotsServiceException
+	 * @param player the player
+	 * @return the boxes the move won, see Game.willWinHorizontal
 	 */
-	private Game fillBoard(Game game) throws DotsServiceException {
-		String sql = "SELECT * FROM blocks " +
-					 "		   WHERE game_id = :gameId;";
+	private int playMove(String type, int row, int col, Game game, Player player) {
+		int winBoxes = game.play(type, row, col, player.getType());
 		
-		try (Connection conn = database.open()) {
-			List<Row> gameTable = conn.createQuery(sql)
-								  .addParameter("gameId", Integer.valueOf(game.getId()))
-								  .executeAndFetchTable()
-								  .rows();
-			String[][] boxes = new String[4][4];
-			for (Row block : gameTable) {
-				boxes[block.getInteger("row")][block.getInteger("col")] = block.getString("color");
-			}
-			
-			game.setBoxes(boxes);
-			
-			String gridSql = "SELECT * FROM moves " +
-							 " 		   WHERE game_id = :gameId " +
-							 "		    AND type = :type;";
-			
-			List<Row> horizontalTable = conn.createQuery(gridSql)
-										.addParameter("gameId", Integer.valueOf(game.getId()))
-										.addParameter("type", "HOR")
-										.executeAndFetchTable()
-										.rows();
-			boolean[][] horGrid = new boolean[5][4];
-			for (Row row : horizontalTable) {
-				horGrid[row.getInteger("row")][row.getInteger("col")] = true;
-			}
-			
-			game.setHorizontalGrid(horGrid);
-	
-			List<Row> verticalTable = conn.createQuery(gridSql)
-										.addParameter("gameId", Integer.valueOf(game.getId()))
-										.addParameter("type", "VERT")
-										.executeAndFetchTable()
-										.rows();
-			boolean[][] vertGrid = new boolean[4][5];
-			for (Row row : verticalTable) {
-				vertGrid[row.getInteger("row")][row.getInteger("col")] = true;
-			}
-			
-			game.setVerticalGrid(vertGrid);
-	
-			return game;
-		} catch (Exception ex) {
-			logger.error("DotsService.fillBoard: Failed to fill board", ex);
-			throw new DotsServiceException("DotsService.fillBoard: Failed to fill board", ex);
-		}
+		Map<String, Object> move = new HashMap<>();
+		move.put("type", type);
+		move.put("row", row);
+		move.put("col", col);
+		move.put("playerType", player.getType());
+		changed(game, move);
+		return winBoxes;
 	}
 	
 	//-------------------------------//
 	// Helper Classes and Methods
 	//-------------------------------//
 	
+	/**
+	 * Why a request was turned down, with its HTTP status code.
+	 */
+	public enum Status {
+		BAD_REQUEST(400),
+		NOT_FOUND(404),
+		GONE(410),
+		ILLEGAL_MOVE(422),
+		ERROR(500),
+		STOPPING(503);
+		
+		private final int code;
+		
+		Status(int code) {
+			this.code = code;
+		}
+		
+		public int getCode() {
+			return code;
+		}
+	}
+	
 	/**
 	 * This a custom exception class.
+	 * 
+	 * Bad requests and illegal moves are thrown as the shared instances
+	 * below. They have no stack trace, so turning a request down costs
+	 * no more than returning. Other failures are new exceptions with
+	 * the ERROR status and their cause.
 	 * @author jsham2, Jeffrey Sham CS421
 	 *
 	 */
 	public static class DotsServiceException extends Exception {
+		public static final DotsServiceException BAD_REQUEST = new DotsServiceException(Status.BAD_REQUEST);
+		public static final DotsServiceException NOT_FOUND = new DotsServiceException(Status.NOT_FOUND);
+		public static final DotsServiceException GONE = new DotsServiceException(Status.GONE);
+		public static final DotsServiceException ILLEGAL_MOVE = new DotsServiceException(Status.ILLEGAL_MOVE);
+		public static final DotsServiceException STOPPING = new DotsServiceException(Status.STOPPING);
+		
+		private final Status status;
+		
 		public DotsServiceException(String message, Throwable cause) {
 			super(message, cause);
+			this.status = Status.ERROR;
+		}
+		
+		private DotsServiceException(Status status) {
+			// No stack trace and no suppressed exceptions, the instance is shared
+			super(String.valueOf(status.getCode()), null, false, false);
+			this.status = status;
+		}
+		
+		public Status getStatus() {
+			return status;
+		}
+	}
+	
+	/**
+	 * A game waiting in matchmake, or the place for one that is being
+	 * created. The game is set while the place is locked.
+	 */
+	private static class Waiting {
+		private Game game;
+		
+		Waiting(Game game) {
+			this.game = game;
+		}
+	}
+	
+	/**
+	 * Something that wants to hear about changes to a game, see subscribe.
+	 * It is called with the game's lock held, so it must not block.
+	 */
+	public interface GameListener {
+		void gameChanged(Map<String, Object> update);
+		
+		/**
+		 * This method is called once the game is archived or deleted and
+		 * dropped from memory. Nothing is sent to the listener after it.
+		 */
+		default void gameGone() {
+		}
+		
+		/**
+		 * This method is called once when the service stops sending changes
+		 * because the server is stopping.
+		 */
+		default void stopping() {
 		}
 	}
 	
@@ -2,25 +2,94 @@ package com.oose2016.jsham2.dots;
 
 /**
  * This the Game object for the dots game.
- * It holds most of the information (players and grid)
+ * It holds all of the information (players, grid, scores, turn and state)
+ * and is the resident copy of the game that the service plays moves against.
  * 
+ * The grid is kept as bitboards. Every line and every box is one bit in an
+ * array of longs: horizontal line (row, col) is bit row * cols + col,
+ * vertical line (row, col) is bit row * (cols + 1) + col and box (row, col)
+ * is bit row * cols + col. Box owners are two bitboards, one for boxes
+ * that have been won and one for the boxes won by blue. None of the grid
+ * methods allocate.
+ * 
+ * The game also keeps the order the lines were played in, so that the
+ * lines changed since an older version can be found (see getPlayedLine).
+ *
  * @author jsham2, Jeffrey Sham CS421
  */
 public class Game {
+	// Result of willWinHorizontal/willWinVertical when no box is won
+	public static final int NO_BOX = 0;
+	
 	private String id;
 	private Player playerOne;
 	private Player playerTwo;
-	private boolean[][] horizontalGrid;
-	private boolean[][] verticalGrid;
-	private String[][] boxes;
-	
+	private final int rows;
+	private final int cols;
+	private final long[] horizontalGrid;
+	private final long[] verticalGrid;
+	private final long[] wonBoxes;
+	private final long[] blueBoxes;
+	private final int[] playedLines;
+	private int filledLines;
+	private String state;
+	private String whoseTurn;
+	private int redScore;
+	private int blueScore;
+	private long version;
+	private long updatedAt;
+	// Read back from the archive, so it never changes and may be dropped
+	private boolean archived;
+	// Created by matchmake, so it may be handed to the next player to matchmake
+	private boolean matchmade;
+
 	public Game(String id, Player playerOne, Player playerTwo) {
+		this(id, playerOne, playerTwo, DotsService.DEFAULT_BOARD_SIZE, DotsService.DEFAULT_BOARD_SIZE);
+	}
+	
+	/**
+	 * This constructor makes a game with a board of the given size.
+	 * @param id the game id
+	 * @param playerOne the first player
+	 * @param playerTwo the second player
+	 * @param rows the number of rows of boxes
+	 * @param cols the number of columns of boxes
+	 */
+	public Game(String id, Player playerOne, Player playerTwo, int rows, int cols) {
 		this.id = id;
 		this.playerOne = playerOne;
 		this.playerTwo = playerTwo;
-		this.horizontalGrid = new boolean[5][4];
-		this.verticalGrid = new boolean[4][5];
-		this.boxes = new String[4][4];
+		this.rows = rows;
+		this.cols = cols;
+		this.horizontalGrid = new long[words((rows + 1) * cols)];
+		this.verticalGrid = new long[words(rows * (cols + 1))];
+		this.wonBoxes = new long[words(rows * cols)];
+		this.blueBoxes = new long[words(rows * cols)];
+		this.playedLines = new int[(rows + 1) * cols + rows * (cols + 1)];
+		this.state = "WAITING_TO_START";
+		this.whoseTurn = "RED";
+	}
+
+	/**
+	 * This method copies the game's board, scores, turn and state, so
+	 * moves can be tried on the copy without changing the game.
+	 * @return the copy
+	 */
+	public Game copy() {
+		Game copy = new Game(id, playerOne, playerTwo, rows, cols);
+		System.arraycopy(horizontalGrid, 0, copy.horizontalGrid, 0, horizontalGrid.length);
+		System.arraycopy(verticalGrid, 0, copy.verticalGrid, 0, verticalGrid.length);
+		System.arraycopy(wonBoxes, 0, copy.wonBoxes, 0, wonBoxes.length);
+		System.arraycopy(blueBoxes, 0, copy.blueBoxes, 0, blueBoxes.length);
+		System.arraycopy(playedLines, 0, copy.playedLines, 0, filledLines);
+		copy.filledLines = filledLines;
+		copy.state = state;
+		copy.whoseTurn = whoseTurn;
+		copy.redScore = redScore;
+		copy.blueScore = blueScore;
+		copy.version = version;
+		copy.updatedAt = updatedAt;
+		return copy;
 	}
 
 	public String getId() {
@@ -43,27 +112,424 @@ public class Game {
 		this.playerTwo = playerTwo;
 	}
 
-	public boolean[][] getHorizontalGrid() {
-		return horizontalGrid;
+	/**
+	 * This method finds the player in this game with the given id.
+	 * @param playerId the player id
+	 * @return the player, or null if the player is not in this game
+	 */
+	public Player getPlayer(String playerId) {
+		if (playerOne != null && playerOne.getId().equals(playerId)) {
+			return playerOne;
+		} else if (playerTwo != null && playerTwo.getId().equals(playerId)) {
+			return playerTwo;
+		}
+		return null;
+	}
+
+	/**
+	 * @return the number of rows of boxes
+	 */
+	public int getRows() {
+		return rows;
+	}
+	
+	/**
+	 * @return the number of columns of boxes
+	 */
+	public int getCols() {
+		return cols;
+	}
+	
+	public boolean isHorizontalFilled(int row, int col) {
+		return bit(horizontalGrid, row * cols + col) != 0;
+	}
+	
+	public void fillHorizontal(int row, int col) {
+		int line = row * cols + col;
+		if (set(horizontalGrid, line) != 0) {
+			playedLines[filledLines++] = line;
+		}
+	}
+	
+	public boolean isVerticalFilled(int row, int col) {
+		return bit(verticalGrid, row * (cols + 1) + col) != 0;
+	}
+	
+	public void fillVertical(int row, int col) {
+		int line = row * (cols + 1) + col;
+		if (set(verticalGrid, line) != 0) {
+			playedLines[filledLines++] = getHorizontalLineCount() + line;
+		}
+	}
+	
+	/**
+	 * @return the number of lines played so far, which is also the
+	 * 		   sequence number of the last move
+	 */
+	public int getFilledLines() {
+		return filledLines;
+	}
+	
+	/**
+	 * @return the number of horizontal lines on the board
+	 */
+	public int getHorizontalLineCount() {
+		return (rows + 1) * cols;
+	}
+	
+	/**
+	 * This method gives the line played by a move. Horizontal line (row, col)
+	 * is row * cols + col and vertical line (row, col) is
+	 * getHorizontalLineCount() + row * (cols + 1) + col.
+	 * @param seq the sequence number of the move, from 1 to getFilledLines()
+	 * @return the line
+	 */
+	public int getPlayedLine(int seq) {
+		return playedLines[seq - 1];
+	}
+	
+	/**
+	 * This method gives the owner of a box.
+	 * @param row the row
+	 * @param col the col
+	 * @return "RED" or "BLUE", or null if nobody has won the box
+	 */
+	public String getBoxOwner(int row, int col) {
+		int box = row * cols + col;
+		if (bit(wonBoxes, box) == 0) {
+			return null;
+		}
+		return bit(blueBoxes, box) != 0 ? "BLUE" : "RED";
+	}
+	
+	/**
+	 * This method gives a box to a player.
+	 * @param box the box index, row * cols + col
+	 * @param playerType the player's color
+	 */
+	public void claimBox(int box, String playerType) {
+		set(wonBoxes, box);
+		if (playerType.equals("BLUE")) {
+			set(blueBoxes, box);
+		}
+	}
+	
+	/**
+	 * This method checks if a horizontal line will win the box below it
+	 * and/or the box above it. The line itself does not have to be filled.
+	 * @param row the row
+	 * @param col the col
+	 * @return the won boxes encoded as an int (see firstBox, secondBox), 
+	 * 		   or NO_BOX if the line wins nothing
+	 */
+	public int willWinHorizontal(int row, int col) {
+		int vert = row * (cols + 1) + col;
+		
+		long below = 0;
+		if (row < rows) {
+			below = bit(horizontalGrid, (row + 1) * cols + col) 
+					& bit(verticalGrid, vert) & bit(verticalGrid, vert + 1);
+		}
+		
+		long above = 0;
+		if (row > 0) {
+			above = bit(horizontalGrid, (row - 1) * cols + col) 
+					& bit(verticalGrid, vert - cols - 1) & bit(verticalGrid, vert - cols);
+		}
+		
+		return encode(below, row * cols + col, above, (row - 1) * cols + col);
+	}
+	
+	/**
+	 * This method checks if a vertical line will win the box to its right
+	 * and/or the box to its left. The line itself does not have to be filled.
+	 * @param row the row
+	 * @param col the col
+	 * @return the won boxes encoded as an int (see firstBox, secondBox), 
+	 * 		   or NO_BOX if the line wins nothing
+	 */
+	public int willWinVertical(int row, int col) {
+		int hor = row * cols + col;
+		int vert = row * (cols + 1) + col;
+		
+		long right = 0;
+		if (col < cols) {
+			right = bit(horizontalGrid, hor) & bit(horizontalGrid, hor + cols) 
+					& bit(verticalGrid, vert + 1);
+		}
+		
+		long left = 0;
+		if (col > 0) {
+			left = bit(horizontalGrid, hor - 1) & bit(horizontalGrid, hor + cols - 1) 
+					& bit(verticalGrid, vert - 1);
+		}
+		
+		return encode(right, hor, left, hor - 1);
+	}
+	
+	/**
+	 * This method plays a line: it fills the line, gives the boxes it
+	 * closes to the player and moves the game on to the next turn, ending
+	 * it if every box is won. The line must be open, see isOpenLine.
+	 * @param type the type of move
+	 * @param row the row
+	 * @param col the col
+	 * @param playerType the player's color
+	 * @return the boxes the line won, see willWinHorizontal
+	 */
+	public int play(String type, int row, int col, String playerType) {
+		int winBoxes;
+		if (type.equals("HOR")) {
+			winBoxes = willWinHorizontal(row, col);
+			fillHorizontal(row, col);
+		} else {
+			winBoxes = willWinVertical(row, col);
+			fillVertical(row, col);
+		}
+		
+		int score = boxCount(winBoxes);
+		if (score == 0) {
+			// Did not win boxes, other player's turn
+			whoseTurn = playerType.equals("RED") ? "BLUE" : "RED";
+		} else {
+			// Won either 1 or 2 boxes, same player goes again
+			claimBox(firstBox(winBoxes), playerType);
+			if (score == 2) {
+				claimBox(secondBox(winBoxes), playerType);
+			}
+			
+			if (playerType.equals("RED")) {
+				redScore += score;
+			} else {
+				blueScore += score;
+			}
+		}
+		
+		// Check if the move ended the game.
+		if (getCapturedBoxes() == rows * cols) {
+			state = "FINISHED";
+		}
+		return winBoxes;
+	}
+	
+	/**
+	 * This method checks that a line is on the board and not filled yet.
+	 * @param type the type of move
+	 * @param row the row
+	 * @param col the col
+	 * @return true if the line can be played
+	 */
+	public boolean isOpenLine(String type, int row, int col) {
+		if (type.equals("HOR")) {
+			return row >= 0 && row <= rows && col >= 0 && col < cols
+					&& !isHorizontalFilled(row, col);
+		}
+		return row >= 0 && row < rows && col >= 0 && col <= cols
+				&& !isVerticalFilled(row, col);
+	}
+	
+	/**
+	 * @param result the result of willWinHorizontal/willWinVertical
+	 * @return the index of the first won box, or -1 if none
+	 */
+	public static int firstBox(int result) {
+		return (result & 0xFFFF) - 1;
+	}
+	
+	/**
+	 * @param result the result of willWinHorizontal/willWinVertical
+	 * @return the index of the second won box, or -1 if none
+	 */
+	public static int secondBox(int result) {
+		return (result >>> 16) - 1;
+	}
+	
+	/**
+	 * @param result the result of willWinHorizontal/willWinVertical
+	 * @return the number of boxes won, 0, 1 or 2
+	 */
+	public static int boxCount(int result) {
+		return (result == NO_BOX ? 0 : 1) + (result >>> 16 == 0 ? 0 : 1);
+	}
+	
+	/**
+	 * This method packs up to two won boxes into one int. Each box takes
+	 * 16 bits and is stored as index + 1 so that 0 means no box, which
+	 * limits a board to 65535 boxes (see DotsService.MAX_BOARD_SIZE).
+	 */
+	private static int encode(long firstWon, int firstBox, long secondWon, int secondBox) {
+		int first = (int) firstWon * (firstBox + 1);
+		int second = (int) secondWon * (secondBox + 1);
+		if (first == 0) {
+			return second;
+		}
+		return first | (second << 16);
+	}
+	
+	/**
+	 * @return a copy of the horizontal line bitboard
+	 */
+	public long[] copyHorizontalLines() {
+		return horizontalGrid.clone();
+	}
+	
+	/**
+	 * @return a copy of the vertical line bitboard
+	 */
+	public long[] copyVerticalLines() {
+		return verticalGrid.clone();
+	}
+	
+	/**
+	 * @return a copy of the bitboard of boxes that have been won
+	 */
+	public long[] copyWonBoxes() {
+		return wonBoxes.clone();
+	}
+	
+	/**
+	 * @return a copy of the bitboard of boxes won by blue
+	 */
+	public long[] copyBlueBoxes() {
+		return blueBoxes.clone();
+	}
+	
+	/**
+	 * @return the horizontal lines as packed bits, see pack
+	 */
+	public byte[] packHorizontalLines() {
+		return pack(horizontalGrid, getHorizontalLineCount());
+	}
+	
+	/**
+	 * @return the vertical lines as packed bits, see pack
+	 */
+	public byte[] packVerticalLines() {
+		return pack(verticalGrid, rows * (cols + 1));
+	}
+	
+	/**
+	 * @return the boxes that have been won as packed bits, see pack
+	 */
+	public byte[] packWonBoxes() {
+		return pack(wonBoxes, rows * cols);
+	}
+	
+	/**
+	 * @return the boxes won by blue as packed bits, see pack
+	 */
+	public byte[] packBlueBoxes() {
+		return pack(blueBoxes, rows * cols);
+	}
+	
+	/**
+	 * This method copies a bitboard into bytes, lowest bit first: bit i
+	 * is bit i % 8 of byte i / 8, so the bytes are the words in little-endian
+	 * order, cut off after the last byte that holds a bit of the board.
+	 * @param words the bitboard
+	 * @param bits the number of bits on the board
+	 * @return the packed bits
+	 */
+	private static byte[] pack(long[] words, int bits) {
+		byte[] bytes = new byte[(bits + 7) >>> 3];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) (words[i >>> 3] >>> ((i & 7) << 3));
+		}
+		return bytes;
+	}
+	
+	static int words(int bits) {
+		return (bits + 63) >>> 6;
+	}
+	
+	private static long bit(long[] words, int index) {
+		return (words[index >>> 6] >>> index) & 1L;
+	}
+	
+	/**
+	 * This method sets a bit.
+	 * @return 1 if the bit was not set before, 0 otherwise
+	 */
+	private static int set(long[] words, int index) {
+		long before = words[index >>> 6];
+		words[index >>> 6] = before | (1L << index);
+		return (int) (~before >>> index) & 1;
+	}
+	
+	public String getState() {
+		return state;
+	}
+
+	public void setState(String state) {
+		this.state = state;
+	}
+
+	public String getWhoseTurn() {
+		return whoseTurn;
+	}
+
+	public void setWhoseTurn(String whoseTurn) {
+		this.whoseTurn = whoseTurn;
+	}
+
+	public int getRedScore() {
+		return redScore;
+	}
+
+	public void setRedScore(int redScore) {
+		this.redScore = redScore;
+	}
+
+	public int getBlueScore() {
+		return blueScore;
+	}
+
+	public void setBlueScore(int blueScore) {
+		this.blueScore = blueScore;
+	}
+
+	/**
+	 * @return the number of boxes won so far by either player
+	 */
+	public int getCapturedBoxes() {
+		return redScore + blueScore;
+	}
+
+	/**
+	 * @return a number that goes up by one every time the game changes
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
+	/**
+	 * @return when the game last changed, in milliseconds since the epoch
+	 */
+	public long getUpdatedAt() {
+		return updatedAt;
 	}
 
-	public void setHorizontalGrid(boolean[][] horizontalGrid) {
-		this.horizontalGrid = horizontalGrid;
+	public void setUpdatedAt(long updatedAt) {
+		this.updatedAt = updatedAt;
 	}
 
-	public boolean[][] getVerticalGrid() {
-		return verticalGrid;
+	public boolean isArchived() {
+		return archived;
 	}
 
-	public void setVerticalGrid(boolean[][] verticalGrid) {
-		this.verticalGrid = verticalGrid;
+	public void setArchived(boolean archived) {
+		this.archived = archived;
 	}
 
-	public String[][] getBoxes() {
-		return boxes;
+	public boolean isMatchmade() {
+		return matchmade;
 	}
 
-	public void setBoxes(String[][] boxes) {
-		this.boxes = boxes;
+	public void setMatchmade(boolean matchmade) {
+		this.matchmade = matchmade;
 	}
 }
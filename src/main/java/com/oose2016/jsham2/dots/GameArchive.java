@@ -0,0 +1,136 @@
+package com.oose2016.jsham2.dots;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class packs a game into the compact blob kept in the game_archive
+ * table, and unpacks it again. A blob holds the game row, both players,
+ * the lines in the order they were played and the won boxes as bitboards,
+ * gzipped. That is all a game needs to be served again, so an archived
+ * game has no rows left in game, player, moves or blocks. The same blob
+ * is used for the snapshots games are restored from after a restart.
+ *
+ * @author jsham2, Jeffrey Sham CS421
+ */
+public class GameArchive {
+	// Changes whenever the blob layout changes
+	private static final int FORMAT = 1;
+
+	/**
+	 * This method packs a game. The caller must hold the game's lock.
+	 * @param game the game
+	 * @return the blob
+	 */
+	public static byte[] pack(Game game) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes))) {
+			out.writeInt(FORMAT);
+			out.writeInt(game.getRows());
+			out.writeInt(game.getCols());
+			out.writeUTF(game.getState());
+			out.writeUTF(game.getWhoseTurn());
+			out.writeInt(game.getRedScore());
+			out.writeInt(game.getBlueScore());
+			out.writeLong(game.getVersion());
+			out.writeLong(game.getUpdatedAt());
+			writePlayer(out, game.getPlayerOne());
+			writePlayer(out, game.getPlayerTwo());
+
+			out.writeInt(game.getFilledLines());
+			for (int seq = 1; seq <= game.getFilledLines(); seq++) {
+				out.writeInt(game.getPlayedLine(seq));
+			}
+
+			writeBytes(out, game.packWonBoxes());
+			writeBytes(out, game.packBlueBoxes());
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * This method rebuilds a game from its blob.
+	 * @param gameId the game id
+	 * @param blob the blob
+	 * @return the game
+	 * @throws IOException if the blob is damaged or in an unknown format
+	 */
+	public static Game unpack(int gameId, byte[] blob) throws IOException {
+		try (DataInputStream in = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(blob)))) {
+			int format = in.readInt();
+			if (format != FORMAT) {
+				throw new IOException("Unknown archive format " + format);
+			}
+
+			int rows = in.readInt();
+			int cols = in.readInt();
+			Game game = new Game(String.valueOf(gameId), null, null, rows, cols);
+			game.setState(in.readUTF());
+			game.setWhoseTurn(in.readUTF());
+			game.setRedScore(in.readInt());
+			game.setBlueScore(in.readInt());
+			game.setVersion(in.readLong());
+			game.setUpdatedAt(in.readLong());
+			game.setPlayerOne(readPlayer(in));
+			game.setPlayerTwo(readPlayer(in));
+
+			int filledLines = in.readInt();
+			for (int i = 0; i < filledLines; i++) {
+				int line = in.readInt();
+				if (line < game.getHorizontalLineCount()) {
+					game.fillHorizontal(line / cols, line % cols);
+				} else {
+					line -= game.getHorizontalLineCount();
+					game.fillVertical(line / (cols + 1), line % (cols + 1));
+				}
+			}
+
+			byte[] wonBoxes = readBytes(in);
+			byte[] blueBoxes = readBytes(in);
+			for (int box = 0; box < rows * cols; box++) {
+				if (bit(wonBoxes, box)) {
+					game.claimBox(box, bit(blueBoxes, box) ? "BLUE" : "RED");
+				}
+			}
+			return game;
+		}
+	}
+
+	private static void writePlayer(DataOutputStream out, Player player) throws IOException {
+		out.writeBoolean(player != null);
+		if (player != null) {
+			out.writeUTF(player.getId());
+			out.writeUTF(player.getType());
+		}
+	}
+
+	private static Player readPlayer(DataInputStream in) throws IOException {
+		if (!in.readBoolean()) {
+			return null;
+		}
+		return new Player(in.readUTF(), in.readUTF());
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	private static boolean bit(byte[] bytes, int index) {
+		return ((bytes[index >>> 3] >>> (index & 7)) & 1) != 0;
+	}
+}
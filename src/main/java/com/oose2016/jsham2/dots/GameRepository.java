@@ -0,0 +1,188 @@
+package com.oose2016.jsham2.dots;
+
+import com.oose2016.jsham2.dots.DotsService.DotsServiceException;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This interface is where DotsService keeps its games. The service plays
+ * every move against the game in memory and then hands the change to
+ * the repository, which may write it right away or later. Games that are
+ * not in memory are loaded from the repository when they are asked for.
+ *
+ * Every method that is given a game is called with the game's lock held,
+ * and must read what it needs from the game before it returns.
+ *
+ * SqliteGameRepository keeps games in dots.db, JournalGameRepository in
+ * an append-only MoveJournal and MemoryGameRepository nowhere at all.
+ *
+ * @author jsham2, Jeffrey Sham CS421
+ */
+public interface GameRepository extends AutoCloseable {
+
+	/**
+	 * @return the highest game id that was ever stored, 0 for none
+	 */
+	int getLastGameId();
+
+	/**
+	 * @return the highest player id that was ever stored, 0 for none
+	 */
+	int getLastPlayerId();
+
+	/**
+	 * This method gives the games the service should hold in memory
+	 * from the start, for repositories that cannot load games one by one.
+	 * @return the games
+	 */
+	default Collection<Game> loadAll() {
+		return Collections.emptyList();
+	}
+
+	/**
+	 * This method finds the games waiting for a second player, for the
+	 * lobby, among the games that loadAll does not give. Repositories
+	 * that give every game to loadAll find none.
+	 * @return the waiting games
+	 * @throws DotsServiceException if the games could not be read
+	 */
+	default Collection<OpenGame> findOpenGames() throws DotsServiceException {
+		return Collections.emptyList();
+	}
+
+	/**
+	 * This method stores a new game and its first player.
+	 * @param game the game
+	 */
+	void createGame(Game game);
+
+	/**
+	 * This method stores the second player joining a game.
+	 * @param game the game, already joined
+	 */
+	void joinGame(Game game);
+
+	/**
+	 * This method stores a move, the boxes it won and the game after it.
+	 * @param game the game, with the move already played
+	 * @param player the player who moved
+	 * @param type the type of move, "HOR" or "VERT"
+	 * @param row the row
+	 * @param col the col
+	 * @param winBoxes the boxes the move won, see Game.willWinHorizontal
+	 */
+	default void addMove(Game game, Player player, String type, int row, int col, int winBoxes) {
+		addMoves(game, player, Collections.singletonList(new PlayedMove(type, row, col, winBoxes)));
+	}
+
+	/**
+	 * This method stores moves one player played in a row, the boxes they
+	 * won and the game after the last one, as one change: a repository that
+	 * can store them together stores all of them or none.
+	 * @param game the game, with the moves already played, so they are
+	 * 		  its last moves.size() moves
+	 * @param player the player who moved
+	 * @param moves the moves, in the order they were played
+	 */
+	void addMoves(Game game, Player player, List<PlayedMove> moves);
+
+	/**
+	 * This method loads a game's state and board.
+	 * @param gameId the game id
+	 * @return the game, or null if there is no game with that id
+	 * @throws DotsServiceException if the game could not be read
+	 */
+	Game loadGame(int gameId) throws DotsServiceException;
+
+	/**
+	 * This method finds finished games and games waiting for a second
+	 * player that have not changed since the given times. Repositories
+	 * that do not archive find none.
+	 * @param finishedBefore finished games last changed before this time
+	 * @param waitingBefore waiting games last changed before this time
+	 * @return the state of each game found, by game id
+	 * @throws DotsServiceException if the games could not be read
+	 */
+	default Map<Integer, String> findOldGames(long finishedBefore, long waitingBefore) throws DotsServiceException {
+		return Collections.emptyMap();
+	}
+
+	/**
+	 * This method moves a finished game to the archive.
+	 * @param game the game
+	 * @param archived run once the game is archived
+	 */
+	default void archiveGame(Game game, Runnable archived) {
+		archived.run();
+	}
+
+	/**
+	 * This method deletes a game nobody joined.
+	 * @param gameId the game id
+	 * @param deleted run once the game is deleted
+	 */
+	default void deleteGame(int gameId, Runnable deleted) {
+		deleted.run();
+	}
+
+	/**
+	 * This method tells whether a change to a game could not be saved.
+	 * The game must not be changed any further, since its stored copy
+	 * no longer matches the one in memory. Repositories that write
+	 * before they return never have failed games.
+	 * @param gameId the game id
+	 * @return true if a change to the game was lost
+	 */
+	default boolean isFailed(int gameId) {
+		return false;
+	}
+
+	/**
+	 * This method writes everything that is still pending and closes the
+	 * repository. It blocks until the writes are done.
+	 */
+	@Override
+	void close();
+
+	/**
+	 * A move that has been played, as it is handed to addMoves.
+	 */
+	final class PlayedMove {
+		private final String type;
+		private final int row;
+		private final int col;
+		private final int winBoxes;
+
+		/**
+		 * @param type the type of move, "HOR" or "VERT"
+		 * @param row the row
+		 * @param col the col
+		 * @param winBoxes the boxes the move won, see Game.willWinHorizontal
+		 */
+		public PlayedMove(String type, int row, int col, int winBoxes) {
+			this.type = type;
+			this.row = row;
+			this.col = col;
+			this.winBoxes = winBoxes;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		public int getRow() {
+			return row;
+		}
+
+		public int getCol() {
+			return col;
+		}
+
+		public int getWinBoxes() {
+			return winBoxes;
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package com.oose2016.jsham2.dots;
+
+import com.google.gson.JsonObject;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketError;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
+import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class is the WebSocket channel for a game. A client connects to
+ * /dots/api/games/socket?gameId=1&playerId=2 (playerId can be left out
+ * to only watch) and then sends moves as text messages, for example
+ * {"move": "hmove", "row": 0, "col": 1}. Every move gets an "ack" or
+ * an "error" with the same status code the REST end points would use.
+ *
+ * The server sends an "update" with the version, state and board of the
+ * game right after connecting, then an "update" with the new version and
+ * state, and the move if there was one, every time the game changes.
+ * Once the game is archived or deleted it sends "gone" and closes the
+ * connection.
+ *
+ * @author jsham2, Jeffrey Sham CS421
+ *
+ */
+@WebSocket
+public class GameSocket {
+	// The path of the channel
+	public static final String PATH = "/dots/api/games/socket";
+
+	// The database service. Spark creates the socket itself, so the controller hands it over here.
+	private static volatile DotsService dotsService;
+
+	// Logger
+	private static final Logger logger = LoggerFactory.getLogger(GameSocket.class);
+
+	// The error sent for a turned down move, the same as the REST end points
+	private static final Map<DotsService.Status, String> MOVE_ERRORS = new EnumMap<>(DotsService.Status.class);
+	static {
+		MOVE_ERRORS.put(DotsService.Status.NOT_FOUND, "Invalid game or player ID");
+		MOVE_ERRORS.put(DotsService.Status.ILLEGAL_MOVE, "Incorrect turn or illegal move");
+	}
+	
+	// Open connections and the game each one is subscribed to
+	private final Map<Session, Channel> channels = new ConcurrentHashMap<>();
+
+	/**
+	 * This method sets the service every game socket uses.
+	 * @param service the database service
+	 */
+	static void setService(DotsService service) {
+		dotsService = service;
+	}
+
+	/**
+	 * This method subscribes a new connection to its game.
+	 * @param session the connection
+	 */
+	@OnWebSocketConnect
+	public void onConnect(Session session) {
+		Map<String, List<String>> params = session.getUpgradeRequest().getParameterMap();
+		Channel channel = new Channel(session, firstParam(params, "gameId"), firstParam(params, "playerId"));
+		channels.put(session, channel);
+
+		try {
+			dotsService.subscribe(channel.gameId, channel);
+		} catch (DotsService.DotsServiceException ex) {
+			channels.remove(session);
+			session.close(StatusCode.POLICY_VIOLATION,
+					ex.getStatus() == DotsService.Status.NOT_FOUND ? "Invalid game ID" : "Could not join game channel.");
+		}
+	}
+
+	/**
+	 * This method plays a move sent by the client.
+	 * @param session the connection
+	 * @param message the move
+	 */
+	@OnWebSocketMessage
+	public void onMessage(Session session, String message) {
+		Channel channel = channels.get(session);
+		if (channel == null) {
+			return;
+		}
+
+		Map<String, Object> reply = new HashMap<>();
+		try {
+			JsonObject json = null;
+			try {
+				json = JsonTransformer.parseObject(message);
+			} catch (Exception ex) {
+				// Bad parameters
+				throw DotsService.DotsServiceException.BAD_REQUEST;
+			}
+
+			String moveType = null;
+			if (json != null && json.has("move") && !json.get("move").isJsonNull()) {
+				moveType = json.get("move").getAsString();
+			}
+			if (!"hmove".equals(moveType) && !"vmove".equals(moveType)) {
+				// Bad parameters
+				throw DotsService.DotsServiceException.BAD_REQUEST;
+			}
+
+			if (!json.has("playerId") && channel.playerId != null) {
+				json.addProperty("playerId", channel.playerId);
+			}
+			json.remove("move");
+
+			dotsService.validateMove(channel.gameId, json.toString(), moveType.equals("hmove") ? "HOR" : "VERT");
+			reply.put("type", "ack");
+			reply.put("status", 200);
+		} catch (DotsService.DotsServiceException ex) {
+			reply.put("type", "error");
+			String error = MOVE_ERRORS.get(ex.getStatus());
+			if (error != null) {
+				reply.put("status", ex.getStatus().getCode());
+				reply.put("error", error);
+			} else {
+				reply.put("status", 400);
+				reply.put("error", "Could not make move.");
+			}
+		}
+		channel.send(reply);
+	}
+
+	/**
+	 * This method unsubscribes a connection that was closed.
+	 * @param session the connection
+	 * @param statusCode the close code
+	 * @param reason the close reason
+	 */
+	@OnWebSocketClose
+	public void onClose(Session session, int statusCode, String reason) {
+		Channel channel = channels.remove(session);
+		if (channel != null) {
+			dotsService.unsubscribe(channel.gameId, channel);
+		}
+	}
+
+	/**
+	 * This method logs a connection error. Jetty closes the connection afterwards.
+	 * @param session the connection
+	 * @param error the error
+	 */
+	@OnWebSocketError
+	public void onError(Session session, Throwable error) {
+		logger.debug("GameSocket: Connection error", error);
+	}
+
+	private static String firstParam(Map<String, List<String>> params, String name) {
+		List<String> values = params.get(name);
+		return values == null || values.isEmpty() ? null : values.get(0);
+	}
+
+	/**
+	 * One open connection, subscribed to one game.
+	 */
+	private class Channel implements DotsService.GameListener {
+		private final Session session;
+		private final String gameId;
+		private final String playerId;
+
+		Channel(Session session, String gameId, String playerId) {
+			this.session = session;
+			this.gameId = gameId;
+			this.playerId = playerId;
+		}
+
+		@Override
+		public void gameChanged(Map<String, Object> update) {
+			Map<String, Object> message = new HashMap<>(update);
+			message.put("type", "update");
+			send(message);
+		}
+
+		@Override
+		public void gameGone() {
+			Map<String, Object> message = new HashMap<>();
+			message.put("type", "gone");
+			message.put("gameId", gameId);
+			send(message);
+			channels.remove(session);
+			session.close(StatusCode.NORMAL, "Game is gone");
+		}
+
+		/**
+		 * This method queues a message without waiting for it to be written,
+		 * since updates are sent while the game is locked.
+		 * @param message the message
+		 */
+		void send(Map<String, Object> message) {
+			if (session.isOpen()) {
+				session.getRemote().sendStringByFuture(JsonTransformer.GSON.toJson(message));
+			}
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package com.oose2016.jsham2.dots;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * This class is the state of a game as it is sent to clients: the
+ * state, whose turn it is and the scores, copied while the game is locked.
+ *
+ * @author jsham2, Jeffrey Sham CS421
+ */
+@JsonAdapter(GameState.Adapter.class)
+public class GameState {
+	private final String state;
+	private final String whoseTurn;
+	private final int redScore;
+	private final int blueScore;
+
+	/**
+	 * This constructor copies the state of a game.
+	 * The caller must hold the game's lock.
+	 * @param game the game
+	 */
+	public GameState(Game game) {
+		this.state = game.getState();
+		// Nobody has a turn once the game is over
+		this.whoseTurn = state.equals("FINISHED") ? "FINISHED" : game.getWhoseTurn();
+		this.redScore = game.getRedScore();
+		this.blueScore = game.getBlueScore();
+	}
+
+	private GameState(String state, String whoseTurn, int redScore, int blueScore) {
+		this.state = state;
+		this.whoseTurn = whoseTurn;
+		this.redScore = redScore;
+		this.blueScore = blueScore;
+	}
+
+	public String getState() {
+		return state;
+	}
+
+	public String getWhoseTurn() {
+		return whoseTurn;
+	}
+
+	public int getRedScore() {
+		return redScore;
+	}
+
+	public int getBlueScore() {
+		return blueScore;
+	}
+
+	/**
+	 * Writes a state as {"state", "whoseTurn", "redScore", "blueScore"},
+	 * and reads it back.
+	 */
+	public static class Adapter extends TypeAdapter<GameState> {
+		@Override
+		public void write(JsonWriter out, GameState state) throws IOException {
+			if (state == null) {
+				out.nullValue();
+				return;
+			}
+			out.beginObject();
+			out.name("state").value(state.state);
+			out.name("whoseTurn").value(state.whoseTurn);
+			out.name("redScore").value(state.redScore);
+			out.name("blueScore").value(state.blueScore);
+			out.endObject();
+		}
+
+		@Override
+		public GameState read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+			String state = null;
+			String whoseTurn = null;
+			int redScore = 0;
+			int blueScore = 0;
+			in.beginObject();
+			while (in.hasNext()) {
+				switch (in.nextName()) {
+				case "state":
+					state = in.nextString();
+					break;
+				case "whoseTurn":
+					whoseTurn = in.nextString();
+					break;
+				case "redScore":
+					redScore = in.nextInt();
+					break;
+				case "blueScore":
+					blueScore = in.nextInt();
+					break;
+				default:
+					in.skipValue();
+				}
+			}
+			in.endObject();
+			return new GameState(state, whoseTurn, redScore, blueScore);
+		}
+	}
+}
@@ -0,0 +1,348 @@
+package com.oose2016.jsham2.dots;
+
+import com.oose2016.jsham2.dots.DotsService.DotsServiceException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class keeps games in an append-only MoveJournal. Every create,
+ * join and move is appended as one record, and every game is rebuilt
+ * when the repository is opened, so the service holds all of them from
+ * the start and never loads one. Games kept in a journal are not archived.
+ *
+ * Every snapshotEveryRecords records all games are written, in the
+ * archive's format (see GameArchive), to a snapshot file together with
+ * the journal record it was started at. The journal is checkpointed
+ * first, so that record is always on disk. Opening the repository reads
+ * the snapshot and only replays the records from there on, so startup
+ * replays about snapshotEveryRecords records however long the journal
+ * is. Records that were already in a game when it was snapshot are
+ * skipped. A snapshot is also written when the repository is closed.
+ *
+ * @author jsham2, Jeffrey Sham CS421
+ */
+public class JournalGameRepository implements GameRepository {
+	// Changes whenever the snapshot file layout changes. Format 1 had no matchmade flag.
+	private static final int SNAPSHOT_FORMAT = 2;
+
+	// The journal every change is appended to
+	private final MoveJournal journal;
+
+	// Every game in the journal, by game id
+	private final Map<Integer, Game> games = new ConcurrentHashMap<>();
+
+	// The snapshot file, or null for no snapshots
+	private final Path snapshotPath;
+
+	// Journal records between snapshots
+	private final long snapshotEveryRecords;
+
+	// Writes snapshots in the background, or null for no snapshots
+	private final ExecutorService snapshotter;
+
+	// Whether a snapshot is being written
+	private final AtomicBoolean snapshotting = new AtomicBoolean();
+
+	// The journal record the last snapshot was started at
+	private volatile long snapshotRecord;
+
+	// Highest ids in the journal
+	private int lastGameId;
+	private int lastPlayerId;
+
+	// Logger
+	private final Logger logger = LoggerFactory.getLogger(JournalGameRepository.class);
+
+	/**
+	 * The constructor that replays every game in the journal, without
+	 * snapshots.
+	 * @param journal the journal, closed when the repository is closed
+	 * @throws DotsServiceException if the journal could not be read
+	 */
+	public JournalGameRepository(MoveJournal journal) throws DotsServiceException {
+		this(journal, null, 0);
+	}
+
+	/**
+	 * The constructor that reads the snapshot, if there is one, and
+	 * replays the journal after it.
+	 * @param journal the journal, closed when the repository is closed
+	 * @param snapshotPath the snapshot file, or null for no snapshots
+	 * @param snapshotEveryRecords journal records between snapshots
+	 * @throws DotsServiceException if the journal could not be read
+	 */
+	public JournalGameRepository(MoveJournal journal, Path snapshotPath, long snapshotEveryRecords)
+			throws DotsServiceException {
+		this.journal = journal;
+		this.snapshotPath = snapshotEveryRecords > 0 ? snapshotPath : null;
+		this.snapshotEveryRecords = snapshotEveryRecords;
+
+		long start = System.currentTimeMillis();
+		if (this.snapshotPath != null && Files.exists(this.snapshotPath)) {
+			try {
+				snapshotRecord = readSnapshot();
+			} catch (IOException | RuntimeException ex) {
+				logger.warn("JournalGameRepository: Could not read the snapshot, replaying the whole journal", ex);
+				games.clear();
+				snapshotRecord = 0;
+			}
+		}
+		for (Game game : games.values()) {
+			lastGameId = Math.max(lastGameId, Integer.valueOf(game.getId()));
+			lastPlayerId = Math.max(lastPlayerId, maxPlayerId(game));
+		}
+
+		try {
+			journal.replay(snapshotRecord, this::replay);
+		} catch (IOException | RuntimeException ex) {
+			logger.error("Failed to replay the journal", ex);
+			throw new DotsServiceException("Failed to replay the journal", ex);
+		}
+		logger.info("JournalGameRepository: Restored {} games from {} snapshot and {} journal records in {} ms",
+				games.size(), snapshotRecord, journal.size() - snapshotRecord, System.currentTimeMillis() - start);
+
+		if (this.snapshotPath != null) {
+			snapshotter = Executors.newSingleThreadExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "dots-journal-snapshot");
+				thread.setDaemon(true);
+				return thread;
+			});
+		} else {
+			snapshotter = null;
+		}
+	}
+
+	/**
+	 * This method applies one journal record to the games. A record that
+	 * is already in the game, from the snapshot, is skipped quietly; one
+	 * that does not fit the game it belongs to is logged and skipped, the
+	 * game stays as it was before it.
+	 */
+	private void replay(byte type, int flags, int gameId, int seq, int playerId, int a, int b, long time) {
+		lastGameId = Math.max(lastGameId, gameId);
+		lastPlayerId = Math.max(lastPlayerId, playerId);
+		String playerType = (flags & MoveJournal.BLUE) != 0 ? "BLUE" : "RED";
+		String moveType = (flags & MoveJournal.VERTICAL) != 0 ? "VERT" : "HOR";
+
+		if (type == MoveJournal.CREATE) {
+			if (!games.containsKey(gameId)) {
+				Game game = new Game(String.valueOf(gameId), new Player(String.valueOf(playerId), playerType),
+						null, a, b);
+				game.setUpdatedAt(time);
+				game.setMatchmade((flags & MoveJournal.MATCHMADE) != 0);
+				games.put(gameId, game);
+			}
+			return;
+		}
+
+		Game game = games.get(gameId);
+		if (game == null) {
+			logger.warn("JournalGameRepository.replay: Skipped record {} for unknown game {}", type, gameId);
+		} else if ((type == MoveJournal.JOIN && game.getPlayerTwo() != null)
+				|| (type == MoveJournal.MOVE && seq <= game.getFilledLines())) {
+			// Already in the snapshot
+		} else if (type == MoveJournal.JOIN) {
+			game.setPlayerTwo(new Player(String.valueOf(playerId), playerType));
+			game.setState("IN_PROGRESS");
+			game.setVersion(game.getVersion() + 1);
+			game.setUpdatedAt(time);
+		} else if (type == MoveJournal.MOVE && game.getState().equals("IN_PROGRESS")
+				&& game.isOpenLine(moveType, a, b)) {
+			int winBoxes = game.play(moveType, a, b, playerType);
+			game.setVersion(game.getVersion() + 1);
+			game.setUpdatedAt(time);
+			if (seq != game.getFilledLines() || (winBoxes != Game.NO_BOX) != ((flags & MoveJournal.WON_BOX) != 0)) {
+				logger.warn("JournalGameRepository.replay: Move {} of game {} does not match its record", seq, gameId);
+			}
+		} else {
+			logger.warn("JournalGameRepository.replay: Skipped record {} that does not fit game {}", type, gameId);
+		}
+	}
+
+	@Override
+	public int getLastGameId() {
+		return lastGameId;
+	}
+
+	@Override
+	public int getLastPlayerId() {
+		return lastPlayerId;
+	}
+
+	@Override
+	public Collection<Game> loadAll() {
+		return new ArrayList<>(games.values());
+	}
+
+	@Override
+	public void createGame(Game game) {
+		Player player = game.getPlayerOne();
+		games.put(Integer.valueOf(game.getId()), game);
+		journal.appendCreate(Integer.valueOf(game.getId()), Integer.valueOf(player.getId()),
+				player.getType().equals("BLUE"), game.isMatchmade(), game.getRows(), game.getCols(), 
+				game.getUpdatedAt());
+		snapshotIfDue();
+	}
+
+	@Override
+	public void joinGame(Game game) {
+		Player player = game.getPlayerTwo();
+		journal.appendJoin(Integer.valueOf(game.getId()), Integer.valueOf(player.getId()),
+				player.getType().equals("BLUE"), game.getUpdatedAt());
+		snapshotIfDue();
+	}
+
+	/**
+	 * This method appends the moves as one batch, one record per move.
+	 * A batch that a crash cuts off is dropped when the journal is opened
+	 * again, so the moves are kept all or none.
+	 */
+	@Override
+	public void addMoves(Game game, Player player, List<PlayedMove> moves) {
+		journal.appendMoves(Integer.valueOf(game.getId()), game.getFilledLines() - moves.size() + 1,
+				Integer.valueOf(player.getId()), player.getType().equals("BLUE"), moves, game.getUpdatedAt());
+		snapshotIfDue();
+	}
+
+	/**
+	 * This method finds no games, every game in the journal was handed
+	 * to the service when it started.
+	 */
+	@Override
+	public Game loadGame(int gameId) {
+		return null;
+	}
+
+	/**
+	 * This method writes a last snapshot, then forces the journal to disk
+	 * and closes it.
+	 */
+	@Override
+	public void close() {
+		if (snapshotter != null) {
+			snapshotter.shutdown();
+			try {
+				snapshotter.awaitTermination(30, TimeUnit.SECONDS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			if (journal.size() > snapshotRecord && snapshotting.compareAndSet(false, true)) {
+				snapshot();
+			}
+		}
+		journal.close();
+	}
+
+	/**
+	 * This method starts a snapshot in the background once enough
+	 * records were appended since the last one.
+	 */
+	private void snapshotIfDue() {
+		if (snapshotter == null || journal.size() - snapshotRecord < snapshotEveryRecords
+				|| !snapshotting.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			snapshotter.execute(this::snapshot);
+		} catch (RuntimeException ex) {
+			// Closing, close() writes the last snapshot
+			snapshotting.set(false);
+		}
+	}
+
+	/**
+	 * This method writes every game to a new snapshot file and then puts
+	 * it in place of the old one. Each game is packed while it is locked.
+	 */
+	private void snapshot() {
+		try {
+			// The snapshot never points past what is on disk
+			long record = journal.checkpoint();
+			List<Game> snapshotGames = new ArrayList<>(games.values());
+			Path tempPath = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+			try (FileOutputStream file = new FileOutputStream(tempPath.toFile());
+				 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+				out.writeInt(SNAPSHOT_FORMAT);
+				out.writeLong(record);
+				out.writeInt(snapshotGames.size());
+				for (Game game : snapshotGames) {
+					byte[] blob;
+					synchronized (game) {
+						blob = GameArchive.pack(game);
+					}
+					out.writeInt(Integer.valueOf(game.getId()));
+					out.writeBoolean(game.isMatchmade());
+					out.writeInt(blob.length);
+					out.write(blob);
+				}
+				out.flush();
+				file.getFD().sync();
+			}
+			Files.move(tempPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			snapshotRecord = record;
+			logger.info("JournalGameRepository: Snapshot of {} games at journal record {}", snapshotGames.size(), record);
+		} catch (IOException | RuntimeException ex) {
+			logger.error("JournalGameRepository.snapshot: Failed to write the snapshot", ex);
+		} finally {
+			snapshotting.set(false);
+		}
+	}
+
+	/**
+	 * This method reads the games in the snapshot file.
+	 * @return the journal record the snapshot was started at
+	 */
+	private long readSnapshot() throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotPath)))) {
+			int format = in.readInt();
+			if (format != SNAPSHOT_FORMAT && format != 1) {
+				throw new IOException("Unknown snapshot format " + format);
+			}
+			long record = in.readLong();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				int gameId = in.readInt();
+				boolean matchmade = format != 1 && in.readBoolean();
+				byte[] blob = new byte[in.readInt()];
+				in.readFully(blob);
+				Game game = GameArchive.unpack(gameId, blob);
+				game.setMatchmade(matchmade);
+				games.put(gameId, game);
+			}
+			if (record > journal.size()) {
+				throw new IOException("Snapshot at record " + record + " is past the end of the journal");
+			}
+			return record;
+		}
+	}
+
+	private static int maxPlayerId(Game game) {
+		int playerId = 0;
+		for (Player player : new Player[] { game.getPlayerOne(), game.getPlayerTwo() }) {
+			if (player != null) {
+				playerId = Math.max(playerId, Integer.valueOf(player.getId()));
+			}
+		}
+		return playerId;
+	}
+}
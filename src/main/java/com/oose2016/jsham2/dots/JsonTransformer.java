@@ -1,32 +1,132 @@
 //-------------------------------------------------------------------------------------------------------------//
 // Code based on a tutorial by Shekhar Gulati of SparkJava at
 // https://blog.openshift.com/developing-single-page-web-applications-using-java-8-spark-mongodb-and-angularjs/
-// and Prof. Smith from JHU OOSE Fall 2016 
+// and Prof. Smith from JHU OOSE Fall 2016
 //-------------------------------------------------------------------------------------------------------------//
 
 package com.oose2016.jsham2.dots;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+import spark.Request;
 import spark.Response;
 import spark.ResponseTransformer;
+import spark.Route;
 
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * This class changes objects to a json format.
- * 
+ *
+ * One Gson instance is shared by the whole server, since it is thread-safe
+ * and expensive to build. Routes wrapped with streaming() write their
+ * result straight to the response through a JsonWriter instead of
+ * building the whole body as a String first. Bodies that were already
+ * rendered (see ResponseCache) are written as they are, gzipped if the
+ * client accepts it.
+ *
  * @author jsham2, Jeffrey Sham CS421
  */
 public class JsonTransformer implements ResponseTransformer {
 
-    private Gson gson = new Gson();
+    // Shared by every request and by the request body parsers
+    static final Gson GSON = new Gson();
 
     @Override
     public String render(Object model) {
-        if (model instanceof Response) {
-            return gson.toJson(new HashMap<>());
+        if (isEmpty(model)) {
+            return GSON.toJson(new HashMap<>());
         }
-        return gson.toJson(model);
+        return GSON.toJson(model);
+    }
+
+    /**
+     * This method wraps a route so that whatever it returns is written
+     * to the response as JSON while it is being serialized.
+     * @param route the route
+     * @return the wrapped route
+     */
+    public Route streaming(Route route) {
+        return (request, response) -> {
+            Object model = route.handle(request, response);
+            write(model, request, response);
+            // Spark does not write anything more once the body is set
+            return "";
+        };
+    }
+
+    /**
+     * This method writes an object to the response as JSON.
+     * @param model the object
+     * @param request the request
+     * @param response the response
+     * @throws IOException if the client went away
+     */
+    public void write(Object model, Request request, Response response) throws IOException {
+        response.type("application/json");
+        if (model instanceof ResponseCache.Body) {
+            writeRendered((ResponseCache.Body) model, request, response);
+            return;
+        }
+
+        JsonWriter writer = new JsonWriter(
+                new OutputStreamWriter(response.raw().getOutputStream(), StandardCharsets.UTF_8));
+        if (isEmpty(model)) {
+            writer.beginObject().endObject();
+        } else if (model instanceof JsonElement) {
+            GSON.toJson((JsonElement) model, writer);
+        } else {
+            GSON.toJson(model, model.getClass(), writer);
+        }
+        writer.flush();
+    }
+
+    /**
+     * This method writes a body that was already rendered.
+     */
+    private void writeRendered(ResponseCache.Body body, Request request, Response response) throws IOException {
+        byte[] bytes = body.getJson();
+        if (acceptsGzip(request)) {
+            bytes = body.getGzip();
+            response.header("Content-Encoding", "gzip");
+        }
+        response.raw().setHeader("Vary", "Accept-Encoding");
+        response.raw().setContentLength(bytes.length);
+        response.raw().getOutputStream().write(bytes);
+        response.raw().getOutputStream().flush();
+    }
+
+    /**
+     * This method tells whether a rendered body is sent gzipped.
+     * @param request the request
+     * @return true if the client accepts gzip
+     */
+    public static boolean acceptsGzip(Request request) {
+        String acceptEncoding = request.headers("Accept-Encoding");
+        return acceptEncoding != null && acceptEncoding.contains("gzip");
+    }
+
+    /**
+     * This method reads a request body.
+     * @param body the body
+     * @return the body as a json object, or null if the body is empty
+     * @throws com.google.gson.JsonParseException if the body is not a json object
+     */
+    public static JsonObject parseObject(String body) {
+        return GSON.fromJson(body, JsonObject.class);
+    }
+
+    // Empty maps are written by hand because Gson cannot reflect on
+    // Collections.EMPTY_MAP on newer JDKs.
+    private static boolean isEmpty(Object model) {
+        return model == null || model instanceof Response
+                || (model instanceof Map && ((Map<?, ?>) model).isEmpty());
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,51 @@
+package com.oose2016.jsham2.dots;
+
+import java.util.List;
+
+/**
+ * This class keeps games nowhere but in the service's memory. Nothing
+ * survives a restart, so it is only meant for tests and for measuring
+ * the service without any storage cost.
+ *
+ * @author jsham2, Jeffrey Sham CS421
+ */
+public class MemoryGameRepository implements GameRepository {
+
+	@Override
+	public int getLastGameId() {
+		return 0;
+	}
+
+	@Override
+	public int getLastPlayerId() {
+		return 0;
+	}
+
+	@Override
+	public void createGame(Game game) {
+		// The service already holds the game
+	}
+
+	@Override
+	public void joinGame(Game game) {
+		// The service already holds the game
+	}
+
+	@Override
+	public void addMoves(Game game, Player player, List<PlayedMove> moves) {
+		// The service already holds the game
+	}
+
+	/**
+	 * This method finds no games, every game there is stays in memory.
+	 */
+	@Override
+	public Game loadGame(int gameId) {
+		return null;
+	}
+
+	@Override
+	public void close() {
+		// Nothing to write
+	}
+}
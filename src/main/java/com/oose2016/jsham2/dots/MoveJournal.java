@@ -0,0 +1,423 @@
+package com.oose2016.jsham2.dots;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * This class is an append-only, memory-mapped journal of everything that
+ * happens to games: every create, join and move is one fixed-size record
+ * written to the end of the file. The games are rebuilt on startup by
+ * replaying the journal from the start.
+ *
+ * A record is RECORD_SIZE bytes:
+ * <pre>
+ *  0  byte  type: CREATE, JOIN or MOVE
+ *  1  byte  flags: BLUE, for creates MATCHMADE, and for moves VERTICAL, WON_BOX and MORE
+ *  2  short unused
+ *  4  int   game id
+ *  8  int   move sequence number, 0 for creates and joins
+ * 12  int   player id
+ * 16  short move row, or rows of boxes for creates
+ * 18  short move col, or columns of boxes for creates
+ * 20  long  time, in milliseconds since the epoch
+ * 28  int   CRC32 of bytes 0 to 27
+ * </pre>
+ * Replay stops at the first record that is empty or has a bad checksum,
+ * which is where a crash cut the journal off.
+ *
+ * The moves of a batch (see appendMoves) are written one after another,
+ * every one but the last flagged MORE. A batch that a crash cut off
+ * before its last move is dropped when the journal is opened, so a
+ * batch is replayed whole or not at all.
+ *
+ * Records are written to the mapped file right away and reach the disk
+ * when the file is forced: after every syncEveryRecords records, every
+ * syncEveryMillis milliseconds, and on close. 0 turns either one off.
+ *
+ * checkpoint() forces the file and then writes the number of records to
+ * a ".checkpoint" file next to the journal. Those records are known to
+ * be whole, so opening the journal only checks the records after them.
+ *
+ * @author jsham2, Jeffrey Sham CS421
+ */
+public class MoveJournal implements AutoCloseable {
+	// Size of one record, in bytes
+	public static final int RECORD_SIZE = 32;
+
+	// Record types
+	public static final byte CREATE = 1;
+	public static final byte JOIN = 2;
+	public static final byte MOVE = 3;
+
+	// Record flags
+	public static final int BLUE = 1;
+	public static final int VERTICAL = 2;
+	public static final int WON_BOX = 4;
+	public static final int MORE = 8;
+	public static final int MATCHMADE = 16;
+
+	// The file is mapped this many bytes at a time, a multiple of RECORD_SIZE
+	private static final int REGION_SIZE = RECORD_SIZE * 1024 * 1024;
+
+	// Logger
+	private static final Logger logger = LoggerFactory.getLogger(MoveJournal.class);
+
+	private final FileChannel channel;
+	private final int syncEveryRecords;
+
+	// Holds the number of records known to be on disk
+	private final Path checkpointPath;
+
+	// Forces the file every syncEveryMillis, or null
+	private final ScheduledExecutorService syncer;
+
+	// The mapped part of the file records are appended to, and where it starts
+	private MappedByteBuffer region;
+	private long regionStart;
+
+	// Where the next record goes
+	private long end;
+
+	// Records written since the file was last forced
+	private int unsynced;
+
+	private final CRC32 crc = new CRC32();
+	private final byte[] record = new byte[RECORD_SIZE];
+
+	/**
+	 * The constructor that opens the journal, creating it if needed,
+	 * and finds its end from the last checkpoint.
+	 * @param path the journal file
+	 * @param syncEveryRecords force the file after this many records, 0 for never
+	 * @param syncEveryMillis force the file this often, 0 for never
+	 * @throws IOException if the file could not be opened
+	 */
+	public MoveJournal(Path path, int syncEveryRecords, long syncEveryMillis) throws IOException {
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		this.syncEveryRecords = syncEveryRecords;
+		this.checkpointPath = path.resolveSibling(path.getFileName() + ".checkpoint");
+		this.end = findEnd(readCheckpoint());
+		map(end);
+
+		if (syncEveryMillis > 0) {
+			syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "dots-journal-sync");
+				thread.setDaemon(true);
+				return thread;
+			});
+			syncer.scheduleWithFixedDelay(this::sync, syncEveryMillis, syncEveryMillis, TimeUnit.MILLISECONDS);
+		} else {
+			syncer = null;
+		}
+	}
+
+	/**
+	 * This method appends a game that was created.
+	 * @param gameId the game id
+	 * @param playerId the first player's id
+	 * @param blue whether the first player is blue
+	 * @param rows the rows of boxes
+	 * @param cols the columns of boxes
+	 * @param time when the game was created
+	 */
+	public void appendCreate(int gameId, int playerId, boolean blue, int rows, int cols, long time) {
+		appendCreate(gameId, playerId, blue, false, rows, cols, time);
+	}
+
+	/**
+	 * This method appends a game that was created, saying whether
+	 * matchmake created it.
+	 * @param gameId the game id
+	 * @param playerId the first player's id
+	 * @param blue whether the first player is blue
+	 * @param matchmade whether matchmake created the game
+	 * @param rows the rows of boxes
+	 * @param cols the columns of boxes
+	 * @param time when the game was created
+	 */
+	public void appendCreate(int gameId, int playerId, boolean blue, boolean matchmade, int rows, int cols,
+			long time) {
+		append(CREATE, (blue ? BLUE : 0) | (matchmade ? MATCHMADE : 0), gameId, 0, playerId, rows, cols, time);
+	}
+
+	/**
+	 * This method appends a second player joining a game.
+	 * @param gameId the game id
+	 * @param playerId the second player's id
+	 * @param blue whether the second player is blue
+	 * @param time when the player joined
+	 */
+	public void appendJoin(int gameId, int playerId, boolean blue, long time) {
+		append(JOIN, blue ? BLUE : 0, gameId, 0, playerId, 0, 0, time);
+	}
+
+	/**
+	 * This method appends a move.
+	 * @param gameId the game id
+	 * @param seq the move's sequence number in its game
+	 * @param playerId the player's id
+	 * @param blue whether the player is blue
+	 * @param vertical whether the line is vertical
+	 * @param row the row
+	 * @param col the col
+	 * @param wonBox whether the move won a box
+	 * @param time when the move was played
+	 */
+	public void appendMove(int gameId, int seq, int playerId, boolean blue, boolean vertical,
+			int row, int col, boolean wonBox, long time) {
+		int flags = (blue ? BLUE : 0) | (vertical ? VERTICAL : 0) | (wonBox ? WON_BOX : 0);
+		append(MOVE, flags, gameId, seq, playerId, row, col, time);
+	}
+
+	/**
+	 * This method appends moves one player played in a row as one batch.
+	 * No other record is written between them, and a batch that a crash
+	 * cuts off is dropped as a whole when the journal is opened again.
+	 * @param gameId the game id
+	 * @param firstSeq the sequence number of the first move in its game
+	 * @param playerId the player's id
+	 * @param blue whether the player is blue
+	 * @param moves the moves, in the order they were played
+	 * @param time when the moves were played
+	 */
+	public synchronized void appendMoves(int gameId, int firstSeq, int playerId, boolean blue,
+			List<GameRepository.PlayedMove> moves, long time) {
+		int seq = firstSeq;
+		for (int i = 0; i < moves.size(); i++) {
+			GameRepository.PlayedMove move = moves.get(i);
+			int flags = (blue ? BLUE : 0) | (move.getType().equals("VERT") ? VERTICAL : 0)
+					| (move.getWinBoxes() != Game.NO_BOX ? WON_BOX : 0) | (i < moves.size() - 1 ? MORE : 0);
+			append(MOVE, flags, gameId, seq++, playerId, move.getRow(), move.getCol(), time);
+		}
+	}
+
+	private synchronized void append(byte type, int flags, int gameId, int seq, int playerId,
+			int a, int b, long time) {
+		if (end - regionStart >= REGION_SIZE) {
+			// The old region goes to disk before it is let go
+			region.force();
+			map(end);
+		}
+
+		int offset = (int) (end - regionStart);
+		region.put(offset, type);
+		region.put(offset + 1, (byte) flags);
+		region.putShort(offset + 2, (short) 0);
+		region.putInt(offset + 4, gameId);
+		region.putInt(offset + 8, seq);
+		region.putInt(offset + 12, playerId);
+		region.putShort(offset + 16, (short) a);
+		region.putShort(offset + 18, (short) b);
+		region.putLong(offset + 20, time);
+		region.putInt(offset + 28, checksum(region, offset));
+		end += RECORD_SIZE;
+
+		unsynced++;
+		if (syncEveryRecords > 0 && unsynced >= syncEveryRecords) {
+			sync();
+		}
+	}
+
+	/**
+	 * This method writes every appended record to the disk.
+	 */
+	public synchronized void sync() {
+		if (unsynced > 0) {
+			region.force();
+			unsynced = 0;
+		}
+	}
+
+	/**
+	 * This method writes every appended record to the disk and then
+	 * records how many there are, so opening the journal does not check
+	 * them again.
+	 * @return the number of records in the journal, all of them on disk
+	 * @throws IOException if the checkpoint could not be written
+	 */
+	public synchronized long checkpoint() throws IOException {
+		region.force();
+		unsynced = 0;
+		Path tempPath = checkpointPath.resolveSibling(checkpointPath.getFileName() + ".tmp");
+		try (FileOutputStream file = new FileOutputStream(tempPath.toFile());
+			 DataOutputStream out = new DataOutputStream(file)) {
+			out.writeLong(end);
+			out.flush();
+			file.getFD().sync();
+		}
+		Files.move(tempPath, checkpointPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return end / RECORD_SIZE;
+	}
+
+	/**
+	 * This method reads every record from the start of the journal.
+	 * @param reader gets each record
+	 * @throws IOException if the file could not be read
+	 */
+	public void replay(Reader reader) throws IOException {
+		replay(0, reader);
+	}
+
+	/**
+	 * This method reads every record from the given one on.
+	 * @param fromRecord the first record to read, counting from 0
+	 * @param reader gets each record
+	 * @throws IOException if the file could not be read
+	 */
+	public void replay(long fromRecord, Reader reader) throws IOException {
+		long limit;
+		synchronized (this) {
+			limit = end;
+		}
+		for (long start = fromRecord * RECORD_SIZE; start < limit; start += REGION_SIZE) {
+			MappedByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, start,
+					Math.min(REGION_SIZE, limit - start));
+			for (int offset = 0; offset < records.limit(); offset += RECORD_SIZE) {
+				reader.read(records.get(offset), records.get(offset + 1), records.getInt(offset + 4),
+						records.getInt(offset + 8), records.getInt(offset + 12), records.getShort(offset + 16),
+						records.getShort(offset + 18), records.getLong(offset + 20));
+			}
+		}
+	}
+
+	/**
+	 * @return the number of records in the journal
+	 */
+	public synchronized long size() {
+		return end / RECORD_SIZE;
+	}
+
+	/**
+	 * This method writes every record to the disk and closes the file.
+	 */
+	@Override
+	public void close() {
+		if (syncer != null) {
+			syncer.shutdownNow();
+		}
+		synchronized (this) {
+			region.force();
+			try {
+				channel.close();
+			} catch (IOException ex) {
+				logger.error("MoveJournal.close: Failed to close the journal", ex);
+			}
+		}
+	}
+
+	/**
+	 * This method reads the end of the journal as of the last checkpoint.
+	 * A checkpoint that does not fit the file is not trusted.
+	 * @return where the checked records end, 0 if there is no checkpoint
+	 */
+	private long readCheckpoint() throws IOException {
+		if (!Files.exists(checkpointPath)) {
+			return 0;
+		}
+		long checkpoint;
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(checkpointPath))) {
+			checkpoint = in.readLong();
+		} catch (IOException ex) {
+			logger.warn("MoveJournal: Could not read the checkpoint, checking the whole journal", ex);
+			return 0;
+		}
+		if (checkpoint < 0 || checkpoint % RECORD_SIZE != 0 || checkpoint > channel.size()) {
+			logger.warn("MoveJournal: Checkpoint {} does not fit the journal, checking the whole journal", checkpoint);
+			return 0;
+		}
+		if (checkpoint > 0) {
+			MappedByteBuffer last = channel.map(FileChannel.MapMode.READ_ONLY, checkpoint - RECORD_SIZE, RECORD_SIZE);
+			if (last.get(0) == 0 || last.getInt(28) != checksum(last, 0)) {
+				logger.warn("MoveJournal: Checkpoint {} does not fit the journal, checking the whole journal", checkpoint);
+				return 0;
+			}
+		}
+		return checkpoint;
+	}
+
+	/**
+	 * This method finds the end of the last good record, or the start of
+	 * the batch it belongs to if the batch was cut off. A checkpoint is
+	 * never taken inside a batch, so the search starts at it.
+	 * @param from where the records known to be whole end
+	 */
+	private long findEnd(long from) throws IOException {
+		long size = channel.size() - channel.size() % RECORD_SIZE;
+		// Start of a batch whose last move has not been found yet, or -1
+		long batchStart = -1;
+		for (long start = from; start < size; start += REGION_SIZE) {
+			MappedByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, start,
+					Math.min(REGION_SIZE, size - start));
+			for (int offset = 0; offset < records.limit(); offset += RECORD_SIZE) {
+				if (records.get(offset) == 0 || records.getInt(offset + 28) != checksum(records, offset)) {
+					return batchStart >= 0 ? drop(batchStart, start + offset) : start + offset;
+				}
+				boolean more = records.get(offset) == MOVE && (records.get(offset + 1) & MORE) != 0;
+				if (!more) {
+					batchStart = -1;
+				} else if (batchStart < 0) {
+					batchStart = start + offset;
+				}
+			}
+		}
+		return batchStart >= 0 ? drop(batchStart, size) : size;
+	}
+
+	/**
+	 * This method clears the records of a batch that was cut off, so they
+	 * cannot be read as part of a later batch.
+	 * @param from the start of the batch
+	 * @param to the end of its last record
+	 * @return the start of the batch, where the journal now ends
+	 */
+	private long drop(long from, long to) throws IOException {
+		logger.warn("MoveJournal: Dropped {} records of a batch that was cut off", (to - from) / RECORD_SIZE);
+		channel.write(ByteBuffer.allocate((int) (to - from)), from);
+		return from;
+	}
+
+	private void map(long position) {
+		regionStart = position - position % REGION_SIZE;
+		try {
+			// Mapping past the end of the file makes it longer
+			region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, REGION_SIZE);
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	private int checksum(MappedByteBuffer records, int offset) {
+		for (int i = 0; i < RECORD_SIZE - 4; i++) {
+			record[i] = records.get(offset + i);
+		}
+		crc.reset();
+		crc.update(record, 0, RECORD_SIZE - 4);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Gets each record of the journal, see replay.
+	 */
+	public interface Reader {
+		void read(byte type, int flags, int gameId, int seq, int playerId, int a, int b, long time);
+	}
+}
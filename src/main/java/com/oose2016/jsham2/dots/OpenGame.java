@@ -0,0 +1,139 @@
+package com.oose2016.jsham2.dots;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * This class is a game waiting for a second player as it is listed in
+ * the lobby: its id, the color of the player waiting in it and the
+ * board size. None of these change until the game is joined. It also
+ * remembers whether matchmake created the game, which is not listed.
+ *
+ * @author jsham2, Jeffrey Sham CS421
+ */
+@JsonAdapter(OpenGame.Adapter.class)
+public class OpenGame {
+	private final int gameId;
+	private final String playerType;
+	private final int rows;
+	private final int cols;
+	private final boolean matchmade;
+
+	/**
+	 * This constructor copies a game that is waiting for a second player.
+	 * The caller must hold the game's lock.
+	 * @param game the game
+	 */
+	public OpenGame(Game game) {
+		this(Integer.valueOf(game.getId()), game.getPlayerOne().getType(), game.getRows(), game.getCols(), 
+				game.isMatchmade());
+	}
+
+	/**
+	 * @param gameId the game id
+	 * @param playerType the color of the player waiting in the game
+	 * @param rows the rows of boxes
+	 * @param cols the columns of boxes
+	 */
+	public OpenGame(int gameId, String playerType, int rows, int cols) {
+		this(gameId, playerType, rows, cols, false);
+	}
+
+	/**
+	 * @param gameId the game id
+	 * @param playerType the color of the player waiting in the game
+	 * @param rows the rows of boxes
+	 * @param cols the columns of boxes
+	 * @param matchmade whether matchmake created the game
+	 */
+	public OpenGame(int gameId, String playerType, int rows, int cols, boolean matchmade) {
+		this.gameId = gameId;
+		this.playerType = playerType;
+		this.rows = rows;
+		this.cols = cols;
+		this.matchmade = matchmade;
+	}
+
+	public int getGameId() {
+		return gameId;
+	}
+
+	public String getPlayerType() {
+		return playerType;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	public int getCols() {
+		return cols;
+	}
+
+	public boolean isMatchmade() {
+		return matchmade;
+	}
+
+	/**
+	 * Writes an open game as {"gameId", "playerType", "rows", "cols"},
+	 * and reads it back.
+	 */
+	public static class Adapter extends TypeAdapter<OpenGame> {
+		@Override
+		public void write(JsonWriter out, OpenGame game) throws IOException {
+			if (game == null) {
+				out.nullValue();
+				return;
+			}
+			out.beginObject();
+			out.name("gameId").value(String.valueOf(game.gameId));
+			out.name("playerType").value(game.playerType);
+			out.name("rows").value(game.rows);
+			out.name("cols").value(game.cols);
+			out.endObject();
+		}
+
+		@Override
+		public OpenGame read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+			int gameId = 0;
+			String playerType = null;
+			int rows = 0;
+			int cols = 0;
+			in.beginObject();
+			while (in.hasNext()) {
+				switch (in.nextName()) {
+				case "gameId":
+					try {
+						gameId = Integer.parseInt(in.nextString());
+					} catch (NumberFormatException ex) {
+						throw new JsonParseException("Game id is not a number", ex);
+					}
+					break;
+				case "playerType":
+					playerType = in.nextString();
+					break;
+				case "rows":
+					rows = in.nextInt();
+					break;
+				case "cols":
+					cols = in.nextInt();
+					break;
+				default:
+					in.skipValue();
+				}
+			}
+			in.endObject();
+			return new OpenGame(gameId, playerType, rows, cols);
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package com.oose2016.jsham2.dots;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class keeps the rendered JSON of each game's board, state and
+ * snapshot, so that every reader of an unchanged game gets the same bytes
+ * without the game being locked or serialized again.
+ *
+ * Bodies are stored with the version they were rendered at and are only
+ * handed out for that version, so a body rendered just before a move can
+ * never be served after it. The service also drops a game's bodies as
+ * soon as the game changes, so stale bodies do not use memory, and only
+ * games it holds in memory are tracked, so a forgotten game's bodies
+ * cannot come back.
+ *
+ * @author jsham2, Jeffrey Sham CS421
+ */
+public class ResponseCache {
+	/**
+	 * The responses that are cached.
+	 */
+	public enum View { BOARD, STATE, SNAPSHOT }
+
+	// Rendered bodies by game id, one slot per view
+	private final Map<Integer, AtomicReferenceArray<Body>> games = new ConcurrentHashMap<>();
+
+	/**
+	 * This method finds a rendered body.
+	 * @param gameId the game id
+	 * @param view the response
+	 * @param version the game's current version
+	 * @return the body, or null if there is none for that version
+	 */
+	public Body get(int gameId, View view, long version) {
+		AtomicReferenceArray<Body> bodies = games.get(gameId);
+		if (bodies == null) {
+			return null;
+		}
+		Body body = bodies.get(view.ordinal());
+		return body != null && body.version == version ? body : null;
+	}
+
+	/**
+	 * This method starts keeping bodies for a game that is now held in
+	 * memory. Bodies of games that are not tracked are not stored.
+	 * @param gameId the game id
+	 */
+	public void track(int gameId) {
+		games.putIfAbsent(gameId, new AtomicReferenceArray<>(View.values().length));
+	}
+
+	/**
+	 * This method stores a rendered body. A body never replaces one
+	 * rendered at a later version, and is dropped if the game is no
+	 * longer tracked, since it may have been rendered just before the
+	 * game was forgotten.
+	 * @param gameId the game id
+	 * @param view the response
+	 * @param body the body
+	 */
+	public void put(int gameId, View view, Body body) {
+		games.computeIfPresent(gameId, (id, bodies) -> {
+			bodies.accumulateAndGet(view.ordinal(), body,
+					(stored, rendered) -> stored == null || stored.version <= rendered.version ? rendered : stored);
+			return bodies;
+		});
+	}
+
+	/**
+	 * This method drops every body of a game that changed. The game
+	 * stays tracked.
+	 * @param gameId the game id
+	 */
+	public void invalidate(int gameId) {
+		AtomicReferenceArray<Body> bodies = games.get(gameId);
+		if (bodies == null) {
+			return;
+		}
+		for (int i = 0; i < bodies.length(); i++) {
+			bodies.set(i, null);
+		}
+	}
+
+	/**
+	 * This method stops tracking a game that left memory and drops its
+	 * bodies.
+	 * @param gameId the game id
+	 */
+	public void forget(int gameId) {
+		games.remove(gameId);
+	}
+
+	/**
+	 * @return the number of games tracked, for tests
+	 */
+	int size() {
+		return games.size();
+	}
+
+	/**
+	 * A rendered response: the JSON bytes, and the same bytes gzipped
+	 * the first time a client asks for them.
+	 */
+	public static class Body {
+		private final long version;
+		private final byte[] json;
+		private volatile byte[] gzip;
+
+		public Body(long version, byte[] json) {
+			this.version = version;
+			this.json = json;
+		}
+
+		/**
+		 * @return the version of the game the body was rendered at
+		 */
+		public long getVersion() {
+			return version;
+		}
+
+		/**
+		 * @return the JSON bytes, which must not be changed
+		 */
+		public byte[] getJson() {
+			return json;
+		}
+
+		/**
+		 * @return the gzipped JSON bytes, which must not be changed
+		 */
+		public byte[] getGzip() {
+			byte[] compressed = gzip;
+			if (compressed == null) {
+				// Two readers may both compress, they get equal bytes
+				compressed = compress(json);
+				gzip = compressed;
+			}
+			return compressed;
+		}
+
+		private static byte[] compress(byte[] bytes) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+			try (GZIPOutputStream gzipOut = new GZIPOutputStream(out)) {
+				gzipOut.write(bytes);
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+			return out.toByteArray();
+		}
+	}
+}
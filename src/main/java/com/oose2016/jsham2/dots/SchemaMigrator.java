@@ -0,0 +1,319 @@
+package com.oose2016.jsham2.dots;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sql2o.Connection;
+import org.sql2o.Sql2o;
+import org.sql2o.data.Row;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class creates the dots database tables and upgrades older
+ * database files in place. The schema version is kept in SQLite's
+ * user_version pragma. Each migration runs in its own transaction
+ * together with the version bump, so a failed upgrade leaves the
+ * file at the last version that finished.
+ *
+ * To change the schema, add a migration to the end of MIGRATIONS.
+ * Never edit one that has already shipped. If a shipped migration
+ * fails on some databases, add a cleanup for it to CLEANUPS instead.
+ *
+ * @author jsham2, Jeffrey Sham CS421
+ */
+public class SchemaMigrator {
+	// Logger
+	private static final Logger logger = LoggerFactory.getLogger(SchemaMigrator.class);
+
+	// The migrations, in order. Migration i brings the schema to version i + 1.
+	private static final Migration[] MIGRATIONS = {
+		SchemaMigrator::createTables,
+		SchemaMigrator::addBoardSize,
+		SchemaMigrator::addKeysAndIndexes,
+		SchemaMigrator::addGameSummary,
+		SchemaMigrator::addArchive,
+		SchemaMigrator::addSnapshots,
+		SchemaMigrator::addStateIndex,
+		SchemaMigrator::addMatchmade,
+		SchemaMigrator::addLastIds
+	};
+
+	// Cleanups for databases that a shipped migration failed on, by the
+	// version that migration brings the schema to. Each runs just before
+	// its migration, in the same transaction.
+	private static final Map<Integer, Migration> CLEANUPS = 
+			Collections.singletonMap(3, SchemaMigrator::dropDuplicateMoves);
+
+	/**
+	 * This method runs every migration the database has not had yet.
+	 * @param database the database to upgrade
+	 * @return the schema version the database is at now
+	 */
+	public static int migrate(Sql2o database) {
+		int version;
+		try (Connection conn = database.open()) {
+			version = conn.createQuery("PRAGMA user_version;").executeScalar(Integer.class);
+		}
+
+		for (int i = version; i < MIGRATIONS.length; i++) {
+			Connection conn = database.beginTransaction(java.sql.Connection.TRANSACTION_SERIALIZABLE);
+			try {
+				Migration cleanup = CLEANUPS.get(i + 1);
+				if (cleanup != null) {
+					cleanup.apply(conn);
+				}
+				MIGRATIONS[i].apply(conn);
+				conn.createQuery("PRAGMA user_version = " + (i + 1) + ";").executeUpdate();
+				conn.commit();
+				logger.info("Upgraded dots database to schema version {}", i + 1);
+			} catch (RuntimeException ex) {
+				conn.rollback();
+				throw ex;
+			}
+		}
+
+		return Math.max(version, MIGRATIONS.length);
+	}
+
+	/**
+	 * Version 1: the original tables.
+	 */
+	private static void createTables(Connection conn) {
+		String gameSql = "CREATE TABLE IF NOT EXISTS game (id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+						 "							  	  player_one_id INTEGER, " +
+					     "							      player_two_id INTEGER, " +
+						 "							      state TEXT);";
+
+		String movesSql = "CREATE TABLE IF NOT EXISTS moves (game_id INTEGER, " +
+						  " 								player_id INTEGER, " +
+						  "									type TEXT, " +
+						  " 								row INTEGER, " +
+						  " 								col INTEGER, " +
+						  "									won_box INTEGER, " +
+						  "									time TIMESTAMP DEFAULT CURRENT_TIMESTAMP);";
+
+		String playerSql = "CREATE TABLE IF NOT EXISTS player (id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+						   " 								  type TEXT, " +
+						   " 								  score INTEGER);";
+
+		String boardSql = "CREATE TABLE IF NOT EXISTS blocks (game_id INTEGER, " +
+						  " 								 color TEXT, " +
+						  "  								 row INTEGER, " +
+						  "									 col INTEGER);";
+
+		conn.createQuery(gameSql).executeUpdate();
+		conn.createQuery(movesSql).executeUpdate();
+		conn.createQuery(playerSql).executeUpdate();
+		conn.createQuery(boardSql).executeUpdate();
+	}
+
+	/**
+	 * Version 2: configurable board sizes.
+	 */
+	private static void addBoardSize(Connection conn) {
+		addColumnIfMissing(conn, "game", "box_rows", "INTEGER DEFAULT 4");
+		addColumnIfMissing(conn, "game", "box_cols", "INTEGER DEFAULT 4");
+	}
+
+	/**
+	 * Version 3: primary keys on moves and blocks. Moves get a per-game
+	 * sequence number and each line can only be played once per game.
+	 * Older rows are numbered in the order they were inserted; if the
+	 * same line or box was stored twice, only the first one is kept.
+	 */
+	private static void addKeysAndIndexes(Connection conn) {
+		String movesSql = "CREATE TABLE moves_new (game_id INTEGER NOT NULL, " +
+						  "							seq INTEGER NOT NULL, " +
+						  " 						player_id INTEGER, " +
+						  "							type TEXT NOT NULL, " +
+						  " 						row INTEGER NOT NULL, " +
+						  " 						col INTEGER NOT NULL, " +
+						  "							won_box INTEGER, " +
+						  "							time TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+						  "							PRIMARY KEY (game_id, seq));";
+
+		// Rowids of a table made with ORDER BY follow that order, so
+		// each game's moves are numbered from its first rowid.
+		String orderSql = "CREATE TEMP TABLE move_order AS " +
+						  "		SELECT rowid AS move_rowid, game_id FROM moves " +
+						  "		ORDER BY game_id, rowid;";
+
+		String copyMovesSql = "INSERT OR IGNORE INTO moves_new " +
+							  "			(game_id, seq, player_id, type, row, col, won_box, time) " +
+							  "		SELECT m.game_id, o.rowid - f.first_rowid + 1, m.player_id, " +
+							  "			   m.type, m.row, m.col, m.won_box, m.time " +
+							  "		FROM move_order o, moves m, " +
+							  "			 (SELECT game_id, MIN(rowid) AS first_rowid " +
+							  "			  FROM move_order GROUP BY game_id) f " +
+							  "		WHERE m.rowid = o.move_rowid AND f.game_id = o.game_id " +
+							  "		ORDER BY o.rowid;";
+
+		String blocksSql = "CREATE TABLE blocks_new (game_id INTEGER NOT NULL, " +
+						   " 						 color TEXT, " +
+						   "  						 row INTEGER NOT NULL, " +
+						   "						 col INTEGER NOT NULL, " +
+						   "						 PRIMARY KEY (game_id, row, col));";
+
+		String copyBlocksSql = "INSERT OR IGNORE INTO blocks_new (game_id, color, row, col) " +
+							   "		SELECT game_id, color, row, col FROM blocks ORDER BY rowid;";
+
+		conn.createQuery(movesSql).executeUpdate();
+		conn.createQuery(orderSql).executeUpdate();
+		conn.createQuery(copyMovesSql).executeUpdate();
+		conn.createQuery("DROP TABLE move_order;").executeUpdate();
+		conn.createQuery("DROP TABLE moves;").executeUpdate();
+		conn.createQuery("ALTER TABLE moves_new RENAME TO moves;").executeUpdate();
+
+		// A line can only be played once per game
+		conn.createQuery("CREATE UNIQUE INDEX moves_edge ON moves (game_id, type, row, col);")
+			.executeUpdate();
+
+		conn.createQuery(blocksSql).executeUpdate();
+		conn.createQuery(copyBlocksSql).executeUpdate();
+		conn.createQuery("DROP TABLE blocks;").executeUpdate();
+		conn.createQuery("ALTER TABLE blocks_new RENAME TO blocks;").executeUpdate();
+	}
+
+	/**
+	 * Cleanup before version 3: drops every copy but the first of a line
+	 * that was stored more than once in a game. Version 3 would number
+	 * the copies and then fail on the unique index of lines.
+	 */
+	private static void dropDuplicateMoves(Connection conn) {
+		conn.createQuery("DELETE FROM moves WHERE rowid NOT IN " +
+						 "		(SELECT MIN(rowid) FROM moves GROUP BY game_id, type, row, col);")
+			.executeUpdate();
+	}
+
+	/**
+	 * Version 4: the game row carries the turn, scores, captured boxes and
+	 * version, filled in for existing games from their moves and blocks.
+	 */
+	private static void addGameSummary(Connection conn) {
+		addColumnIfMissing(conn, "game", "whose_turn", "TEXT DEFAULT 'RED'");
+		addColumnIfMissing(conn, "game", "red_score", "INTEGER DEFAULT 0");
+		addColumnIfMissing(conn, "game", "blue_score", "INTEGER DEFAULT 0");
+		addColumnIfMissing(conn, "game", "captured_boxes", "INTEGER DEFAULT 0");
+		addColumnIfMissing(conn, "game", "version", "INTEGER DEFAULT 0");
+
+		String backfillSql =
+				"UPDATE game SET " +
+				"	red_score = (SELECT COUNT(*) FROM blocks b WHERE b.game_id = game.id AND b.color = 'RED'), " +
+				"	blue_score = (SELECT COUNT(*) FROM blocks b WHERE b.game_id = game.id AND b.color = 'BLUE'), " +
+				"	captured_boxes = (SELECT COUNT(*) FROM blocks b WHERE b.game_id = game.id), " +
+				"	whose_turn = COALESCE((SELECT CASE WHEN m.won_box = 1 THEN p.type " +
+				"									   WHEN p.type = 'RED' THEN 'BLUE' " +
+				"									   ELSE 'RED' END " +
+				"						   FROM moves m, player p " +
+				"						   WHERE m.game_id = game.id AND p.id = m.player_id " +
+				"						   ORDER BY m.seq DESC LIMIT 1), 'RED'), " +
+				"	version = (SELECT COUNT(*) FROM moves m WHERE m.game_id = game.id) + " +
+				"			  (CASE WHEN player_two_id IS NULL THEN 0 ELSE 1 END);";
+		conn.createQuery(backfillSql).executeUpdate();
+	}
+
+	/**
+	 * Version 5: the time each game last changed, and the archive that
+	 * old finished games are moved to (see GameArchive). Existing games
+	 * count as changed when the database was upgraded.
+	 */
+	private static void addArchive(Connection conn) {
+		addColumnIfMissing(conn, "game", "updated_at", "INTEGER");
+		conn.createQuery("UPDATE game SET updated_at = CAST(strftime('%s', 'now') AS INTEGER) * 1000;")
+			.executeUpdate();
+		conn.createQuery("CREATE INDEX game_state_updated ON game (state, updated_at);")
+			.executeUpdate();
+
+		String archiveSql = "CREATE TABLE game_archive (id INTEGER PRIMARY KEY, " +
+							"							player_one_id INTEGER, " +
+							"							player_two_id INTEGER, " +
+							"							archived_at INTEGER NOT NULL, " +
+							"							data BLOB NOT NULL);";
+		conn.createQuery(archiveSql).executeUpdate();
+	}
+
+	/**
+	 * Version 6: a compact snapshot of each game, taken every so many
+	 * moves, so loading a game only replays the moves played after it.
+	 */
+	private static void addSnapshots(Connection conn) {
+		String snapshotSql = "CREATE TABLE game_snapshot (game_id INTEGER PRIMARY KEY, " +
+							 "							 seq INTEGER NOT NULL, " +
+							 "							 data BLOB NOT NULL);";
+		conn.createQuery(snapshotSql).executeUpdate();
+	}
+
+	/**
+	 * Version 7: an index on (state, id), so the games in one state are
+	 * found in id order without reading the whole game table.
+	 */
+	private static void addStateIndex(Connection conn) {
+		conn.createQuery("CREATE INDEX game_state_id ON game (state, id);")
+			.executeUpdate();
+	}
+
+	/**
+	 * Version 8: whether matchmake created each game, so only its own
+	 * waiting games are handed to matchmake after a restart. Games
+	 * already stored count as created with POST /games.
+	 */
+	private static void addMatchmade(Connection conn) {
+		addColumnIfMissing(conn, "game", "matchmade", "INTEGER NOT NULL DEFAULT 0");
+	}
+
+	/**
+	 * Version 9: the highest game and player ids of deleted games, so
+	 * their ids are not handed out again once their rows are gone. They
+	 * start at the highest ids stored, or the game table's AUTOINCREMENT
+	 * counter if that is higher.
+	 */
+	private static void addLastIds(Connection conn) {
+		conn.createQuery("CREATE TABLE last_ids (name TEXT PRIMARY KEY, last_id INTEGER NOT NULL);")
+			.executeUpdate();
+
+		boolean hasSequence = conn.createQuery("SELECT COUNT(*) FROM sqlite_master " +
+											   "	WHERE type = 'table' AND name = 'sqlite_sequence';")
+								  .executeScalar(Integer.class) > 0;
+		String gameSql = "INSERT INTO last_ids (name, last_id) " +
+						 "	SELECT 'game', COALESCE(MAX(id), 0) FROM " +
+						 "		(SELECT id FROM game UNION ALL SELECT id FROM game_archive" +
+						 (hasSequence ? " UNION ALL SELECT seq FROM sqlite_sequence WHERE name = 'game'" : "") + ");";
+		String playerSql = "INSERT INTO last_ids (name, last_id) " +
+						   "	SELECT 'player', COALESCE(MAX(id), 0) FROM " +
+						   "		(SELECT id FROM player " +
+						   "		 UNION ALL SELECT player_one_id FROM game_archive " +
+						   "		 UNION ALL SELECT player_two_id FROM game_archive);";
+		conn.createQuery(gameSql).executeUpdate();
+		conn.createQuery(playerSql).executeUpdate();
+	}
+
+	/**
+	 * This method adds a column to an existing table if the table does not have it yet.
+	 * Databases written before the schema was versioned may already have it.
+	 * @param conn the open database connection
+	 * @param table the table name
+	 * @param column the column name
+	 * @param definition the column type and default
+	 */
+	private static void addColumnIfMissing(Connection conn, String table, String column, String definition) {
+		List<Row> columns = conn.createQuery("PRAGMA table_info(" + table + ");")
+								.executeAndFetchTable()
+								.rows();
+		for (Row row : columns) {
+			if (row.getString("name").equals(column)) {
+				return;
+			}
+		}
+		conn.createQuery("ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition + ";")
+			.executeUpdate();
+	}
+
+	/**
+	 * One step of the schema history.
+	 */
+	private interface Migration {
+		void apply(Connection conn);
+	}
+}
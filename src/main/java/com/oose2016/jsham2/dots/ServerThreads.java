@@ -0,0 +1,73 @@
+package com.oose2016.jsham2.dots;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+import javax.servlet.http.HttpServletRequest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class reports how busy the web server's request threads are.
+ *
+ * The pool itself is Spark's own, sized with Spark's threadPool(). It is
+ * found through the Jetty request being served, so no Spark internals
+ * are needed to reach it. Event streams and web sockets are served
+ * asynchronously, so slow clients do not hold threads from the pool.
+ *
+ * @author jsham2, Jeffrey Sham CS421
+ */
+public class ServerThreads {
+	private ServerThreads() {
+	}
+
+	/**
+	 * This method reports how busy the pool serving a request is.
+	 * @param request the request being served
+	 * @return a map with "threads", "busyThreads", "idleThreads",
+	 * 		   "queueSize" and the pool's limits, or an empty map when the
+	 * 		   request is not served by Jetty
+	 */
+	public static Map<String, Object> metrics(HttpServletRequest request) {
+		Map<String, Object> metrics = new LinkedHashMap<>();
+		Request jettyRequest = Request.getBaseRequest(request);
+		if (jettyRequest == null || jettyRequest.getHttpChannel() == null) {
+			return metrics;
+		}
+
+		ThreadPool pool = jettyRequest.getHttpChannel().getServer().getThreadPool();
+		metrics.put("threads", pool.getThreads());
+		metrics.put("idleThreads", pool.getIdleThreads());
+		if (pool instanceof QueuedThreadPool) {
+			QueuedThreadPool queued = (QueuedThreadPool) pool;
+			metrics.put("busyThreads", queued.getBusyThreads());
+			metrics.put("minThreads", queued.getMinThreads());
+			metrics.put("maxThreads", queued.getMaxThreads());
+			metrics.put("queueSize", queued.getQueueSize());
+		} else {
+			metrics.put("busyThreads", pool.getThreads() - pool.getIdleThreads());
+		}
+		return metrics;
+	}
+
+	/**
+	 * This method tells whether more requests are waiting for a thread
+	 * than the server should let wait. Jetty's queue itself has no limit
+	 * through Spark, so a request that finds it too long is answered at
+	 * once, which drains the queue instead of growing it.
+	 * @param request the request being served
+	 * @param maxQueued requests that may wait for a thread
+	 * @return true if the queue is longer than maxQueued
+	 */
+	public static boolean isOverloaded(HttpServletRequest request, int maxQueued) {
+		Request jettyRequest = Request.getBaseRequest(request);
+		if (jettyRequest == null || jettyRequest.getHttpChannel() == null) {
+			return false;
+		}
+
+		ThreadPool pool = jettyRequest.getHttpChannel().getServer().getThreadPool();
+		return pool instanceof QueuedThreadPool && ((QueuedThreadPool) pool).getQueueSize() > maxQueued;
+	}
+}
@@ -0,0 +1,576 @@
+package com.oose2016.jsham2.dots;
+
+import com.oose2016.jsham2.dots.DotsService.DotsServiceException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sql2o.Connection;
+import org.sql2o.Query;
+import org.sql2o.Sql2o;
+import org.sql2o.Sql2oException;
+import org.sql2o.data.Row;
+
+import javax.sql.DataSource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class keeps games in the SQLite database. Changes are written
+ * behind the games in memory by a WriteBehindQueue, so the service never
+ * waits on SQLite unless it loads a game. Finished games can be moved to
+ * a compact archive (see GameArchive) and unjoined games deleted.
+ *
+ * Every snapshotEveryMoves moves a game is also saved whole, in the
+ * archive's format, to game_snapshot. Loading a game that has a snapshot
+ * only replays the moves played after it, so no load replays more than
+ * snapshotEveryMoves - 1 moves however long the game is.
+ *
+ * @author jsham2, Jeffrey Sham CS421
+ */
+public class SqliteGameRepository implements GameRepository {
+	// Database to hold all the objects
+	private final Sql2o database;
+
+	// Writes game changes to the database in the background
+	private final WriteBehindQueue writeBehind;
+
+	// Moves a game is snapshot after, see DEFAULT_SNAPSHOT_MOVES
+	public static final int DEFAULT_SNAPSHOT_MOVES = 64;
+
+	// Moves between snapshots of a game, 0 for none
+	private final int snapshotEveryMoves;
+
+	// Highest ids stored when the repository was opened
+	private final int lastGameId;
+	private final int lastPlayerId;
+
+	// Logger
+	private final Logger logger = LoggerFactory.getLogger(SqliteGameRepository.class);
+
+	/**
+	 * The constructor that sets up all the database tables, upgrading
+	 * an older database file if needed. Games are snapshot every
+	 * DEFAULT_SNAPSHOT_MOVES moves.
+	 * @param dataSource The data source for the database
+	 * @throws DotsServiceException
+	 */
+	public SqliteGameRepository(DataSource dataSource) throws DotsServiceException {
+		this(dataSource, DEFAULT_SNAPSHOT_MOVES);
+	}
+
+	/**
+	 * The constructor that also sets how often games are snapshot.
+	 * @param dataSource The data source for the database
+	 * @param snapshotEveryMoves moves between snapshots of a game, 0 for none
+	 * @throws DotsServiceException
+	 */
+	public SqliteGameRepository(DataSource dataSource, int snapshotEveryMoves) throws DotsServiceException {
+		database = new Sql2o(dataSource);
+		this.snapshotEveryMoves = snapshotEveryMoves;
+
+		try (Connection conn = database.open()) {
+			SchemaMigrator.migrate(database);
+
+			// Ids are handed out in memory, so start after the ones already stored, archived or deleted
+			Integer maxGameId = conn.createQuery("SELECT MAX(id) FROM " +
+												 "	(SELECT id FROM game UNION ALL SELECT id FROM game_archive " +
+												 "	 UNION ALL SELECT last_id FROM last_ids WHERE name = 'game');")
+									.executeScalar(Integer.class);
+			Integer maxPlayerId = conn.createQuery("SELECT MAX(id) FROM " +
+												   "	(SELECT id FROM player " +
+												   "	 UNION ALL SELECT player_one_id FROM game_archive " +
+												   "	 UNION ALL SELECT player_two_id FROM game_archive " +
+												   "	 UNION ALL SELECT last_id FROM last_ids WHERE name = 'player');")
+									  .executeScalar(Integer.class);
+			lastGameId = maxGameId == null ? 0 : maxGameId;
+			lastPlayerId = maxPlayerId == null ? 0 : maxPlayerId;
+		} catch (Sql2oException ex) {
+			logger.error("Failed to create table", ex);
+			throw new DotsServiceException("Failed to create table", ex);
+		}
+
+		writeBehind = new WriteBehindQueue(database);
+	}
+
+	@Override
+	public int getLastGameId() {
+		return lastGameId;
+	}
+
+	@Override
+	public int getLastPlayerId() {
+		return lastPlayerId;
+	}
+
+	@Override
+	public void createGame(Game game) {
+		String createPlayerSql = "INSERT INTO player (id, type, score) " +
+								 " 				VALUES (:id, :playerType, 0);";
+		String createGameSql = "INSERT INTO game (id, player_one_id, state, box_rows, box_cols, updated_at, matchmade) " +
+							   "  			VALUES (:id, :playerId, 'WAITING_TO_START', :rows, :cols, :updatedAt, :matchmade);";
+
+		int gameId = Integer.valueOf(game.getId());
+		int playerId = Integer.valueOf(game.getPlayerOne().getId());
+		String playerType = game.getPlayerOne().getType();
+		int rows = game.getRows();
+		int cols = game.getCols();
+		long updatedAt = game.getUpdatedAt();
+		boolean matchmade = game.isMatchmade();
+		writeBehind.submit(gameId, "game " + gameId, conn -> {
+			conn.createQuery(createPlayerSql)
+				.addParameter("id", playerId)
+				.addParameter("playerType", playerType)
+				.executeUpdate();
+			conn.createQuery(createGameSql)
+				.addParameter("id", gameId)
+				.addParameter("playerId", playerId)
+				.addParameter("rows", rows)
+				.addParameter("cols", cols)
+				.addParameter("updatedAt", updatedAt)
+				.addParameter("matchmade", matchmade ? 1 : 0)
+				.executeUpdate();
+		});
+	}
+
+	@Override
+	public void joinGame(Game game) {
+		// Insert second player and update game
+		String createPlayerTwoSql = "INSERT INTO player (id, type, score) " +
+				 				 " 				VALUES (:id, :playerType, 0);";
+		String updateGameSql = "UPDATE game SET player_two_id = :playerId, state = 'IN_PROGRESS', " +
+							   "				version = :version, updated_at = :updatedAt " +
+							   "			WHERE id = :id AND player_two_id IS NULL;";
+
+		int gameId = Integer.valueOf(game.getId());
+		int playerId = Integer.valueOf(game.getPlayerTwo().getId());
+		String playerType = game.getPlayerTwo().getType();
+		long version = game.getVersion();
+		long updatedAt = game.getUpdatedAt();
+		writeBehind.submit(gameId, "join of game " + gameId, conn -> {
+			conn.createQuery(createPlayerTwoSql)
+				.addParameter("id", playerId)
+				.addParameter("playerType", playerType)
+				.executeUpdate();
+			int joined = conn.createQuery(updateGameSql)
+				.addParameter("playerId", playerId)
+				.addParameter("version", version)
+				.addParameter("updatedAt", updatedAt)
+				.addParameter("id", gameId)
+				.executeUpdate()
+				.getResult();
+			if (joined == 0) {
+				// The game lock makes this impossible, but never let a second join overwrite the first
+				throw new Sql2oException("Game " + gameId + " already has a second player");
+			}
+		});
+	}
+
+	/**
+	 * This method queues the database writes for a run of moves. The
+	 * moves, their boxes, the score, the game row and, whenever the moves
+	 * pass a multiple of snapshotEveryMoves, the game's snapshot are
+	 * written in a single transaction.
+	 */
+	@Override
+	public void addMoves(Game game, Player player, List<PlayedMove> moves) {
+		// Create move
+		String createMoveSql = "INSERT INTO moves (game_id, seq, player_id, type, row, col, won_box) " +
+							   "  			VALUES (:gameId, :seq, :playerId, :type, :row, :col, :wonBox);";
+		String boxSql = "INSERT INTO blocks (game_id, color, row, col) " +
+						" 			 VALUES (:gameId, :color, :row, :col);";
+		String scoreSql = "UPDATE player SET score = score + :score " +
+						  "			WHERE id = :id;";
+		String gameSql = "UPDATE game SET state = :state, whose_turn = :whoseTurn, " +
+						 "				red_score = :redScore, blue_score = :blueScore, " +
+						 "				captured_boxes = :capturedBoxes, version = :version, " +
+						 "				updated_at = :updatedAt " +
+				   		 "			WHERE id = :id;";
+		String snapshotSql = "INSERT OR REPLACE INTO game_snapshot (game_id, seq, data) " +
+							 "			VALUES (:gameId, :seq, :data);";
+
+		int gameId = Integer.valueOf(game.getId());
+		int playerId = Integer.valueOf(player.getId());
+		String playerType = player.getType();
+		int cols = game.getCols();
+		String state = game.getState();
+		String whoseTurn = game.getWhoseTurn();
+		int redScore = game.getRedScore();
+		int blueScore = game.getBlueScore();
+		long version = game.getVersion();
+		long updatedAt = game.getUpdatedAt();
+		int seq = game.getFilledLines();
+		int firstSeq = seq - moves.size() + 1;
+		byte[] snapshot = snapshotEveryMoves > 0 && seq / snapshotEveryMoves != (firstSeq - 1) / snapshotEveryMoves
+				? GameArchive.pack(game) : null;
+		writeBehind.submit(gameId, "moves for game " + gameId, conn -> {
+			Query moveQuery = conn.createQuery(createMoveSql);
+			// Both boxes a move can win go to the database in one batch
+			Query boxQuery = conn.createQuery(boxSql);
+			int wonScore = 0;
+			int moveSeq = firstSeq;
+			for (PlayedMove move : moves) {
+				int winBoxes = move.getWinBoxes();
+				int moveScore = Game.boxCount(winBoxes);
+				moveQuery.addParameter("gameId", gameId)
+						 .addParameter("seq", moveSeq++)
+						 .addParameter("playerId", playerId)
+						 .addParameter("type", move.getType())
+						 .addParameter("row", move.getRow())
+						 .addParameter("col", move.getCol())
+						 .addParameter("wonBox", moveScore > 0 ? 1 : 0)
+						 .addToBatch();
+				if (moveScore > 0) {
+					boxQuery.addParameter("gameId", gameId)
+							.addParameter("color", playerType)
+							.addParameter("row", Game.firstBox(winBoxes) / cols)
+							.addParameter("col", Game.firstBox(winBoxes) % cols)
+							.addToBatch();
+				}
+				if (moveScore == 2) {
+					boxQuery.addParameter("gameId", gameId)
+							.addParameter("color", playerType)
+							.addParameter("row", Game.secondBox(winBoxes) / cols)
+							.addParameter("col", Game.secondBox(winBoxes) % cols)
+							.addToBatch();
+				}
+				wonScore += moveScore;
+			}
+			moveQuery.executeBatch();
+
+			if (wonScore > 0) {
+				boxQuery.executeBatch();
+
+				conn.createQuery(scoreSql)
+					.addParameter("score", wonScore)
+					.addParameter("id", playerId)
+					.executeUpdate();
+			}
+
+			conn.createQuery(gameSql)
+				.addParameter("state", state)
+				.addParameter("whoseTurn", whoseTurn)
+				.addParameter("redScore", redScore)
+				.addParameter("blueScore", blueScore)
+				.addParameter("capturedBoxes", redScore + blueScore)
+				.addParameter("version", version)
+				.addParameter("updatedAt", updatedAt)
+				.addParameter("id", gameId)
+				.executeUpdate();
+
+			if (snapshot != null) {
+				conn.createQuery(snapshotSql)
+					.addParameter("gameId", gameId)
+					.addParameter("seq", seq)
+					.addParameter("data", snapshot)
+					.executeUpdate();
+			}
+		});
+	}
+
+	/**
+	 * This method rebuilds a game from the database, or from the archive
+	 * if it has been archived. Everything is read in one transaction, so
+	 * a game that is archived at the same time is read whole from one
+	 * place or the other. Games read from the archive are marked archived.
+	 */
+	@Override
+	public Game loadGame(int gameId) throws DotsServiceException {
+		String gameSql = "SELECT * FROM game g " +
+						 " 		   WHERE g.id = :gameId;";
+		String archiveSql = "SELECT data FROM game_archive " +
+							"		  WHERE id = :gameId;";
+
+		Connection conn = database.beginTransaction(java.sql.Connection.TRANSACTION_SERIALIZABLE);
+		try {
+			List<Row> gameRows = conn.createQuery(gameSql)
+									 .addParameter("gameId", gameId)
+									 .executeAndFetchTable()
+									 .rows();
+			if (gameRows.isEmpty()) {
+				byte[] archived = conn.createQuery(archiveSql)
+									  .addParameter("gameId", gameId)
+									  .executeScalar(byte[].class);
+				if (archived == null) {
+					return null;
+				}
+				Game game = GameArchive.unpack(gameId, archived);
+				game.setArchived(true);
+				return game;
+			}
+			Row gameRow = gameRows.get(0);
+
+			Game game = loadSnapshot(gameId, conn);
+			if (game == null) {
+				game = new Game(String.valueOf(gameId), null, null,
+								gameRow.getInteger("box_rows"), gameRow.getInteger("box_cols"));
+				loadPlayers(game, gameRow, conn);
+				fillBoard(game, conn);
+			}
+
+			// The game row is the last word on everything but the board
+			game.setState(gameRow.getString("state"));
+			game.setWhoseTurn(gameRow.getString("whose_turn"));
+			game.setRedScore(gameRow.getInteger("red_score"));
+			game.setBlueScore(gameRow.getInteger("blue_score"));
+			game.setVersion(gameRow.getLong("version"));
+			Long updatedAt = gameRow.getLong("updated_at");
+			game.setUpdatedAt(updatedAt == null ? System.currentTimeMillis() : updatedAt);
+			game.setMatchmade(gameRow.getInteger("matchmade") != 0);
+			return game;
+		} catch (Sql2oException | IOException ex) {
+			logger.error("SqliteGameRepository.loadGame: Failed to load game", ex);
+			throw new DotsServiceException("SqliteGameRepository.loadGame: Failed to load game", ex);
+		} finally {
+			// Nothing was written, this only ends the read
+			conn.rollback();
+		}
+	}
+
+	/**
+	 * This method rebuilds a game from its last snapshot and the moves
+	 * played after it.
+	 * @param gameId the game id
+	 * @param conn the open database connection
+	 * @return the game, or null if it has no snapshot
+	 * @throws IOException if the snapshot is damaged
+	 */
+	private Game loadSnapshot(int gameId, Connection conn) throws IOException {
+		String snapshotSql = "SELECT seq, data FROM game_snapshot " +
+							 "		  WHERE game_id = :gameId;";
+		String movesSql = "SELECT player_id, type, row, col FROM moves " +
+						  "		  WHERE game_id = :gameId AND seq > :seq " +
+						  "		  ORDER BY seq;";
+
+		List<Row> snapshots = conn.createQuery(snapshotSql)
+								  .addParameter("gameId", gameId)
+								  .executeAndFetchTable()
+								  .rows();
+		if (snapshots.isEmpty()) {
+			return null;
+		}
+		Row snapshot = snapshots.get(0);
+		Game game = GameArchive.unpack(gameId, (byte[]) snapshot.getObject("data"));
+
+		List<Row> moves = conn.createQuery(movesSql)
+							  .addParameter("gameId", gameId)
+							  .addParameter("seq", snapshot.getInteger("seq"))
+							  .executeAndFetchTable()
+							  .rows();
+		for (Row move : moves) {
+			Player player = game.getPlayer(String.valueOf(move.getInteger("player_id")));
+			game.play(move.getString("type"), move.getInteger("row"), move.getInteger("col"), player.getType());
+		}
+		return game;
+	}
+
+	/**
+	 * This method reads both players of a game.
+	 * @param game the game
+	 * @param gameRow the game's row
+	 * @param conn the open database connection
+	 */
+	private void loadPlayers(Game game, Row gameRow, Connection conn) {
+		String playerSql = "SELECT * FROM player " +
+						   "		  WHERE id = :id;";
+
+		Integer[] playerIds = { gameRow.getInteger("player_one_id"), gameRow.getInteger("player_two_id") };
+		for (int i = 0; i < playerIds.length; i++) {
+			if (playerIds[i] == null) {
+				continue;
+			}
+			List<Row> playerRows = conn.createQuery(playerSql)
+									   .addParameter("id", playerIds[i])
+									   .executeAndFetchTable()
+									   .rows();
+			if (playerRows.isEmpty()) {
+				continue;
+			}
+			Row playerRow = playerRows.get(0);
+			Player player = new Player(String.valueOf(playerIds[i]), playerRow.getString("type"));
+			if (i == 0) {
+				game.setPlayerOne(player);
+			} else {
+				game.setPlayerTwo(player);
+			}
+		}
+	}
+
+	/**
+	 * This method fills the game board will all of the moves that have happened in the game
+	 * @param game the game object
+	 * @param conn the open database connection
+	 * @return the game object with all of the arrays filled
+	 * @throws DotsServiceException
+	 */
+	private Game fillBoard(Game game, Connection conn) throws DotsServiceException {
+		String sql = "SELECT * FROM blocks " +
+					 "		   WHERE game_id = :gameId;";
+
+		try {
+			List<Row> gameTable = conn.createQuery(sql)
+								  .addParameter("gameId", Integer.valueOf(game.getId()))
+								  .executeAndFetchTable()
+								  .rows();
+			for (Row block : gameTable) {
+				int box = block.getInteger("row") * game.getCols() + block.getInteger("col");
+				game.claimBox(box, block.getString("color"));
+			}
+
+			// Replay the lines in the order they were played
+			String gridSql = "SELECT type, row, col FROM moves " +
+							 " 		   WHERE game_id = :gameId " +
+							 "		   ORDER BY seq;";
+
+			List<Row> moveTable = conn.createQuery(gridSql)
+									.addParameter("gameId", Integer.valueOf(game.getId()))
+									.executeAndFetchTable()
+									.rows();
+			for (Row row : moveTable) {
+				if (row.getString("type").equals("HOR")) {
+					game.fillHorizontal(row.getInteger("row"), row.getInteger("col"));
+				} else {
+					game.fillVertical(row.getInteger("row"), row.getInteger("col"));
+				}
+			}
+
+			return game;
+		} catch (Exception ex) {
+			logger.error("SqliteGameRepository.fillBoard: Failed to fill board", ex);
+			throw new DotsServiceException("SqliteGameRepository.fillBoard: Failed to fill board", ex);
+		}
+	}
+
+	/**
+	 * This method first waits for the writes already queued, so every
+	 * change the service has made is in the game table it reads.
+	 */
+	@Override
+	public Map<Integer, String> findOldGames(long finishedBefore, long waitingBefore) throws DotsServiceException {
+		String oldGamesSql = "SELECT id, state FROM game " +
+							 "		   WHERE (state = 'FINISHED' AND updated_at < :finishedBefore) " +
+							 "			  OR (state = 'WAITING_TO_START' AND updated_at < :waitingBefore);";
+
+		Map<Integer, String> oldGames = new LinkedHashMap<>();
+		try {
+			// Games whose last change is still queued would be missed or seen out of date
+			writeBehind.flush();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new DotsServiceException("SqliteGameRepository.findOldGames: Interrupted", ex);
+		}
+		try (Connection conn = database.open()) {
+			List<Row> rows = conn.createQuery(oldGamesSql)
+								 .addParameter("finishedBefore", finishedBefore)
+								 .addParameter("waitingBefore", waitingBefore)
+								 .executeAndFetchTable()
+								 .rows();
+			for (Row row : rows) {
+				oldGames.put(row.getInteger("id"), row.getString("state"));
+			}
+		} catch (Sql2oException ex) {
+			logger.error("SqliteGameRepository.findOldGames: Failed to find old games", ex);
+			throw new DotsServiceException("SqliteGameRepository.findOldGames: Failed to find old games", ex);
+		}
+		return oldGames;
+	}
+
+	/**
+	 * This method finds every game waiting for a second player, in id
+	 * order, through the index on (state, id).
+	 */
+	@Override
+	public Collection<OpenGame> findOpenGames() throws DotsServiceException {
+		String openGamesSql = "SELECT g.id, p.type, g.box_rows, g.box_cols, g.matchmade FROM game g " +
+							  "		   JOIN player p ON p.id = g.player_one_id " +
+							  "		   WHERE g.state = 'WAITING_TO_START' ORDER BY g.id;";
+
+		List<OpenGame> openGames = new ArrayList<>();
+		try (Connection conn = database.open()) {
+			List<Row> rows = conn.createQuery(openGamesSql)
+								 .executeAndFetchTable()
+								 .rows();
+			for (Row row : rows) {
+				openGames.add(new OpenGame(row.getInteger("id"), row.getString("type"), 
+						row.getInteger("box_rows"), row.getInteger("box_cols"), row.getInteger("matchmade") != 0));
+			}
+		} catch (Sql2oException ex) {
+			logger.error("SqliteGameRepository.findOpenGames: Failed to find open games", ex);
+			throw new DotsServiceException("SqliteGameRepository.findOpenGames: Failed to find open games", ex);
+		}
+		return openGames;
+	}
+
+	/**
+	 * This method queues the move of a finished game out of the game,
+	 * player, moves and blocks tables and into the archive, behind any
+	 * write still pending for the game.
+	 */
+	@Override
+	public void archiveGame(Game game, Runnable archived) {
+		int gameId = Integer.valueOf(game.getId());
+		byte[] blob = GameArchive.pack(game);
+		Integer playerOneId = game.getPlayerOne() == null ? null : Integer.valueOf(game.getPlayerOne().getId());
+		Integer playerTwoId = game.getPlayerTwo() == null ? null : Integer.valueOf(game.getPlayerTwo().getId());
+
+		String archiveSql = "INSERT OR REPLACE INTO game_archive (id, player_one_id, player_two_id, archived_at, data) " +
+							"			VALUES (:id, :playerOneId, :playerTwoId, :archivedAt, :data);";
+		String playersSql = "DELETE FROM player " +
+							"		   WHERE id IN (SELECT player_one_id FROM game WHERE id = :id " +
+							"						UNION SELECT player_two_id FROM game WHERE id = :id);";
+		writeBehind.submit(gameId, "archive of game " + gameId, conn -> {
+			conn.createQuery(archiveSql)
+				.addParameter("id", gameId)
+				.addParameter("playerOneId", playerOneId)
+				.addParameter("playerTwoId", playerTwoId)
+				.addParameter("archivedAt", System.currentTimeMillis())
+				.addParameter("data", blob)
+				.executeUpdate();
+			conn.createQuery("DELETE FROM moves WHERE game_id = :id;").addParameter("id", gameId).executeUpdate();
+			conn.createQuery("DELETE FROM blocks WHERE game_id = :id;").addParameter("id", gameId).executeUpdate();
+			conn.createQuery("DELETE FROM game_snapshot WHERE game_id = :id;").addParameter("id", gameId).executeUpdate();
+			conn.createQuery(playersSql).addParameter("id", gameId).executeUpdate();
+			conn.createQuery("DELETE FROM game WHERE id = :id;").addParameter("id", gameId).executeUpdate();
+		}, archived);
+	}
+
+	/**
+	 * This method queues the deletion of a game nobody joined and its
+	 * player. Their ids are kept in last_ids first, so they are not
+	 * handed out again if they were the highest ones.
+	 */
+	@Override
+	public void deleteGame(int gameId, Runnable deleted) {
+		String lastGameSql = "UPDATE last_ids SET last_id = MAX(last_id, :id) " +
+							 "		   WHERE name = 'game';";
+		String lastPlayerSql = "UPDATE last_ids SET last_id = MAX(last_id, " +
+							   "			COALESCE((SELECT player_one_id FROM game WHERE id = :id), 0)) " +
+							   "		   WHERE name = 'player';";
+		String playerSql = "DELETE FROM player " +
+						   "		   WHERE id = (SELECT player_one_id FROM game WHERE id = :id);";
+		writeBehind.submit(gameId, "expiry of game " + gameId, conn -> {
+			conn.createQuery(lastGameSql).addParameter("id", gameId).executeUpdate();
+			conn.createQuery(lastPlayerSql).addParameter("id", gameId).executeUpdate();
+			conn.createQuery(playerSql).addParameter("id", gameId).executeUpdate();
+			conn.createQuery("DELETE FROM game WHERE id = :id;").addParameter("id", gameId).executeUpdate();
+		}, deleted);
+	}
+
+	@Override
+	public boolean isFailed(int gameId) {
+		return writeBehind.isFailed(gameId);
+	}
+
+	/**
+	 * This method flushes every queued database write.
+	 * @throws IllegalStateException if any write never reached the database
+	 */
+	@Override
+	public void close() {
+		writeBehind.close();
+	}
+}
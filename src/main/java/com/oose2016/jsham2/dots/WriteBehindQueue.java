@@ -0,0 +1,247 @@
+package com.oose2016.jsham2.dots;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sql2o.Connection;
+import org.sql2o.Sql2o;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class writes game changes to the database in the background.
+ * The service applies every change to its in-memory games first and
+ * then hands the SQL for it to this queue. Writes run one at a time,
+ * in the order they were submitted, on a single writer thread.
+ * 
+ * Each write runs in its own transaction, so all of its statements
+ * reach the disk together with one sync, or not at all.
+ * 
+ * The queue holds at most a fixed number of writes. When it is full,
+ * submit blocks until the writer catches up. A write that still fails
+ * after MAX_ATTEMPTS tries marks its game failed. The game's later
+ * writes are then skipped, so the database never holds a game with a
+ * hole in it, and the service stops changing the game.
+ *
+ * @author jsham2, Jeffrey Sham CS421
+ */
+public class WriteBehindQueue implements AutoCloseable {
+	// Writes that may wait for the writer before submit blocks
+	public static final int DEFAULT_CAPACITY = 10000;
+	
+	// Tries at each write before its game is marked failed
+	private static final int MAX_ATTEMPTS = 3;
+	
+	// Wait before the first retry, doubled for each one after it
+	private static final long RETRY_BACKOFF_MILLIS = 100;
+	
+	// How often close() reports the writes it is still waiting for
+	private static final long FLUSH_REPORT_SECONDS = 10;
+
+	// Logger
+	private final Logger logger = LoggerFactory.getLogger(WriteBehindQueue.class);
+
+	// Database the writes go to
+	private final Sql2o database;
+
+	// The single writer thread
+	private final ThreadPoolExecutor writer;
+	
+	// Games with a write that could not be saved
+	private final Set<Integer> failedGames = ConcurrentHashMap.newKeySet();
+	
+	// Writes that never reached the database
+	private final AtomicInteger lostWrites = new AtomicInteger();
+
+	/**
+	 * The constructor that sets up the writer thread, with room for
+	 * DEFAULT_CAPACITY waiting writes.
+	 * @param database the database to write to
+	 */
+	public WriteBehindQueue(Sql2o database) {
+		this(database, DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * The constructor that sets up the writer thread.
+	 * @param database the database to write to
+	 * @param capacity writes that may wait for the writer before submit blocks
+	 */
+	public WriteBehindQueue(Sql2o database, int capacity) {
+		this.database = database;
+		this.writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, 
+				new ArrayBlockingQueue<>(capacity), runnable -> {
+					Thread thread = new Thread(runnable, "dots-write-behind");
+					thread.setDaemon(true);
+					return thread;
+				}, (runnable, executor) -> {
+					// Full, so the caller waits for room instead of the queue growing
+					try {
+						while (!executor.isShutdown()) {
+							if (executor.getQueue().offer(runnable, FLUSH_REPORT_SECONDS, TimeUnit.SECONDS)) {
+								return;
+							}
+						}
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					}
+					throw new RejectedExecutionException("Write-behind queue is closed");
+				});
+	}
+
+	/**
+	 * This method queues a write. It returns once the write is queued;
+	 * the write happens later on the writer thread, in one transaction
+	 * that is rolled back if any statement in it fails.
+	 * @param gameId the game the write belongs to
+	 * @param name a short name for the write, used when logging failures
+	 * @param write the database work to do
+	 */
+	public void submit(int gameId, String name, Write write) {
+		submit(gameId, name, write, null);
+	}
+	
+	/**
+	 * This method queues a write, and something to run on the writer
+	 * thread once the write has been committed. A failed write is tried
+	 * again, and if it never succeeds its game is marked failed.
+	 * @param gameId the game the write belongs to
+	 * @param name a short name for the write, used when logging failures
+	 * @param write the database work to do
+	 * @param committed run after the commit, or null. It is not run if the write fails.
+	 */
+	public void submit(int gameId, String name, Write write, Runnable committed) {
+		writer.execute(() -> {
+			if (failedGames.contains(gameId)) {
+				// An earlier write of the game was lost, so this one must not land without it
+				lostWrites.incrementAndGet();
+				logger.error("WriteBehindQueue: Skipped " + name + ", game " + gameId + " failed");
+				return;
+			}
+			
+			for (int attempt = 1; ; attempt++) {
+				try {
+					apply(name, write);
+					break;
+				} catch (Exception ex) {
+					if (attempt == MAX_ATTEMPTS) {
+						failedGames.add(gameId);
+						lostWrites.incrementAndGet();
+						logger.error("WriteBehindQueue: Failed to write " + name + ", game " + gameId + " failed", ex);
+						return;
+					}
+					logger.warn("WriteBehindQueue: Failed to write " + name + ", trying again", ex);
+					try {
+						Thread.sleep(RETRY_BACKOFF_MILLIS << (attempt - 1));
+					} catch (InterruptedException interrupted) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+			if (committed != null) {
+				try {
+					committed.run();
+				} catch (RuntimeException ex) {
+					logger.error("WriteBehindQueue: Failed after writing " + name, ex);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * This method runs a write in one transaction, rolling it back if
+	 * any statement in it fails.
+	 * @param name the name of the write
+	 * @param write the database work to do
+	 */
+	private void apply(String name, Write write) {
+		Connection conn = database.beginTransaction(java.sql.Connection.TRANSACTION_SERIALIZABLE);
+		try {
+			write.apply(conn);
+			conn.commit();
+		} catch (RuntimeException ex) {
+			rollback(conn, name);
+			throw ex;
+		}
+	}
+	
+	/**
+	 * @param gameId the game id
+	 * @return true if a write of the game could not be saved
+	 */
+	public boolean isFailed(int gameId) {
+		return failedGames.contains(gameId);
+	}
+	
+	/**
+	 * @return the number of writes that never reached the database
+	 */
+	public int getLostWrites() {
+		return lostWrites.get();
+	}
+	
+	/**
+	 * This method blocks until every write queued before it has been
+	 * applied, or has failed.
+	 * @throws InterruptedException if the waiting thread is interrupted
+	 */
+	public void flush() throws InterruptedException {
+		try {
+			writer.submit(() -> { }).get();
+		} catch (ExecutionException | RejectedExecutionException ex) {
+			// Nothing more to wait for
+		}
+	}
+	
+	/**
+	 * This method undoes a failed write. The connection is closed afterwards.
+	 * @param conn the connection the write ran on
+	 * @param name the name of the write
+	 */
+	private void rollback(Connection conn, String name) {
+		try {
+			conn.rollback();
+		} catch (Exception ex) {
+			logger.error("WriteBehindQueue: Failed to roll back " + name, ex);
+		}
+	}
+
+	/**
+	 * This method stops taking new writes and blocks until every
+	 * queued write has been applied to the database. If it is
+	 * interrupted first, the writes still queued are dropped and
+	 * counted as lost.
+	 * @throws IllegalStateException if any write never reached the database
+	 */
+	@Override
+	public void close() {
+		writer.shutdown();
+		try {
+			while (!writer.awaitTermination(FLUSH_REPORT_SECONDS, TimeUnit.SECONDS)) {
+				logger.warn("WriteBehindQueue.close: Still flushing " + writer.getQueue().size() + " writes");
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			lostWrites.addAndGet(writer.shutdownNow().size());
+		}
+		
+		int lost = lostWrites.get();
+		if (lost > 0) {
+			logger.error("WriteBehindQueue.close: " + lost + " writes never reached the database, games " + failedGames);
+			throw new IllegalStateException(lost + " writes never reached the database");
+		}
+	}
+
+	/**
+	 * A piece of database work run on the writer thread.
+	 */
+	public interface Write {
+		void apply(Connection conn);
+	}
+}
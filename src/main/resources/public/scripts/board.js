@@ -26,6 +26,19 @@ Board.prototype.resetBoard = function() {
 }
 
 
+Board.prototype.setSize = function(numRows, numCols) {
+
+    if (numRows === this.numRows && numCols === this.numCols)
+        return;
+
+    this.numRows = numRows;
+    this.numCols = numCols;
+
+    $('#board > svg').empty();
+    this.setupBoard();
+}
+
+
 Board.prototype.updateBoard = function(horizontalLines, verticalLines, boxes) {
 
     for (var i in horizontalLines) {
@@ -73,7 +86,11 @@ Board.prototype.setupBoard = function() {
 
     var yPos = function(y) { return pad + (size-2*pad) * y/numRows; }
     var xPos = function(x) { return pad + (size-2*pad) * x/numCols; }
-    var boxSize = yPos(1)-yPos(0);
+    var boxWidth = xPos(1)-xPos(0);
+    var boxHeight = yPos(1)-yPos(0);
+
+    // Keep the dots from overlapping on big boards
+    r = Math.min(r, Math.min(boxWidth, boxHeight)/4);
 
     $('#board > svg').attr('width', size).attr('height', size);
 
@@ -86,8 +103,8 @@ Board.prototype.setupBoard = function() {
                 .attr('row', y).attr('col', x)
                 .attr('y', yPos(y))
                 .attr('x', xPos(x))
-                .attr('width', boxSize)
-                .attr('height', boxSize)
+                .attr('width', boxWidth)
+                .attr('height', boxHeight)
                 .attr('fill', 'white');
             $('#board > svg').append(box);
         }
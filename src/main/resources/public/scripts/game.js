@@ -5,6 +5,7 @@ function Game() {
     this.view = new View();
 
     this.updateInterval = undefined;
+    this.events = undefined;
 
     this.setup();
 }
@@ -36,48 +37,74 @@ Game.prototype.updateBoardAndState = function() {
 
     var self = this;
 
-    this.model.getBoard()
+    // Board and state come from one read so they always agree.
+    this.model.getSnapshot()
         .done(function (data) {
-            self.board.updateBoard(data.horizontalLines, data.verticalLines, data.boxes);
-        })
-        .fail(function (jqXHR) {
-            if (jqXHR.status == 404) {
-                self.view.postErrorWithCode("Unable to update the game board because the game was not found.",
-                    jqXHR.status, jqXHR.statusText);
-            }
-            else
-                self.view.postErrorWithCode("Unable to update the game board.", jqXHR.status, jqXHR.statusText);
-            clearInterval(self.updateInterval);
-        });
-
-    this.model.getState()
-        .done(function (data) {
-            self.view.updateState(data.state, data.whoseTurn, data.redScore, data.blueScore,
+            var board = data.board;
+            var state = data.state;
+            self.board.updateBoard(board.horizontalLines, board.verticalLines, board.boxes);
+            self.view.updateState(state.state, state.whoseTurn, state.redScore, state.blueScore,
                 self.model.playerType, self.model.gameId);
         })
         .fail(function (jqXHR) {
             if (jqXHR.status == 404) {
-                self.view.postErrorWithCode("Unable to update the game state because the game was not found.",
+                self.view.postErrorWithCode("Unable to update the game because the game was not found.",
                     jqXHR.status, jqXHR.statusText);
             }
             else
-                self.view.postErrorWithCode("Unable to update the game state.", jqXHR.status, jqXHR.statusText);
+                self.view.postErrorWithCode("Unable to update the game.", jqXHR.status, jqXHR.statusText);
             clearInterval(self.updateInterval);
         });
 }
 
 
+Game.prototype.listenForUpdates = function() {
+
+    var self = this;
+
+    // Browsers without Server-Sent Events fall back to polling.
+    if (window.EventSource === undefined) {
+        this.updateBoardAndState();
+        if (this.updateInterval == undefined)
+            this.updateInterval = setInterval(function() { self.updateBoardAndState(); }, 1000);
+        return;
+    }
+
+    if (this.events !== undefined)
+        this.events.close();
+
+    var events = this.model.getEvents();
+    this.events = events;
+
+    events.addEventListener('update', function (event) {
+        var data = JSON.parse(event.data);
+        var board = data.board;
+        var state = data.state;
+        self.board.updateBoard(board.horizontalLines, board.verticalLines, board.boxes);
+        self.view.updateState(state.state, state.whoseTurn, state.redScore, state.blueScore,
+            self.model.playerType, self.model.gameId);
+        if (state.state == 'FINISHED')
+            events.close();
+    });
+
+    events.onerror = function () {
+        // The browser reconnects on its own unless the stream was refused.
+        if (events.readyState == EventSource.CLOSED)
+            self.view.postError("Lost the connection to the game.");
+    };
+}
+
+
 Game.prototype.createGame = function(playerType) {
 
     var self = this;
 
     this.model.createGame(playerType)
         .done(function (data) {
+            self.board.setSize(data.rows, data.cols);
             self.board.resetBoard();
             self.updateError = false;
-            self.updateBoardAndState();
-            if (self.updateInterval == undefined)
-                self.updateInterval = setInterval(function() { self.updateBoardAndState(); }, 1000);
+            self.listenForUpdates();
         })
         .fail(function (jqXHR) {
             self.view.postErrorWithCode("Unable to create game.", jqXHR.status, jqXHR.statusText);
@@ -91,9 +118,8 @@ Game.prototype.joinGame = function(gameId) {
 
     this.model.joinGame(gameId)
         .done(function (data) {
-            self.updateBoardAndState();
-            if (self.updateInterval == undefined)
-                self.updateInterval = setInterval(function() { self.updateBoardAndState(); }, 1000);
+            self.board.setSize(data.rows, data.cols);
+            self.listenForUpdates();
         })
         .fail(function (jqXHR) {
             switch (jqXHR.status) {
@@ -116,7 +142,9 @@ Game.prototype.makeHorizontalMove = function(row, col) {
 
     return this.model.makeHorizontalMove(row, col)
         .done(function (data) {
-            self.updateBoardAndState();
+            // The event stream pushes the move, polling clients fetch it.
+            if (self.events === undefined)
+                self.updateBoardAndState();
         })
         .fail(function (jqXHR) {
             switch (jqXHR.status) {
@@ -139,7 +167,9 @@ Game.prototype.makeVerticalMove = function(row, col) {
 
     return this.model.makeVerticalMove(row, col)
         .done(function (data) {
-            self.updateBoardAndState();
+            // The event stream pushes the move, polling clients fetch it.
+            if (self.events === undefined)
+                self.updateBoardAndState();
         })
         .fail(function (jqXHR) {
             switch (jqXHR.status) {
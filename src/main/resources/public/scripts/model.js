@@ -75,6 +75,16 @@ Model.prototype.getBoard = function() {
 }
 
 
+Model.prototype.getSnapshot = function() {
+    return $.get('/dots/api/games/'+this.gameId+'/snapshot', '{}', null, 'json');
+}
+
+
+Model.prototype.getEvents = function() {
+    return new EventSource('/dots/api/games/'+this.gameId+'/events');
+}
+
+
 Model.prototype.getState = function() {
 
     var self = this;
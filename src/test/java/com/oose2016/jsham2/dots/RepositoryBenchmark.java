@@ -0,0 +1,122 @@
+package com.oose2016.jsham2.dots;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.sqlite.SQLiteConfig;
+import org.sqlite.SQLiteDataSource;
+
+/**
+ * Compares the game repositories by playing the same games through a
+ * DotsService backed by each one. Every iteration starts from an empty
+ * store, creates and joins a number of games and plays each one to the
+ * end, then closes the service so the time includes every write reaching
+ * the disk. Like JMH, the first iterations only warm up and the rest are
+ * reported as moves per second, mean and standard deviation.
+ *
+ * Run it after mvn test-compile with
+ * java -cp target/classes:target/test-classes:[dependencies]
+ * com.oose2016.jsham2.dots.RepositoryBenchmark [games] [boardSize]
+ *
+ * @author jsham2, Jeffrey Sham CS421
+ *
+ */
+public class RepositoryBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURED_ITERATIONS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int games = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int movesPerGame = (size + 1) * size * 2;
+
+        System.out.printf("%d games of %dx%d boxes, %d moves each%n", games, size, size, movesPerGame);
+        System.out.printf("%-8s %14s %12s%n", "store", "moves/s", "stddev");
+        for (String store : new String[] { "memory", "journal", "sqlite" }) {
+            List<Double> rates = new ArrayList<>();
+            for (int i = 0; i < WARMUP_ITERATIONS + MEASURED_ITERATIONS; i++) {
+                double rate = (double) games * movesPerGame / run(store, games, size);
+                if (i >= WARMUP_ITERATIONS) {
+                    rates.add(rate);
+                }
+            }
+
+            double mean = rates.stream().mapToDouble(Double::doubleValue).average().orElse(0);
+            double variance = rates.stream().mapToDouble(rate -> (rate - mean) * (rate - mean)).sum()
+                    / Math.max(1, rates.size() - 1);
+            System.out.printf(Locale.ROOT, "%-8s %14.0f %12.0f%n", store, mean, Math.sqrt(variance));
+        }
+    }
+
+    /**
+     * Plays the games once on a new store.
+     * @return the seconds it took, including closing the service
+     */
+    private static double run(String store, int games, int size) throws Exception {
+        Path dir = Files.createTempDirectory("dots-bench");
+        try {
+            DotsService service = new DotsService(open(store, dir));
+            long start = System.nanoTime();
+            String create = "{\"playerType\": \"RED\", \"rows\": " + size + ", \"cols\": " + size + "}";
+            for (int g = 0; g < games; g++) {
+                Game game = service.createGame(create);
+                service.joinGame(game.getId());
+                play(service, game, size);
+            }
+            service.close();
+            return (System.nanoTime() - start) / 1e9;
+        } finally {
+            for (File file : dir.toFile().listFiles()) {
+                file.delete();
+            }
+            dir.toFile().delete();
+        }
+    }
+
+    /**
+     * Plays every line of the board, row by row, with whoever's turn it is.
+     */
+    private static void play(DotsService service, Game game, int size) throws Exception {
+        String red = game.getPlayerOne().getId();
+        String blue = game.getPlayerTwo().getId();
+        for (int row = 0; row <= size; row++) {
+            for (int col = 0; col <= size; col++) {
+                if (col < size) {
+                    move(service, game, red, blue, "HOR", row, col);
+                }
+                if (row < size) {
+                    move(service, game, red, blue, "VERT", row, col);
+                }
+            }
+        }
+    }
+
+    private static void move(DotsService service, Game game, String red, String blue,
+            String type, int row, int col) throws Exception {
+        String playerId = service.getGameState(game.getId()).getWhoseTurn().equals("RED") ? red : blue;
+        service.validateMove(game.getId(),
+                "{\"playerId\": " + playerId + ", \"row\": " + row + ", \"col\": " + col + "}", type);
+    }
+
+    private static GameRepository open(String store, Path dir) throws Exception {
+        if (store.equals("memory")) {
+            return new MemoryGameRepository();
+        }
+        if (store.equals("journal")) {
+            return new JournalGameRepository(Bootstrap.openJournal(dir.resolve("dots.journal")));
+        }
+
+        // The same settings as the server's database
+        SQLiteConfig config = new SQLiteConfig();
+        config.setJournalMode(SQLiteConfig.JournalMode.WAL);
+        config.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+        SQLiteDataSource dataSource = new SQLiteDataSource(config);
+        dataSource.setUrl("jdbc:sqlite:" + dir.resolve("dots.db"));
+        return new SqliteGameRepository(dataSource);
+    }
+}
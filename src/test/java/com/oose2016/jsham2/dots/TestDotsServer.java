@@ -2,12 +2,38 @@ package com.oose2016.jsham2.dots;
 
 import static org.junit.Assert.*;
 
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Type;
 import java.net.HttpURLConnection;
+import java.net.URI;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
+import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
 import org.junit.*;
 import org.sql2o.Connection;
 import org.sql2o.Sql2o;
@@ -18,7 +44,9 @@ import spark.utils.IOUtils;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 
 /**
  * Test class for the dots server. Based off of the TestTodoServer
@@ -45,9 +73,9 @@ public class TestDotsServer {
 
     @After
     public void tearDown() {
-        //Stop the server
+        //Stop the server and flush its writes before clearing
+        Bootstrap.stop();
         clearDB();
-        Spark.stop();
     }
 
     //------------------------------------------------------------------------//
@@ -489,6 +517,1588 @@ public class TestDotsServer {
     	assertEquals("Incorrect board", "BLUE", boxes.get(0).getAsJsonObject().get("owner").getAsString());
     }
  
+    @Test
+    public void testBoardSize() {
+    	//Create a 6x3 game
+    	JsonObject param = new JsonObject();
+    	param.addProperty("playerType", "RED");
+    	param.addProperty("rows", 6);
+    	param.addProperty("cols", 3);
+    	
+    	Response create = request("POST", "/dots/api/games", param);
+    	assertEquals("Failed to create game", 201, create.httpStatus);
+    	
+    	JsonObject createJson = create.getContentAsObject(JsonObject.class);
+    	String gameId = createJson.get("gameId").getAsString();
+    	String playerOneId = createJson.get("playerId").getAsString();
+    	assertEquals("Incorrect rows", 6, createJson.get("rows").getAsInt());
+    	assertEquals("Incorrect cols", 3, createJson.get("cols").getAsInt());
+    	
+    	Response join = request("PUT", "/dots/api/games/" + gameId, null);
+    	assertEquals("Failed to join game", 200, join.httpStatus);
+    	
+    	//Bottom edge of the board is row 6, row 7 is off the board
+    	JsonObject offBoard = new JsonObject();
+    	offBoard.addProperty("playerId", playerOneId);
+    	offBoard.addProperty("row", 7);
+    	offBoard.addProperty("col", 0);
+    	
+    	Response badMove = request("POST", "/dots/api/games/" + gameId + "/hmove", offBoard);
+    	assertEquals("Incorrectly added move", null, badMove);
+    	
+    	JsonObject bottomEdge = new JsonObject();
+    	bottomEdge.addProperty("playerId", playerOneId);
+    	bottomEdge.addProperty("row", 6);
+    	bottomEdge.addProperty("col", 2);
+    	
+    	Response goodMove = request("POST", "/dots/api/games/" + gameId + "/hmove", bottomEdge);
+    	assertEquals("Failed to add move", 200, goodMove.httpStatus);
+    	
+    	//Look at board
+    	Response board = request("GET", "/dots/api/games/" + gameId + "/board", null);
+    	assertEquals("Failed to get board", 200, board.httpStatus);
+    	
+    	JsonObject boardJson = board.getContentAsObject(JsonObject.class);
+    	assertEquals("Incorrect board", 7 * 3, boardJson.get("horizontalLines").getAsJsonArray().size());
+    	assertEquals("Incorrect board", 6 * 4, boardJson.get("verticalLines").getAsJsonArray().size());
+    	assertEquals("Incorrect board", 6 * 3, boardJson.get("boxes").getAsJsonArray().size());
+    	
+    	//Test invalid sizes
+    	JsonObject tooSmall = new JsonObject();
+    	tooSmall.addProperty("playerType", "RED");
+    	tooSmall.addProperty("rows", 0);
+    	
+    	JsonObject tooBig = new JsonObject();
+    	tooBig.addProperty("playerType", "RED");
+    	tooBig.addProperty("cols", DotsService.MAX_BOARD_SIZE + 1);
+    	
+    	Response createInvalid = request("POST", "/dots/api/games", tooSmall);
+    	assertEquals("Incorrectly created game", null, createInvalid);
+    	
+    	createInvalid = request("POST", "/dots/api/games", tooBig);
+    	assertEquals("Incorrectly created game", null, createInvalid);
+    }
+    
+    @Test
+    public void testRestoreGame() {
+    	//Create and join game
+    	JsonObject param = new JsonObject();
+    	param.addProperty("playerType", "BLUE");
+    	
+    	Response create = request("POST", "/dots/api/games", param);
+    	assertEquals("Failed to create game", 201, create.httpStatus);
+    	
+    	JsonObject createJson = create.getContentAsObject(JsonObject.class);
+    	String gameId = createJson.get("gameId").getAsString();
+    	
+    	Response join = request("PUT", "/dots/api/games/" + gameId, null);
+    	assertEquals("Failed to join game", 200, join.httpStatus);
+    	JsonObject joinJson = join.getContentAsObject(JsonObject.class);
+    	String redId = joinJson.get("playerId").getAsString();
+    	
+    	JsonObject validParam = new JsonObject();
+    	validParam.addProperty("playerId", redId);
+    	validParam.addProperty("row", 2);
+    	validParam.addProperty("col", 3);
+    	
+    	Response goodMove = request("POST", "/dots/api/games/" + gameId + "/hmove", validParam);
+    	assertEquals("Failed to add move", 200, goodMove.httpStatus);
+    	
+    	//Restart the server, the game should come back from the database
+    	Bootstrap.stop();
+    	Bootstrap.main(null);
+    	Spark.awaitInitialization();
+    	
+    	Response state = request("GET", "/dots/api/games/" + gameId + "/state", null);
+    	assertEquals("Failed to get state", 200, state.httpStatus);
+    	
+    	JsonObject stateJson = state.getContentAsObject(JsonObject.class);
+    	assertEquals("Invalid state", "IN_PROGRESS", stateJson.get("state").getAsString());
+    	assertEquals("Invalid turn", "BLUE", stateJson.get("whoseTurn").getAsString());
+    	
+    	Response board = request("GET", "/dots/api/games/" + gameId + "/board", null);
+    	assertEquals("Failed to get board", 200, board.httpStatus);
+    	
+    	JsonObject boardJson = board.getContentAsObject(JsonObject.class);
+    	JsonArray horLines = boardJson.get("horizontalLines").getAsJsonArray();
+    	for (int i = 0; i < horLines.size(); i++) {
+    		JsonObject line = horLines.get(i).getAsJsonObject();
+    		boolean expected = line.get("row").getAsInt() == 2 && line.get("col").getAsInt() == 3;
+    		assertEquals("Incorrect board", expected, line.get("filled").getAsBoolean());
+    	}
+    	
+    	//Game ids keep going after the restart
+    	Response createAgain = request("POST", "/dots/api/games", param);
+    	assertEquals("Failed to create game", 201, createAgain.httpStatus);
+    	JsonObject createAgainJson = createAgain.getContentAsObject(JsonObject.class);
+    	assertNotEquals("Reused game id", gameId, createAgainJson.get("gameId").getAsString());
+    }
+ 
+    @Test
+    public void testGameEvents() throws Exception {
+    	//Create game
+    	JsonObject param = new JsonObject();
+    	param.addProperty("playerType", "RED");
+    	
+    	Response create = request("POST", "/dots/api/games", param);
+    	assertEquals("Failed to create game", 201, create.httpStatus);
+    	
+    	JsonObject createJson = create.getContentAsObject(JsonObject.class);
+    	String gameId = createJson.get("gameId").getAsString();
+    	String redId = createJson.get("playerId").getAsString();
+    	
+    	//Open the event stream, the first event is the current game
+    	URL url = new URL("http", Bootstrap.IP_ADDRESS, Bootstrap.PORT, "/dots/api/games/" + gameId + "/events");
+    	HttpURLConnection http = (HttpURLConnection) url.openConnection();
+    	http.setReadTimeout(5000);
+    	assertEquals("Failed to open events", 200, http.getResponseCode());
+    	assertTrue("Incorrect content type", http.getContentType().startsWith("text/event-stream"));
+    	
+    	BufferedReader events = new BufferedReader(new InputStreamReader(http.getInputStream(), "UTF-8"));
+    	JsonObject event = readEvent(events);
+    	assertEquals("Incorrect version", 0, event.get("version").getAsLong());
+    	assertEquals("Invalid state", "WAITING_TO_START", 
+    			event.get("state").getAsJsonObject().get("state").getAsString());
+    	
+    	//Joining pushes an event
+    	Response join = request("PUT", "/dots/api/games/" + gameId, null);
+    	assertEquals("Failed to join game", 200, join.httpStatus);
+    	
+    	event = readEvent(events);
+    	assertEquals("Incorrect version", 1, event.get("version").getAsLong());
+    	assertEquals("Invalid state", "IN_PROGRESS", 
+    			event.get("state").getAsJsonObject().get("state").getAsString());
+    	
+    	//A move pushes an event with the new board
+    	JsonObject validParam = new JsonObject();
+    	validParam.addProperty("playerId", redId);
+    	validParam.addProperty("row", 0);
+    	validParam.addProperty("col", 1);
+    	
+    	Response goodMove = request("POST", "/dots/api/games/" + gameId + "/hmove", validParam);
+    	assertEquals("Failed to add move", 200, goodMove.httpStatus);
+    	
+    	event = readEvent(events);
+    	assertEquals("Incorrect version", 2, event.get("version").getAsLong());
+    	assertEquals("Invalid turn", "BLUE", 
+    			event.get("state").getAsJsonObject().get("whoseTurn").getAsString());
+    	//Only the new line is sent
+    	assertFalse("Sent full board", event.get("full").getAsBoolean());
+    	JsonArray horLines = event.get("board").getAsJsonObject().get("horizontalLines").getAsJsonArray();
+    	assertEquals("Incorrect board", 1, horLines.size());
+    	JsonObject line = horLines.get(0).getAsJsonObject();
+    	assertEquals("Incorrect board", 0, line.get("row").getAsInt());
+    	assertEquals("Incorrect board", 1, line.get("col").getAsInt());
+    	http.disconnect();
+    	
+    	//Invalid game
+    	Response missing = request("GET", "/dots/api/games/9999/events", null);
+    	assertEquals("Incorrectly opened events", null, missing);
+    }
+    
+    @Test
+    public void testManyEventStreams() throws Exception {
+    	//Create game
+    	JsonObject param = new JsonObject();
+    	param.addProperty("playerType", "RED");
+    	
+    	Response create = request("POST", "/dots/api/games", param);
+    	assertEquals("Failed to create game", 201, create.httpStatus);
+    	JsonObject createJson = create.getContentAsObject(JsonObject.class);
+    	String gameId = createJson.get("gameId").getAsString();
+    	
+    	Response before = request("GET", "/dots/api/metrics", null);
+    	JsonObject beforeJson = before.getContentAsObject(JsonObject.class);
+    	int busyBefore = beforeJson.get("threads").getAsJsonObject().get("busyThreads").getAsInt();
+    	
+    	//Open more streams than there are spare request threads to park in
+    	int count = 50;
+    	HttpURLConnection[] streams = new HttpURLConnection[count];
+    	BufferedReader[] readers = new BufferedReader[count];
+    	URL url = new URL("http", Bootstrap.IP_ADDRESS, Bootstrap.PORT, "/dots/api/games/" + gameId + "/events");
+    	for (int i = 0; i < count; i++) {
+    		streams[i] = (HttpURLConnection) url.openConnection();
+    		streams[i].setReadTimeout(5000);
+    		assertEquals("Failed to open events", 200, streams[i].getResponseCode());
+    		readers[i] = new BufferedReader(new InputStreamReader(streams[i].getInputStream(), "UTF-8"));
+    		assertEquals("Incorrect version", 0, readEvent(readers[i]).get("version").getAsLong());
+    	}
+    	
+    	//The open streams hold no request threads
+    	Response during = request("GET", "/dots/api/metrics", null);
+    	JsonObject duringJson = during.getContentAsObject(JsonObject.class);
+    	int busyDuring = duringJson.get("threads").getAsJsonObject().get("busyThreads").getAsInt();
+    	assertTrue("Streams hold request threads", busyDuring - busyBefore < 10);
+    	
+    	//Every stream still gets the next change
+    	Response join = request("PUT", "/dots/api/games/" + gameId, null);
+    	assertEquals("Failed to join game", 200, join.httpStatus);
+    	for (int i = 0; i < count; i++) {
+    		assertEquals("Incorrect version", 1, readEvent(readers[i]).get("version").getAsLong());
+    		streams[i].disconnect();
+    	}
+    }
+ 
+    @Test
+    public void testGameSocket() throws Exception {
+    	//Create and join game
+    	JsonObject param = new JsonObject();
+    	param.addProperty("playerType", "RED");
+    	
+    	Response create = request("POST", "/dots/api/games", param);
+    	assertEquals("Failed to create game", 201, create.httpStatus);
+    	JsonObject createJson = create.getContentAsObject(JsonObject.class);
+    	String gameId = createJson.get("gameId").getAsString();
+    	String redId = createJson.get("playerId").getAsString();
+    	
+    	Response join = request("PUT", "/dots/api/games/" + gameId, null);
+    	assertEquals("Failed to join game", 200, join.httpStatus);
+    	JsonObject joinJson = join.getContentAsObject(JsonObject.class);
+    	String blueId = joinJson.get("playerId").getAsString();
+    	
+    	WebSocketClient client = new WebSocketClient();
+    	client.start();
+    	try {
+    		//Both players connect and get the current game
+    		SocketMessages red = new SocketMessages();
+    		SocketMessages blue = new SocketMessages();
+    		Session redSession = client.connect(red, socketUri(gameId, redId)).get(5, TimeUnit.SECONDS);
+    		client.connect(blue, socketUri(gameId, blueId)).get(5, TimeUnit.SECONDS);
+    		
+    		JsonObject first = red.next();
+    		assertEquals("Incorrect message", "update", first.get("type").getAsString());
+    		assertEquals("Incorrect version", 1, first.get("version").getAsLong());
+    		assertTrue("Missing board", first.has("board"));
+    		blue.next();
+    		
+    		//Red moves over the socket
+    		JsonObject move = new JsonObject();
+    		move.addProperty("move", "hmove");
+    		move.addProperty("row", 0);
+    		move.addProperty("col", 0);
+    		redSession.getRemote().sendString(move.toString());
+    		
+    		JsonObject ack = red.next();
+    		JsonObject redUpdate = red.next();
+    		if (ack.get("type").getAsString().equals("update")) {
+    			JsonObject swap = ack;
+    			ack = redUpdate;
+    			redUpdate = swap;
+    		}
+    		assertEquals("Failed to add move", "ack", ack.get("type").getAsString());
+    		assertEquals("Incorrect version", 2, redUpdate.get("version").getAsLong());
+    		
+    		//Blue hears about it
+    		JsonObject blueUpdate = blue.next();
+    		assertEquals("Incorrect message", "update", blueUpdate.get("type").getAsString());
+    		assertEquals("Incorrect move", "HOR", 
+    				blueUpdate.get("move").getAsJsonObject().get("type").getAsString());
+    		assertEquals("Invalid turn", "BLUE", 
+    				blueUpdate.get("state").getAsJsonObject().get("whoseTurn").getAsString());
+    		
+    		//Red cannot move again
+    		move.addProperty("col", 1);
+    		redSession.getRemote().sendString(move.toString());
+    		JsonObject error = red.next();
+    		assertEquals("Incorrectly added move", "error", error.get("type").getAsString());
+    		assertEquals("Incorrectly added move", 422, error.get("status").getAsInt());
+    		
+    		//Bad message
+    		redSession.getRemote().sendString("{\"move\": \"jump\"}");
+    		error = red.next();
+    		assertEquals("Incorrectly added move", 400, error.get("status").getAsInt());
+    	} finally {
+    		client.stop();
+    	}
+    }
+ 
+    @Test
+    public void testConditionalGet() throws Exception {
+    	//Create and join game
+    	JsonObject param = new JsonObject();
+    	param.addProperty("playerType", "RED");
+    	
+    	Response create = request("POST", "/dots/api/games", param);
+    	assertEquals("Failed to create game", 201, create.httpStatus);
+    	JsonObject createJson = create.getContentAsObject(JsonObject.class);
+    	String gameId = createJson.get("gameId").getAsString();
+    	String redId = createJson.get("playerId").getAsString();
+    	
+    	Response join = request("PUT", "/dots/api/games/" + gameId, null);
+    	assertEquals("Failed to join game", 200, join.httpStatus);
+    	
+    	for (String path : new String[] { "/board", "/state" }) {
+    		//First read gets the version
+    		HttpURLConnection http = conditionalGet("/dots/api/games/" + gameId + path, null);
+    		assertEquals("Failed to get " + path, 200, http.getResponseCode());
+    		String etag = http.getHeaderField("ETag");
+    		assertNotNull("Missing ETag", etag);
+    		
+    		//Same version is not sent again
+    		http = conditionalGet("/dots/api/games/" + gameId + path, etag);
+    		assertEquals("Resent unchanged " + path, 304, http.getResponseCode());
+    		assertEquals("Incorrect ETag", etag, http.getHeaderField("ETag"));
+    		
+    		http = conditionalGet("/dots/api/games/" + gameId + path, "\"nope\", " + etag);
+    		assertEquals("Resent unchanged " + path, 304, http.getResponseCode());
+    	}
+    	
+    	HttpURLConnection http = conditionalGet("/dots/api/games/" + gameId + "/board", null);
+    	String etag = http.getHeaderField("ETag");
+    	
+    	JsonObject validParam = new JsonObject();
+    	validParam.addProperty("playerId", redId);
+    	validParam.addProperty("row", 0);
+    	validParam.addProperty("col", 0);
+    	
+    	Response goodMove = request("POST", "/dots/api/games/" + gameId + "/hmove", validParam);
+    	assertEquals("Failed to add move", 200, goodMove.httpStatus);
+    	
+    	//A move changes the version
+    	http = conditionalGet("/dots/api/games/" + gameId + "/board", etag);
+    	assertEquals("Failed to get changed board", 200, http.getResponseCode());
+    	assertNotEquals("Incorrect ETag", etag, http.getHeaderField("ETag"));
+    }
+ 
+    @Test
+    public void testSnapshot() {
+    	//Create and join game
+    	JsonObject param = new JsonObject();
+    	param.addProperty("playerType", "BLUE");
+    	
+    	Response create = request("POST", "/dots/api/games", param);
+    	assertEquals("Failed to create game", 201, create.httpStatus);
+    	JsonObject createJson = create.getContentAsObject(JsonObject.class);
+    	String gameId = createJson.get("gameId").getAsString();
+    	
+    	Response join = request("PUT", "/dots/api/games/" + gameId, null);
+    	assertEquals("Failed to join game", 200, join.httpStatus);
+    	JsonObject joinJson = join.getContentAsObject(JsonObject.class);
+    	String redId = joinJson.get("playerId").getAsString();
+    	
+    	JsonObject validParam = new JsonObject();
+    	validParam.addProperty("playerId", redId);
+    	validParam.addProperty("row", 1);
+    	validParam.addProperty("col", 0);
+    	
+    	Response goodMove = request("POST", "/dots/api/games/" + gameId + "/vmove", validParam);
+    	assertEquals("Failed to add move", 200, goodMove.httpStatus);
+    	
+    	//Board and state come back together
+    	Response snapshot = request("GET", "/dots/api/games/" + gameId + "/snapshot", null);
+    	assertEquals("Failed to get snapshot", 200, snapshot.httpStatus);
+    	
+    	JsonObject snapshotJson = snapshot.getContentAsObject(JsonObject.class);
+    	assertEquals("Incorrect version", 2, snapshotJson.get("version").getAsLong());
+    	
+    	JsonObject stateJson = snapshotJson.get("state").getAsJsonObject();
+    	assertEquals("Invalid state", "IN_PROGRESS", stateJson.get("state").getAsString());
+    	assertEquals("Invalid turn", "BLUE", stateJson.get("whoseTurn").getAsString());
+    	
+    	JsonObject boardJson = snapshotJson.get("board").getAsJsonObject();
+    	JsonArray vertLines = boardJson.get("verticalLines").getAsJsonArray();
+    	for (int i = 0; i < vertLines.size(); i++) {
+    		JsonObject line = vertLines.get(i).getAsJsonObject();
+    		boolean expected = line.get("row").getAsInt() == 1 && line.get("col").getAsInt() == 0;
+    		assertEquals("Incorrect board", expected, line.get("filled").getAsBoolean());
+    	}
+    	assertEquals("Incorrect board", 16, boardJson.get("boxes").getAsJsonArray().size());
+    	
+    	//Invalid game
+    	Response missing = request("GET", "/dots/api/games/9999/snapshot", null);
+    	assertEquals("Incorrectly got snapshot", null, missing);
+    }
+ 
+    @Test
+    public void testBoardSinceVersion() {
+    	//Create and join game
+    	JsonObject param = new JsonObject();
+    	param.addProperty("playerType", "RED");
+    	
+    	Response create = request("POST", "/dots/api/games", param);
+    	assertEquals("Failed to create game", 201, create.httpStatus);
+    	JsonObject createJson = create.getContentAsObject(JsonObject.class);
+    	String gameId = createJson.get("gameId").getAsString();
+    	String redId = createJson.get("playerId").getAsString();
+    	
+    	Response join = request("PUT", "/dots/api/games/" + gameId, null);
+    	assertEquals("Failed to join game", 200, join.httpStatus);
+    	JsonObject joinJson = join.getContentAsObject(JsonObject.class);
+    	String blueId = joinJson.get("playerId").getAsString();
+    	
+    	//Three sides of the top left box, turns alternate
+    	JsonObject move = new JsonObject();
+    	String[][] moves = { {"hmove", "0", "0"}, {"vmove", "0", "0"}, {"hmove", "1", "0"} };
+    	for (int i = 0; i < moves.length; i++) {
+    		move.addProperty("playerId", i % 2 == 0 ? redId : blueId);
+    		move.addProperty("row", Integer.valueOf(moves[i][1]));
+    		move.addProperty("col", Integer.valueOf(moves[i][2]));
+    		Response goodMove = request("POST", "/dots/api/games/" + gameId + "/" + moves[i][0], move);
+    		assertEquals("Failed to add move", 200, goodMove.httpStatus);
+    	}
+    	
+    	Response board = request("GET", "/dots/api/games/" + gameId + "/board?sinceVersion=3", null);
+    	assertEquals("Failed to get board", 200, board.httpStatus);
+    	JsonObject boardJson = board.getContentAsObject(JsonObject.class);
+    	assertFalse("Sent full board", boardJson.get("full").getAsBoolean());
+    	assertEquals("Incorrect version", 4, boardJson.get("version").getAsLong());
+    	assertEquals("Incorrect board", 1, boardJson.get("horizontalLines").getAsJsonArray().size());
+    	assertEquals("Incorrect board", 0, boardJson.get("verticalLines").getAsJsonArray().size());
+    	assertEquals("Incorrect board", 0, boardJson.get("boxes").getAsJsonArray().size());
+    	
+    	//Blue finishes the box
+    	move.addProperty("playerId", blueId);
+    	move.addProperty("row", 0);
+    	move.addProperty("col", 1);
+    	Response winMove = request("POST", "/dots/api/games/" + gameId + "/vmove", move);
+    	assertEquals("Failed to add move", 200, winMove.httpStatus);
+    	
+    	board = request("GET", "/dots/api/games/" + gameId + "/board?sinceVersion=4", null);
+    	boardJson = board.getContentAsObject(JsonObject.class);
+    	assertEquals("Incorrect version", 5, boardJson.get("version").getAsLong());
+    	JsonArray boxes = boardJson.get("boxes").getAsJsonArray();
+    	assertEquals("Incorrect board", 1, boxes.size());
+    	assertEquals("Incorrect board", "BLUE", boxes.get(0).getAsJsonObject().get("owner").getAsString());
+    	
+    	//Nothing changed
+    	board = request("GET", "/dots/api/games/" + gameId + "/board?sinceVersion=5", null);
+    	boardJson = board.getContentAsObject(JsonObject.class);
+    	assertFalse("Sent full board", boardJson.get("full").getAsBoolean());
+    	assertEquals("Incorrect board", 0, boardJson.get("horizontalLines").getAsJsonArray().size());
+    	
+    	//Unknown version gets the whole board
+    	board = request("GET", "/dots/api/games/" + gameId + "/board?sinceVersion=99", null);
+    	boardJson = board.getContentAsObject(JsonObject.class);
+    	assertTrue("Sent partial board", boardJson.get("full").getAsBoolean());
+    	assertEquals("Incorrect board", 20, boardJson.get("horizontalLines").getAsJsonArray().size());
+    	
+    	Response badVersion = request("GET", "/dots/api/games/" + gameId + "/board?sinceVersion=abc", null);
+    	assertEquals("Incorrectly got board", null, badVersion);
+    }
+ 
+    @Test
+    public void testPackedBoard() {
+    	//Create and join a 3x2 game
+    	JsonObject param = new JsonObject();
+    	param.addProperty("playerType", "RED");
+    	param.addProperty("rows", 3);
+    	param.addProperty("cols", 2);
+    	
+    	Response create = request("POST", "/dots/api/games", param);
+    	assertEquals("Failed to create game", 201, create.httpStatus);
+    	JsonObject createJson = create.getContentAsObject(JsonObject.class);
+    	String gameId = createJson.get("gameId").getAsString();
+    	String redId = createJson.get("playerId").getAsString();
+    	
+    	Response join = request("PUT", "/dots/api/games/" + gameId, null);
+    	assertEquals("Failed to join game", 200, join.httpStatus);
+    	JsonObject joinJson = join.getContentAsObject(JsonObject.class);
+    	String blueId = joinJson.get("playerId").getAsString();
+    	
+    	//Close the box at row 1, col 1 (top, left, bottom, right)
+    	String[][] moves = { {"hmove", "1", "1"}, {"vmove", "1", "1"}, {"hmove", "2", "1"}, {"vmove", "1", "2"} };
+    	JsonObject move = new JsonObject();
+    	for (int i = 0; i < moves.length; i++) {
+    		move.addProperty("playerId", i % 2 == 0 ? redId : blueId);
+    		move.addProperty("row", Integer.valueOf(moves[i][1]));
+    		move.addProperty("col", Integer.valueOf(moves[i][2]));
+    		Response goodMove = request("POST", "/dots/api/games/" + gameId + "/" + moves[i][0], move);
+    		assertEquals("Failed to add move", 200, goodMove.httpStatus);
+    	}
+    	
+    	Response board = request("GET", "/dots/api/games/" + gameId + "/board?format=packed", null);
+    	assertEquals("Failed to get board", 200, board.httpStatus);
+    	JsonObject boardJson = board.getContentAsObject(JsonObject.class);
+    	assertEquals("Incorrect format", "packed", boardJson.get("format").getAsString());
+    	
+    	//Horizontal lines (1, 1) and (2, 1) are bits 3 and 5 of 8
+    	byte[] horLines = Base64.getDecoder().decode(boardJson.get("horizontalLines").getAsString());
+    	assertArrayEquals("Incorrect board", new byte[] { (1 << 3) | (1 << 5) }, horLines);
+    	
+    	//Vertical lines (1, 1) and (1, 2) are bits 4 and 5 of 9
+    	byte[] vertLines = Base64.getDecoder().decode(boardJson.get("verticalLines").getAsString());
+    	assertArrayEquals("Incorrect board", new byte[] { (1 << 4) | (1 << 5), 0 }, vertLines);
+    	
+    	//Box (1, 1) is bit 3 of 6, won by blue
+    	byte[] boxes = Base64.getDecoder().decode(boardJson.get("boxes").getAsString());
+    	byte[] blueBoxes = Base64.getDecoder().decode(boardJson.get("blueBoxes").getAsString());
+    	assertArrayEquals("Incorrect board", new byte[] { 1 << 3 }, boxes);
+    	assertArrayEquals("Incorrect board", new byte[] { 1 << 3 }, blueBoxes);
+    	
+    	Response badFormat = request("GET", "/dots/api/games/" + gameId + "/board?format=xml", null);
+    	assertEquals("Incorrectly got board", null, badFormat);
+    }
+ 
+    @Test
+    public void testResponseCache() throws Exception {
+    	//Create and join game
+    	JsonObject param = new JsonObject();
+    	param.addProperty("playerType", "RED");
+    	
+    	Response create = request("POST", "/dots/api/games", param);
+    	assertEquals("Failed to create game", 201, create.httpStatus);
+    	JsonObject createJson = create.getContentAsObject(JsonObject.class);
+    	String gameId = createJson.get("gameId").getAsString();
+    	String redId = createJson.get("playerId").getAsString();
+    	
+    	Response join = request("PUT", "/dots/api/games/" + gameId, null);
+    	assertEquals("Failed to join game", 200, join.httpStatus);
+    	
+    	for (String path : new String[] { "/board", "/state", "/snapshot" }) {
+    		//Unchanged game gets the same body
+    		HttpURLConnection http = conditionalGet("/dots/api/games/" + gameId + path, null);
+    		assertEquals("Failed to get " + path, 200, http.getResponseCode());
+    		String body = IOUtils.toString(http.getInputStream());
+    		
+    		http = conditionalGet("/dots/api/games/" + gameId + path, null);
+    		assertEquals("Incorrect " + path, body, IOUtils.toString(http.getInputStream()));
+    		
+    		//Gzipped on request
+    		http = conditionalGet("/dots/api/games/" + gameId + path, null);
+    		http.setRequestProperty("Accept-Encoding", "gzip");
+    		assertEquals("Failed to get " + path, 200, http.getResponseCode());
+    		assertEquals("Not gzipped", "gzip", http.getHeaderField("Content-Encoding"));
+    		assertEquals("Incorrect " + path, body, IOUtils.toString(new GZIPInputStream(http.getInputStream())));
+    	}
+    	
+    	HttpURLConnection http = conditionalGet("/dots/api/games/" + gameId + "/state", null);
+    	String etag = http.getHeaderField("ETag");
+    	String state = IOUtils.toString(http.getInputStream());
+    	
+    	JsonObject validParam = new JsonObject();
+    	validParam.addProperty("playerId", redId);
+    	validParam.addProperty("row", 0);
+    	validParam.addProperty("col", 0);
+    	
+    	Response goodMove = request("POST", "/dots/api/games/" + gameId + "/hmove", validParam);
+    	assertEquals("Failed to add move", 200, goodMove.httpStatus);
+    	
+    	//A move drops the cached body
+    	http = conditionalGet("/dots/api/games/" + gameId + "/state", null);
+    	assertNotEquals("Incorrect ETag", etag, http.getHeaderField("ETag"));
+    	String newState = IOUtils.toString(http.getInputStream());
+    	assertNotEquals("Sent stale state", state, newState);
+    	JsonObject stateJson = new Gson().fromJson(newState, JsonObject.class);
+    	assertEquals("Invalid turn", "BLUE", stateJson.get("whoseTurn").getAsString());
+    	
+    	//A body rendered after its game was forgotten is not kept
+    	ResponseCache cache = new ResponseCache();
+    	cache.track(1);
+    	cache.put(1, ResponseCache.View.STATE, new ResponseCache.Body(1, new byte[] { 1 }));
+    	cache.invalidate(1);
+    	assertEquals("Kept stale body", null, cache.get(1, ResponseCache.View.STATE, 1));
+    	cache.forget(1);
+    	cache.put(1, ResponseCache.View.STATE, new ResponseCache.Body(1, new byte[] { 1 }));
+    	assertEquals("Kept forgotten game", 0, cache.size());
+    	assertEquals("Kept forgotten body", null, cache.get(1, ResponseCache.View.STATE, 1));
+    }
+ 
+    @Test
+    public void testConcurrentMoves() throws Exception {
+    	//Create and join game
+    	JsonObject param = new JsonObject();
+    	param.addProperty("playerType", "RED");
+    	
+    	Response create = request("POST", "/dots/api/games", param);
+    	assertEquals("Failed to create game", 201, create.httpStatus);
+    	JsonObject createJson = create.getContentAsObject(JsonObject.class);
+    	String gameId = createJson.get("gameId").getAsString();
+    	String redId = createJson.get("playerId").getAsString();
+    	
+    	Response join = request("PUT", "/dots/api/games/" + gameId, null);
+    	assertEquals("Failed to join game", 200, join.httpStatus);
+    	
+    	//Red sends a different line from every thread at once, only one can be its turn
+    	int threads = 8;
+    	ExecutorService pool = Executors.newFixedThreadPool(threads);
+    	CountDownLatch start = new CountDownLatch(1);
+    	List<Future<Response>> moves = new ArrayList<>();
+    	for (int i = 0; i < threads; i++) {
+    		JsonObject move = new JsonObject();
+    		move.addProperty("playerId", redId);
+    		move.addProperty("row", i / 4);
+    		move.addProperty("col", i % 4);
+    		moves.add(pool.submit(() -> {
+    			start.await();
+    			return request("POST", "/dots/api/games/" + gameId + "/hmove", move);
+    		}));
+    	}
+    	start.countDown();
+    	
+    	int played = 0;
+    	for (Future<Response> move : moves) {
+    		if (move.get(10, TimeUnit.SECONDS) != null) {
+    			played++;
+    		}
+    	}
+    	pool.shutdown();
+    	assertEquals("Incorrect number of moves", 1, played);
+    	
+    	Response state = request("GET", "/dots/api/games/" + gameId + "/state", null);
+    	JsonObject stateJson = state.getContentAsObject(JsonObject.class);
+    	assertEquals("Invalid turn", "BLUE", stateJson.get("whoseTurn").getAsString());
+    	
+    	Response board = request("GET", "/dots/api/games/" + gameId + "/board", null);
+    	JsonObject boardJson = board.getContentAsObject(JsonObject.class);
+    	int filled = 0;
+    	for (JsonElement line : boardJson.get("horizontalLines").getAsJsonArray()) {
+    		if (line.getAsJsonObject().get("filled").getAsBoolean()) {
+    			filled++;
+    		}
+    	}
+    	assertEquals("Incorrect board", 1, filled);
+    }
+ 
+    @Test
+    public void testServerMetrics() {
+    	Response metrics = request("GET", "/dots/api/metrics", null);
+    	assertEquals("Failed to get metrics", 200, metrics.httpStatus);
+    	
+    	JsonObject metricsJson = metrics.getContentAsObject(JsonObject.class);
+    	JsonObject threads = metricsJson.get("threads").getAsJsonObject();
+    	assertEquals("Incorrect pool size", Bootstrap.SERVER_MAX_THREADS, threads.get("maxThreads").getAsInt());
+    	//This request is running on one of them
+    	assertTrue("No busy threads", threads.get("busyThreads").getAsInt() >= 1);
+    	assertTrue("Incorrect queue size", threads.get("queueSize").getAsInt() >= 0);
+    	assertEquals("Incorrect queue limit", Bootstrap.SERVER_MAX_QUEUED, threads.get("maxQueued").getAsInt());
+    }
+ 
+    @Test
+    public void testArchiveGames() throws Exception {
+    	//Create and join a 1x1 game
+    	JsonObject param = new JsonObject();
+    	param.addProperty("playerType", "RED");
+    	param.addProperty("rows", 1);
+    	param.addProperty("cols", 1);
+    	
+    	Response create = request("POST", "/dots/api/games", param);
+    	assertEquals("Failed to create game", 201, create.httpStatus);
+    	JsonObject createJson = create.getContentAsObject(JsonObject.class);
+    	String gameId = createJson.get("gameId").getAsString();
+    	String redId = createJson.get("playerId").getAsString();
+    	
+    	Response join = request("PUT", "/dots/api/games/" + gameId, null);
+    	assertEquals("Failed to join game", 200, join.httpStatus);
+    	JsonObject joinJson = join.getContentAsObject(JsonObject.class);
+    	String blueId = joinJson.get("playerId").getAsString();
+    	
+    	//Blue closes the only box and finishes the game
+    	String[][] moves = { {"hmove", "0", "0"}, {"hmove", "1", "0"}, {"vmove", "0", "0"}, {"vmove", "0", "1"} };
+    	JsonObject move = new JsonObject();
+    	for (int i = 0; i < moves.length; i++) {
+    		move.addProperty("playerId", i % 2 == 0 ? redId : blueId);
+    		move.addProperty("row", Integer.valueOf(moves[i][1]));
+    		move.addProperty("col", Integer.valueOf(moves[i][2]));
+    		Response goodMove = request("POST", "/dots/api/games/" + gameId + "/" + moves[i][0], move);
+    		assertEquals("Failed to add move", 200, goodMove.httpStatus);
+    	}
+    	
+    	//A game nobody joins
+    	Response waiting = request("POST", "/dots/api/games", param);
+    	assertEquals("Failed to create game", 201, waiting.httpStatus);
+    	JsonObject waitingJson = waiting.getContentAsObject(JsonObject.class);
+    	String waitingId = waitingJson.get("gameId").getAsString();
+    	
+    	//Archive everything, then restart so the archive is written
+    	long now = System.currentTimeMillis() + 1;
+    	assertEquals("Incorrect number of games", 2, Bootstrap.getService().archiveGames(now, now));
+    	Bootstrap.stop();
+    	
+    	SQLiteDataSource dataSource = new SQLiteDataSource();
+    	dataSource.setUrl("jdbc:sqlite:dots.db");
+    	try (Connection conn = new Sql2o(dataSource).open()) {
+    		assertEquals("Game left in game table", 0, (int) conn.createQuery("SELECT COUNT(*) FROM game")
+    				.executeScalar(Integer.class));
+    		assertEquals("Moves left in moves table", 0, (int) conn.createQuery("SELECT COUNT(*) FROM moves")
+    				.executeScalar(Integer.class));
+    		assertEquals("Players left in player table", 0, (int) conn.createQuery("SELECT COUNT(*) FROM player")
+    				.executeScalar(Integer.class));
+    		assertEquals("Game not archived", 1, (int) conn.createQuery("SELECT COUNT(*) FROM game_archive")
+    				.executeScalar(Integer.class));
+    	}
+    	
+    	Bootstrap.main(null);
+    	Spark.awaitInitialization();
+    	
+    	//The archived game can still be read
+    	Response state = request("GET", "/dots/api/games/" + gameId + "/state", null);
+    	assertEquals("Failed to get state", 200, state.httpStatus);
+    	JsonObject stateJson = state.getContentAsObject(JsonObject.class);
+    	assertEquals("Invalid state", "FINISHED", stateJson.get("state").getAsString());
+    	assertEquals("Invalid score", 1, stateJson.get("blueScore").getAsInt());
+    	
+    	Response board = request("GET", "/dots/api/games/" + gameId + "/board", null);
+    	assertEquals("Failed to get board", 200, board.httpStatus);
+    	JsonObject boardJson = board.getContentAsObject(JsonObject.class);
+    	JsonArray boxes = boardJson.get("boxes").getAsJsonArray();
+    	assertEquals("Incorrect board", "BLUE", boxes.get(0).getAsJsonObject().get("owner").getAsString());
+    	for (JsonElement line : boardJson.get("verticalLines").getAsJsonArray()) {
+    		assertTrue("Incorrect board", line.getAsJsonObject().get("filled").getAsBoolean());
+    	}
+    	
+    	//The unjoined game is gone
+    	assertEquals("Incorrectly got state", null, request("GET", "/dots/api/games/" + waitingId + "/state", null));
+    	assertEquals("Incorrectly joined game", null, request("PUT", "/dots/api/games/" + waitingId, null));
+    	
+    	//Archived and deleted ids are not handed out again
+    	Response createAgain = request("POST", "/dots/api/games", param);
+    	JsonObject createAgainJson = createAgain.getContentAsObject(JsonObject.class);
+    	assertTrue("Reused game id", createAgainJson.get("gameId").getAsInt() > Integer.valueOf(gameId));
+    	assertTrue("Reused deleted game id", createAgainJson.get("gameId").getAsInt() > Integer.valueOf(waitingId));
+    	assertTrue("Reused deleted player id", 
+    			createAgainJson.get("playerId").getAsInt() > waitingJson.get("playerId").getAsInt());
+    }
+
+    @Test
+    public void testForgetGames() throws Exception {
+    	//A game nobody joins, watched by an event stream and a socket
+    	JsonObject param = new JsonObject();
+    	param.addProperty("playerType", "RED");
+    	param.addProperty("rows", 1);
+    	param.addProperty("cols", 1);
+    	
+    	Response waiting = request("POST", "/dots/api/games", param);
+    	assertEquals("Failed to create game", 201, waiting.httpStatus);
+    	JsonObject waitingJson = waiting.getContentAsObject(JsonObject.class);
+    	String waitingId = waitingJson.get("gameId").getAsString();
+    	
+    	URL url = new URL("http", Bootstrap.IP_ADDRESS, Bootstrap.PORT, "/dots/api/games/" + waitingId + "/events");
+    	HttpURLConnection http = (HttpURLConnection) url.openConnection();
+    	//Shorter than the heartbeat, so only the gone event can end the wait
+    	http.setReadTimeout(5000);
+    	assertEquals("Failed to open events", 200, http.getResponseCode());
+    	BufferedReader events = new BufferedReader(new InputStreamReader(http.getInputStream(), "UTF-8"));
+    	readEvent(events);
+    	
+    	WebSocketClient client = new WebSocketClient();
+    	client.start();
+    	try {
+    		SocketMessages watcher = new SocketMessages();
+    		Session session = client.connect(watcher, socketUri(waitingId, null)).get(5, TimeUnit.SECONDS);
+    		watcher.next();
+    		
+    		//Deleting the game tells both of them
+    		long now = System.currentTimeMillis() + 1;
+    		assertEquals("Incorrect number of games", 1, Bootstrap.getService().archiveGames(now, now));
+    		
+    		String line;
+    		while ((line = events.readLine()) != null && !line.equals("event: gone")) {
+    		}
+    		assertEquals("No gone event", "event: gone", line);
+    		http.disconnect();
+    		
+    		JsonObject gone = watcher.next();
+    		assertEquals("Incorrect message", "gone", gone.get("type").getAsString());
+    		assertEquals("Incorrect game", waitingId, gone.get("gameId").getAsString());
+    		for (int i = 0; i < 50 && session.isOpen(); i++) {
+    			Thread.sleep(100);
+    		}
+    		assertFalse("Socket left open", session.isOpen());
+    	} finally {
+    		client.stop();
+    	}
+    	
+    	//A finished game is archived
+    	Response create = request("POST", "/dots/api/games", param);
+    	JsonObject createJson = create.getContentAsObject(JsonObject.class);
+    	String gameId = createJson.get("gameId").getAsString();
+    	String redId = createJson.get("playerId").getAsString();
+    	Response join = request("PUT", "/dots/api/games/" + gameId, null);
+    	JsonObject joinJson = join.getContentAsObject(JsonObject.class);
+    	String blueId = joinJson.get("playerId").getAsString();
+    	
+    	String[][] moves = { {"hmove", "0", "0"}, {"hmove", "1", "0"}, {"vmove", "0", "0"}, {"vmove", "0", "1"} };
+    	JsonObject move = new JsonObject();
+    	for (int i = 0; i < moves.length; i++) {
+    		move.addProperty("playerId", i % 2 == 0 ? redId : blueId);
+    		move.addProperty("row", Integer.valueOf(moves[i][1]));
+    		move.addProperty("col", Integer.valueOf(moves[i][2]));
+    		Response goodMove = request("POST", "/dots/api/games/" + gameId + "/" + moves[i][0], move);
+    		assertEquals("Failed to add move", 200, goodMove.httpStatus);
+    	}
+    	
+    	DotsService service = Bootstrap.getService();
+    	long now = System.currentTimeMillis() + 1;
+    	assertEquals("Incorrect number of games", 1, service.archiveGames(now, now));
+    	int id = Integer.valueOf(gameId);
+    	for (int i = 0; i < 50 && service.isLoaded(id); i++) {
+    		Thread.sleep(100);
+    	}
+    	assertFalse("Archived game kept in memory", service.isLoaded(id));
+    	
+    	//Reading it back loads it until the next archive pass
+    	Response state = request("GET", "/dots/api/games/" + gameId + "/state", null);
+    	assertEquals("Failed to get state", 200, state.httpStatus);
+    	assertTrue("Archived game not loaded", service.isLoaded(id));
+    	
+    	assertEquals("Incorrect number of games", 0, service.archiveGames(now, now));
+    	assertFalse("Archived game kept in memory", service.isLoaded(id));
+    	state = request("GET", "/dots/api/games/" + gameId + "/state", null);
+    	assertEquals("Failed to get state", 200, state.httpStatus);
+    }
+ 
+    @Test
+    public void testMoveJournal() throws Exception {
+    	File file = File.createTempFile("dots", ".journal");
+    	file.deleteOnExit();
+    	File snapshot = new File(file.getPath() + ".snapshot");
+    	snapshot.deleteOnExit();
+    	new File(file.getPath() + ".checkpoint").deleteOnExit();
+    	
+    	//Start a 1x1 game on a service that keeps its games in a journal, snapshot when it closes
+    	DotsService service = new DotsService(
+    			new JournalGameRepository(new MoveJournal(file.toPath(), 1, 0), snapshot.toPath(), 1000));
+    	Game game = service.createGame("{\"playerType\": \"RED\", \"rows\": 1, \"cols\": 1}");
+    	String gameId = game.getId();
+    	String redId = game.getPlayerOne().getId();
+    	String blueId = service.joinGame(gameId).getPlayerTwo().getId();
+    	
+    	String[][] moves = { {"HOR", "0", "0"}, {"HOR", "1", "0"}, {"VERT", "0", "0"}, {"VERT", "0", "1"} };
+    	for (int i = 0; i < 2; i++) {
+    		service.validateMove(gameId, moveBody(i % 2 == 0 ? redId : blueId, moves[i]), moves[i][0]);
+    	}
+    	service.close();
+    	assertTrue("No snapshot", snapshot.exists());
+    	
+    	//Finish it without snapshots, so the snapshot falls behind the journal
+    	service = new DotsService(new JournalGameRepository(new MoveJournal(file.toPath(), 1, 0)));
+    	for (int i = 2; i < moves.length; i++) {
+    		service.validateMove(gameId, moveBody(i % 2 == 0 ? redId : blueId, moves[i]), moves[i][0]);
+    	}
+    	Game waiting = service.createGame("{\"playerType\": \"BLUE\"}");
+    	long version = service.getVersion(gameId);
+    	service.close();
+    	
+    	//The old snapshot plus the rest of the journal, and the whole journal alone, give back the same games
+    	for (boolean snapshots : new boolean[] { true, false }) {
+    		MoveJournal journal = new MoveJournal(file.toPath(), 1, 0);
+    		service = new DotsService(snapshots ? 
+    				new JournalGameRepository(journal, snapshot.toPath(), 1000) : new JournalGameRepository(journal));
+    		try {
+    			GameState state = service.getGameState(gameId);
+    			assertEquals("Invalid state", "FINISHED", state.getState());
+    			assertEquals("Invalid score", 1, state.getBlueScore());
+    			assertEquals("Invalid version", version, service.getVersion(gameId));
+    			assertEquals("Invalid state", "WAITING_TO_START", service.getGameState(waiting.getId()).getState());
+    			
+    			String board = new String(service.render(gameId, ResponseCache.View.BOARD).getJson(), "UTF-8");
+    			JsonObject boardJson = new Gson().fromJson(board, JsonObject.class);
+    			JsonArray boxes = boardJson.get("boxes").getAsJsonArray();
+    			assertEquals("Incorrect board", "BLUE", boxes.get(0).getAsJsonObject().get("owner").getAsString());
+    			
+    			//Ids are not handed out again
+    			Game next = service.createGame("{\"playerType\": \"RED\"}");
+    			assertTrue("Reused game id", Integer.valueOf(next.getId()) > Integer.valueOf(waiting.getId()));
+    			assertTrue("Reused player id", 
+    					Integer.valueOf(next.getPlayerOne().getId()) > Integer.valueOf(waiting.getPlayerOne().getId()));
+    		} finally {
+    			service.close();
+    		}
+    	}
+    }
+    
+    @Test
+    public void testJournalBatch() throws Exception {
+    	File file = File.createTempFile("dots", ".journal");
+    	file.deleteOnExit();
+    	
+    	//Leave box (0, 0) of a 1x2 game one line short
+    	DotsService service = new DotsService(new JournalGameRepository(new MoveJournal(file.toPath(), 1, 0)));
+    	Game game = service.createGame("{\"playerType\": \"RED\", \"rows\": 1, \"cols\": 2}");
+    	String gameId = game.getId();
+    	String redId = game.getPlayerOne().getId();
+    	String blueId = service.joinGame(gameId).getPlayerTwo().getId();
+    	String[][] setup = { {"HOR", "0", "0"}, {"HOR", "1", "0"}, {"VERT", "0", "0"} };
+    	for (int i = 0; i < setup.length; i++) {
+    		service.validateMove(gameId, moveBody(i % 2 == 0 ? redId : blueId, setup[i]), setup[i][0]);
+    	}
+    	
+    	//Blue takes the box and moves again in one batch
+    	Map<String, Object> result = service.validateMoves(gameId, "{\"playerId\": " + blueId + ", \"moves\": [" + 
+    			"{\"type\": \"VERT\", \"row\": 0, \"col\": 1}, {\"type\": \"HOR\", \"row\": 0, \"col\": 1}]}");
+    	assertEquals("Incorrect moves applied", 2, result.get("applied"));
+    	service.close();
+    	
+    	//A crash cuts the batch off before its last record
+    	try (RandomAccessFile journal = new RandomAccessFile(file, "rw")) {
+    		journal.seek(6 * MoveJournal.RECORD_SIZE);
+    		journal.write(new byte[MoveJournal.RECORD_SIZE]);
+    	}
+    	
+    	//The whole batch is dropped, and the journal goes on from before it
+    	for (int i = 0; i < 2; i++) {
+    		MoveJournal journal = new MoveJournal(file.toPath(), 1, 0);
+    		assertEquals("Incorrect journal size", 5, journal.size());
+    		service = new DotsService(new JournalGameRepository(journal));
+    		try {
+    			GameState state = service.getGameState(gameId);
+    			assertEquals("Invalid turn", "BLUE", state.getWhoseTurn());
+    			assertEquals("Invalid score", 0, state.getBlueScore());
+    			assertEquals("Invalid version", 4, service.getVersion(gameId));
+    		} finally {
+    			service.close();
+    		}
+    	}
+    }
+    
+    @Test
+    public void testJournalCheckpoint() throws Exception {
+    	File file = File.createTempFile("dots", ".journal");
+    	file.deleteOnExit();
+    	File checkpoint = new File(file.getPath() + ".checkpoint");
+    	checkpoint.deleteOnExit();
+    	
+    	//Three records before the checkpoint and two after it
+    	MoveJournal journal = new MoveJournal(file.toPath(), 0, 0);
+    	for (int i = 1; i <= 3; i++) {
+    		journal.appendCreate(i, i, false, 1, 1, 0);
+    	}
+    	assertEquals("Incorrect checkpoint", 3, journal.checkpoint());
+    	for (int i = 4; i <= 5; i++) {
+    		journal.appendCreate(i, i, false, 1, 1, 0);
+    	}
+    	journal.close();
+    	assertTrue("No checkpoint", checkpoint.exists());
+    	
+    	//A checkpoint past the last record is not trusted, the whole journal is checked
+    	try (DataOutputStream out = new DataOutputStream(new FileOutputStream(checkpoint))) {
+    		out.writeLong(7 * MoveJournal.RECORD_SIZE);
+    	}
+    	journal = new MoveJournal(file.toPath(), 0, 0);
+    	assertEquals("Incorrect journal size", 5, journal.size());
+    	assertEquals("Incorrect checkpoint", 5, journal.checkpoint());
+    	journal.close();
+    	
+    	//Records before the checkpoint are not checked again when the journal is opened
+    	try (RandomAccessFile records = new RandomAccessFile(file, "rw")) {
+    		records.seek(28);
+    		records.writeInt(0);
+    	}
+    	journal = new MoveJournal(file.toPath(), 0, 0);
+    	assertEquals("Incorrect journal size", 5, journal.size());
+    	journal.close();
+    }
+    
+    @Test
+    public void testSnapshotRestore() throws Exception {
+    	//Create and join a 6x6 game
+    	JsonObject param = new JsonObject();
+    	param.addProperty("playerType", "RED");
+    	param.addProperty("rows", 6);
+    	param.addProperty("cols", 6);
+    	
+    	Response create = request("POST", "/dots/api/games", param);
+    	assertEquals("Failed to create game", 201, create.httpStatus);
+    	JsonObject createJson = create.getContentAsObject(JsonObject.class);
+    	String gameId = createJson.get("gameId").getAsString();
+    	String redId = createJson.get("playerId").getAsString();
+    	
+    	Response join = request("PUT", "/dots/api/games/" + gameId, null);
+    	JsonObject joinJson = join.getContentAsObject(JsonObject.class);
+    	String blueId = joinJson.get("playerId").getAsString();
+    	
+    	//Play past the first snapshot, taking the first boxes along the way
+    	int moves = SqliteGameRepository.DEFAULT_SNAPSHOT_MOVES + 6;
+    	JsonObject move = new JsonObject();
+    	for (int i = 0; i < moves; i++) {
+    		Response state = request("GET", "/dots/api/games/" + gameId + "/state", null);
+    		JsonObject stateJson = state.getContentAsObject(JsonObject.class);
+    		String playerId = stateJson.get("whoseTurn").getAsString().equals("RED") ? redId : blueId;
+    		boolean horizontal = i < 42;
+    		move.addProperty("playerId", playerId);
+    		move.addProperty("row", horizontal ? i / 6 : (i - 42) / 7);
+    		move.addProperty("col", horizontal ? i % 6 : (i - 42) % 7);
+    		Response goodMove = request("POST", "/dots/api/games/" + gameId + (horizontal ? "/hmove" : "/vmove"), move);
+    		assertEquals("Failed to add move", 200, goodMove.httpStatus);
+    	}
+    	String board = request("GET", "/dots/api/games/" + gameId + "/board", null).content;
+    	String state = request("GET", "/dots/api/games/" + gameId + "/state", null).content;
+    	
+    	//Restart the server, the game should come back from its snapshot and the moves after it
+    	Bootstrap.stop();
+    	
+    	SQLiteDataSource dataSource = new SQLiteDataSource();
+    	dataSource.setUrl("jdbc:sqlite:dots.db");
+    	try (Connection conn = new Sql2o(dataSource).open()) {
+    		assertEquals("No snapshot", SqliteGameRepository.DEFAULT_SNAPSHOT_MOVES, 
+    				(int) conn.createQuery("SELECT seq FROM game_snapshot WHERE game_id = :id")
+    						  .addParameter("id", Integer.valueOf(gameId))
+    						  .executeScalar(Integer.class));
+    	}
+    	
+    	Bootstrap.main(null);
+    	Spark.awaitInitialization();
+    	
+    	assertEquals("Incorrect board", board, request("GET", "/dots/api/games/" + gameId + "/board", null).content);
+    	assertEquals("Incorrect state", state, request("GET", "/dots/api/games/" + gameId + "/state", null).content);
+    }
+ 
+    @Test
+    public void testBatchMoves() throws Exception {
+    	//Create and join a 2x2 game
+    	JsonObject param = new JsonObject();
+    	param.addProperty("playerType", "RED");
+    	param.addProperty("rows", 2);
+    	param.addProperty("cols", 2);
+    	
+    	Response create = request("POST", "/dots/api/games", param);
+    	assertEquals("Failed to create game", 201, create.httpStatus);
+    	JsonObject createJson = create.getContentAsObject(JsonObject.class);
+    	String gameId = createJson.get("gameId").getAsString();
+    	String redId = createJson.get("playerId").getAsString();
+    	
+    	Response join = request("PUT", "/dots/api/games/" + gameId, null);
+    	JsonObject joinJson = join.getContentAsObject(JsonObject.class);
+    	String blueId = joinJson.get("playerId").getAsString();
+    	
+    	//Bad batches are turned down before anything is played
+    	assertNull("Accepted an empty batch", request("POST", "/dots/api/games/" + gameId + "/moves", 
+    			JsonTransformer.parseObject("{\"playerId\": " + redId + ", \"moves\": []}")));
+    	assertNull("Accepted a bad move type", request("POST", "/dots/api/games/" + gameId + "/moves", 
+    			JsonTransformer.parseObject("{\"playerId\": " + redId + 
+    					", \"moves\": [{\"type\": \"DIAG\", \"row\": 0, \"col\": 0}]}")));
+    	
+    	//Leave box (0, 0) one line short, one move per batch
+    	String[][] setup = { { "HOR", "0", "0" }, { "HOR", "1", "0" }, { "VERT", "0", "0" } };
+    	for (int i = 0; i < setup.length; i++) {
+    		Response moves = movesRequest(gameId, i % 2 == 0 ? redId : blueId, setup[i]);
+    		assertEquals("Failed to add moves", 200, moves.httpStatus);
+    		JsonObject movesJson = moves.getContentAsObject(JsonObject.class);
+    		assertEquals("Incorrect moves applied", 1, movesJson.get("applied").getAsInt());
+    		assertFalse("Batch stopped", movesJson.has("stoppedAt"));
+    	}
+    	
+    	//Blue takes the box and moves again, but is then out of turn, so nothing is played
+    	String[][] chain = { { "VERT", "0", "1" }, { "HOR", "0", "1" }, { "HOR", "2", "0" } };
+    	Response moves = movesRequest(gameId, blueId, chain);
+    	assertEquals("Did not stop at the move out of turn", 422, moves.httpStatus);
+    	JsonObject movesJson = moves.getContentAsObject(JsonObject.class);
+    	assertEquals("Incorrect moves applied", 0, movesJson.get("applied").getAsInt());
+    	assertEquals("Incorrect stop", 2, movesJson.get("stoppedAt").getAsInt());
+    	assertEquals("Incorrect version", 4, movesJson.get("version").getAsLong());
+    	JsonObject stateJson = movesJson.get("state").getAsJsonObject();
+    	assertEquals("Incorrect turn", "BLUE", stateJson.get("whoseTurn").getAsString());
+    	assertEquals("Incorrect score", 0, stateJson.get("blueScore").getAsInt());
+    	JsonObject boardJson = request("GET", "/dots/api/games/" + gameId + "/board", null)
+    			.getContentAsObject(JsonObject.class);
+    	int filled = 0;
+    	for (String lines : new String[] { "horizontalLines", "verticalLines" }) {
+    		for (JsonElement line : boardJson.get(lines).getAsJsonArray()) {
+    			filled += line.getAsJsonObject().get("filled").getAsBoolean() ? 1 : 0;
+    		}
+    	}
+    	assertEquals("Incorrect board", 3, filled);
+    	
+    	//Asked for, the moves before it are played
+    	moves = movesRequest(gameId, blueId, true, chain);
+    	assertEquals("Did not stop at the move out of turn", 422, moves.httpStatus);
+    	movesJson = moves.getContentAsObject(JsonObject.class);
+    	assertEquals("Incorrect moves applied", 2, movesJson.get("applied").getAsInt());
+    	assertEquals("Incorrect stop", 2, movesJson.get("stoppedAt").getAsInt());
+    	assertEquals("Incorrect version", 6, movesJson.get("version").getAsLong());
+    	stateJson = movesJson.get("state").getAsJsonObject();
+    	assertEquals("Incorrect turn", "RED", stateJson.get("whoseTurn").getAsString());
+    	assertEquals("Incorrect score", 1, stateJson.get("blueScore").getAsInt());
+    	
+    	//An illegal move turns the batch down too
+    	moves = movesRequest(gameId, redId, new String[] { "HOR", "2", "0" }, new String[] { "HOR", "2", "0" });
+    	assertEquals("Did not stop at the illegal move", 422, moves.httpStatus);
+    	movesJson = moves.getContentAsObject(JsonObject.class);
+    	assertEquals("Incorrect moves applied", 0, movesJson.get("applied").getAsInt());
+    	assertEquals("Incorrect stop", 1, movesJson.get("stoppedAt").getAsInt());
+    	assertEquals("Incorrect version", 6, movesJson.get("version").getAsLong());
+    	
+    	moves = movesRequest(gameId, redId, new String[] { "HOR", "2", "0" });
+    	assertEquals("Failed to add moves", 200, moves.httpStatus);
+    	
+    	//The played moves were stored
+    	String board = request("GET", "/dots/api/games/" + gameId + "/board", null).content;
+    	String state = request("GET", "/dots/api/games/" + gameId + "/state", null).content;
+    	Bootstrap.stop();
+    	Bootstrap.main(null);
+    	Spark.awaitInitialization();
+    	
+    	assertEquals("Incorrect board", board, request("GET", "/dots/api/games/" + gameId + "/board", null).content);
+    	assertEquals("Incorrect state", state, request("GET", "/dots/api/games/" + gameId + "/state", null).content);
+    }
+ 
+    @Test
+    public void testMatchmake() throws Exception {
+    	//Nobody is waiting, the first player gets a new game
+    	JsonObject param = new JsonObject();
+    	param.addProperty("rows", 5);
+    	param.addProperty("cols", 5);
+    	Response waiting = request("POST", "/dots/api/matchmake", param);
+    	assertEquals("Failed to create game", 201, waiting.httpStatus);
+    	JsonObject waitingJson = waiting.getContentAsObject(JsonObject.class);
+    	assertEquals("Invalid state", "WAITING_TO_START", waitingJson.get("state").getAsString());
+    	assertEquals("Invalid color", "RED", waitingJson.get("playerType").getAsString());
+    	
+    	//Players of another size are paired among themselves, all at once
+    	int players = 16;
+    	ExecutorService pool = Executors.newFixedThreadPool(players);
+    	CountDownLatch start = new CountDownLatch(1);
+    	JsonObject smallParam = new JsonObject();
+    	smallParam.addProperty("rows", 3);
+    	smallParam.addProperty("cols", 3);
+    	List<Future<Response>> matches = new ArrayList<>();
+    	for (int i = 0; i < players; i++) {
+    		matches.add(pool.submit(() -> {
+    			start.await();
+    			return request("POST", "/dots/api/matchmake", smallParam);
+    		}));
+    	}
+    	start.countDown();
+    	
+    	Map<String, List<String>> colors = new HashMap<>();
+    	for (Future<Response> match : matches) {
+    		Response response = match.get(10, TimeUnit.SECONDS);
+    		assertNotNull("Failed to matchmake", response);
+    		JsonObject matchJson = response.getContentAsObject(JsonObject.class);
+    		assertEquals("Invalid size", 3, matchJson.get("rows").getAsInt());
+    		colors.computeIfAbsent(matchJson.get("gameId").getAsString(), gameId -> new ArrayList<>())
+    			  .add(matchJson.get("playerType").getAsString());
+    	}
+    	pool.shutdown();
+    	assertEquals("Incorrect number of games", players / 2, colors.size());
+    	for (Map.Entry<String, List<String>> game : colors.entrySet()) {
+    		assertEquals("Game not paired", 2, game.getValue().size());
+    		assertTrue("Incorrect colors", game.getValue().contains("RED") && game.getValue().contains("BLUE"));
+    		Response state = request("GET", "/dots/api/games/" + game.getKey() + "/state", null);
+    		JsonObject stateJson = state.getContentAsObject(JsonObject.class);
+    		assertEquals("Invalid state", "IN_PROGRESS", stateJson.get("state").getAsString());
+    	}
+    	
+    	//The next player of the first size joins the waiting game
+    	Response joined = request("POST", "/dots/api/matchmake", param);
+    	assertEquals("Failed to join game", 200, joined.httpStatus);
+    	JsonObject joinedJson = joined.getContentAsObject(JsonObject.class);
+    	assertEquals("Incorrect game", waitingJson.get("gameId").getAsString(), joinedJson.get("gameId").getAsString());
+    	assertEquals("Invalid color", "BLUE", joinedJson.get("playerType").getAsString());
+    	assertEquals("Invalid state", "IN_PROGRESS", joinedJson.get("state").getAsString());
+    	
+    	//The game is already full for anyone with its id
+    	assertNull("Joined a full game", request("PUT", "/dots/api/games/" + joinedJson.get("gameId").getAsString(), null));
+    	
+    	//Players who lost the race for a slot used up no ids
+    	Response next = request("POST", "/dots/api/matchmake", param);
+    	assertEquals("Failed to create game", 201, next.httpStatus);
+    	JsonObject nextJson = next.getContentAsObject(JsonObject.class);
+    	assertEquals("Skipped game ids", waitingJson.get("gameId").getAsInt() + players / 2 + 1, 
+    			nextJson.get("gameId").getAsInt());
+    	assertEquals("Skipped player ids", joinedJson.get("playerId").getAsInt() + 1, 
+    			nextJson.get("playerId").getAsInt());
+    	
+    	//A game of the same size created by id, before the next one matchmake creates
+    	joined = request("POST", "/dots/api/matchmake", param);
+    	assertEquals("Failed to join game", 200, joined.httpStatus);
+    	JsonObject privateParam = new JsonObject();
+    	privateParam.addProperty("playerType", "RED");
+    	privateParam.addProperty("rows", 5);
+    	privateParam.addProperty("cols", 5);
+    	Response shared = request("POST", "/dots/api/games", privateParam);
+    	assertEquals("Failed to create game", 201, shared.httpStatus);
+    	JsonObject sharedJson = shared.getContentAsObject(JsonObject.class);
+    	String sharedId = sharedJson.get("gameId").getAsString();
+    	Response last = request("POST", "/dots/api/matchmake", param);
+    	assertEquals("Failed to create game", 201, last.httpStatus);
+    	JsonObject lastJson = last.getContentAsObject(JsonObject.class);
+    	String lastId = lastJson.get("gameId").getAsString();
+    	
+    	//After a restart the next player still joins the matchmade game, not the one created by id
+    	Bootstrap.stop();
+    	Bootstrap.main(null);
+    	Spark.awaitInitialization();
+    	
+    	joined = request("POST", "/dots/api/matchmake", param);
+    	assertEquals("Failed to join game", 200, joined.httpStatus);
+    	joinedJson = joined.getContentAsObject(JsonObject.class);
+    	assertEquals("Incorrect game", lastId, joinedJson.get("gameId").getAsString());
+    	assertEquals("Invalid state", "IN_PROGRESS", joinedJson.get("state").getAsString());
+    	
+    	Response sharedState = request("GET", "/dots/api/games/" + sharedId + "/state", null);
+    	JsonObject sharedStateJson = sharedState.getContentAsObject(JsonObject.class);
+    	assertEquals("Matchmade a game created by id", "WAITING_TO_START", sharedStateJson.get("state").getAsString());
+    }
+ 
+    @Test
+    public void testListGames() throws Exception {
+    	//Create five games and join the second one
+    	List<String> gameIds = new ArrayList<>();
+    	for (int i = 0; i < 5; i++) {
+    		JsonObject param = new JsonObject();
+    		param.addProperty("playerType", i % 2 == 0 ? "RED" : "BLUE");
+    		param.addProperty("rows", 3 + i);
+    		Response create = request("POST", "/dots/api/games", param);
+    		assertEquals("Failed to create game", 201, create.httpStatus);
+    		JsonObject createJson = create.getContentAsObject(JsonObject.class);
+    		gameIds.add(createJson.get("gameId").getAsString());
+    	}
+    	Response join = request("PUT", "/dots/api/games/" + gameIds.get(1), null);
+    	assertEquals("Failed to join game", 200, join.httpStatus);
+    	gameIds.remove(1);
+    	
+    	//Bad parameters
+    	assertNull("Listed finished games", request("GET", "/dots/api/games?state=FINISHED", null));
+    	assertNull("Accepted a bad limit", request("GET", "/dots/api/games?limit=0", null));
+    	assertNull("Accepted a bad cursor", request("GET", "/dots/api/games?cursor=abc", null));
+    	
+    	//Page through the waiting games two at a time
+    	String firstPage = listGamePages(gameIds);
+    	JsonObject first = new Gson().fromJson(firstPage, JsonObject.class);
+    	JsonObject game = first.get("games").getAsJsonArray().get(1).getAsJsonObject();
+    	assertEquals("Incorrect color", "RED", game.get("playerType").getAsString());
+    	assertEquals("Incorrect size", 5, game.get("rows").getAsInt());
+    	
+    	//The lobby is found again from the index after a restart
+    	Bootstrap.stop();
+    	
+    	SQLiteDataSource dataSource = new SQLiteDataSource();
+    	dataSource.setUrl("jdbc:sqlite:dots.db");
+    	try (Connection conn = new Sql2o(dataSource).open()) {
+    		assertEquals("No state index", 1, (int) conn.createQuery("SELECT COUNT(*) FROM sqlite_master " + 
+    				"WHERE type = 'index' AND name = 'game_state_id'").executeScalar(Integer.class));
+    	}
+    	
+    	Bootstrap.main(null);
+    	Spark.awaitInitialization();
+    	
+    	assertEquals("Incorrect lobby", firstPage, listGamePages(gameIds));
+    }
+ 
+    @Test
+    public void testLegacyUpgrade() throws Exception {
+    	//A game where blue took box (0, 0) and a game nobody joined, as the first version stored them
+    	File file = File.createTempFile("dots-legacy", ".db");
+    	SQLiteDataSource dataSource = legacyDatabase(file, 
+    			"INSERT INTO player (id, type, score) VALUES (1, 'RED', 0), (2, 'BLUE', 1), (3, 'RED', 0);",
+    			"INSERT INTO game (id, player_one_id, player_two_id, state) VALUES " + 
+    					"(1, 1, 2, 'IN_PROGRESS'), (2, 3, NULL, 'WAITING_TO_START');",
+    			"INSERT INTO moves (game_id, player_id, type, row, col, won_box) VALUES " + 
+    					"(1, 1, 'HOR', 0, 0, 0), (1, 2, 'VERT', 0, 0, 0), (1, 1, 'HOR', 1, 0, 0), (1, 2, 'VERT', 0, 1, 1);",
+    			"INSERT INTO blocks (game_id, color, row, col) VALUES (1, 'BLUE', 0, 0);");
+    	try {
+    		SqliteGameRepository repository = new SqliteGameRepository(dataSource);
+    		
+    		//The game rows are filled in from the moves and blocks
+    		try (Connection conn = new Sql2o(dataSource).open()) {
+    			List<Map<String, Object>> rows = conn.createQuery("SELECT id, box_rows, whose_turn, red_score, " + 
+    					"blue_score, captured_boxes, version FROM game ORDER BY id").executeAndFetchTable().asList();
+    			assertEquals("Incorrect size", 4, ((Number) rows.get(0).get("box_rows")).intValue());
+    			assertEquals("Incorrect turn", "BLUE", rows.get(0).get("whose_turn"));
+    			assertEquals("Incorrect score", 0, ((Number) rows.get(0).get("red_score")).intValue());
+    			assertEquals("Incorrect score", 1, ((Number) rows.get(0).get("blue_score")).intValue());
+    			assertEquals("Incorrect boxes", 1, ((Number) rows.get(0).get("captured_boxes")).intValue());
+    			assertEquals("Incorrect version", 5, ((Number) rows.get(0).get("version")).intValue());
+    			assertEquals("Incorrect turn", "RED", rows.get(1).get("whose_turn"));
+    			assertEquals("Incorrect version", 0, ((Number) rows.get(1).get("version")).intValue());
+    		}
+    		
+    		//The game is rebuilt from the upgraded tables
+    		Game game = repository.loadGame(1);
+    		assertEquals("Invalid state", "IN_PROGRESS", game.getState());
+    		assertEquals("Invalid turn", "BLUE", game.getWhoseTurn());
+    		assertEquals("Incorrect score", 1, game.getBlueScore());
+    		assertEquals("Incorrect version", 5, game.getVersion());
+    		assertEquals("Incorrect moves", 4, game.getFilledLines());
+    		assertTrue("Incorrect board", game.isHorizontalFilled(0, 0) && game.isHorizontalFilled(1, 0) && 
+    				game.isVerticalFilled(0, 0) && game.isVerticalFilled(0, 1) && !game.isHorizontalFilled(2, 0));
+    		JsonObject board = JsonTransformer.GSON.toJsonTree(BoardView.of(game)).getAsJsonObject();
+    		JsonObject box = board.get("boxes").getAsJsonArray().get(0).getAsJsonObject();
+    		assertEquals("Incorrect owner", "BLUE", box.get("owner").getAsString());
+    		repository.close();
+    	} finally {
+    		file.delete();
+    	}
+    }
+ 
+    @Test
+    public void testLegacyLobby() throws Exception {
+    	//Two games nobody joined around one that was joined, as the first version stored them
+    	File file = File.createTempFile("dots-legacy", ".db");
+    	SQLiteDataSource dataSource = legacyDatabase(file, 
+    			"INSERT INTO player (id, type, score) VALUES (1, 'BLUE', 0), (2, 'RED', 0), (3, 'RED', 0), (4, 'BLUE', 0);",
+    			"INSERT INTO game (id, player_one_id, player_two_id, state) VALUES " + 
+    					"(1, 1, NULL, 'WAITING_TO_START'), (2, 2, 4, 'IN_PROGRESS'), (3, 3, NULL, 'WAITING_TO_START');");
+    	try {
+    		DotsService service = new DotsService(new SqliteGameRepository(dataSource));
+    		
+    		//Every migration ran, and the lobby is read through the state index
+    		try (Connection conn = new Sql2o(dataSource).open()) {
+    			assertEquals("Incorrect schema version", 9, (int) conn.createQuery("PRAGMA user_version;")
+    					.executeScalar(Integer.class));
+    			String plan = conn.createQuery("EXPLAIN QUERY PLAN SELECT g.id FROM game g " + 
+    					"WHERE g.state = 'WAITING_TO_START' ORDER BY g.id").executeAndFetchTable().rows()
+    					.get(0).getString("detail");
+    			assertTrue("State index not used: " + plan, plan.contains("game_state_id"));
+    		}
+    		
+    		//The waiting games are listed, and read back the same
+    		String page = JsonTransformer.GSON.toJson(service.listGames("WAITING_TO_START", null, null));
+    		JsonObject pageJson = new Gson().fromJson(page, JsonObject.class);
+    		assertFalse("Incorrect cursor", pageJson.has("nextCursor"));
+    		OpenGame[] games = JsonTransformer.GSON.fromJson(pageJson.get("games"), OpenGame[].class);
+    		assertEquals("Incorrect lobby", 2, games.length);
+    		assertEquals("Incorrect game", 1, games[0].getGameId());
+    		assertEquals("Incorrect color", "BLUE", games[0].getPlayerType());
+    		assertEquals("Incorrect size", 4, games[0].getRows());
+    		assertEquals("Incorrect size", 4, games[0].getCols());
+    		assertEquals("Incorrect game", 3, games[1].getGameId());
+    		assertEquals("Incorrect color", "RED", games[1].getPlayerType());
+    		service.close();
+    	} finally {
+    		file.delete();
+    	}
+    }
+ 
+    @Test
+    public void testLegacyDuplicateMoves() throws Exception {
+    	//Red's first line was stored twice, with a move of another game in between. Version 3 failed
+    	//on it, so the database was left at version 2.
+    	File file = File.createTempFile("dots-legacy", ".db");
+    	SQLiteDataSource dataSource = legacyDatabase(file, 
+    			"INSERT INTO player (id, type, score) VALUES (1, 'RED', 0), (2, 'BLUE', 0), (3, 'RED', 0), (4, 'BLUE', 0);",
+    			"INSERT INTO game (id, player_one_id, player_two_id, state) VALUES " + 
+    					"(1, 1, 2, 'IN_PROGRESS'), (2, 3, 4, 'IN_PROGRESS');",
+    			"INSERT INTO moves (game_id, player_id, type, row, col, won_box) VALUES " + 
+    					"(1, 1, 'HOR', 0, 0, 0), (1, 1, 'HOR', 0, 0, 0), (2, 3, 'HOR', 0, 0, 0), (1, 2, 'VERT', 0, 0, 0);",
+    			"ALTER TABLE game ADD COLUMN box_rows INTEGER DEFAULT 4;",
+    			"ALTER TABLE game ADD COLUMN box_cols INTEGER DEFAULT 4;",
+    			"PRAGMA user_version = 2;");
+    	try {
+    		SqliteGameRepository repository = new SqliteGameRepository(dataSource);
+    		
+    		//The first copy is kept and the moves are numbered without a gap
+    		Game game = repository.loadGame(1);
+    		assertEquals("Incorrect moves", 2, game.getFilledLines());
+    		assertEquals("Invalid turn", "RED", game.getWhoseTurn());
+    		assertEquals("Incorrect version", 3, game.getVersion());
+    		
+    		//So the next move gets the next number
+    		Player red = game.getPlayer("1");
+    		int winBoxes = game.play("HOR", 1, 0, red.getType());
+    		game.setVersion(game.getVersion() + 1);
+    		repository.addMove(game, red, "HOR", 1, 0, winBoxes);
+    		repository.close();
+    		
+    		try (Connection conn = new Sql2o(dataSource).open()) {
+    			assertEquals("Incorrect moves", Arrays.asList(1, 2, 3), conn.createQuery(
+    					"SELECT seq FROM moves WHERE game_id = 1 ORDER BY seq").executeScalarList(Integer.class));
+    			assertEquals("Incorrect moves", Arrays.asList(1), conn.createQuery(
+    					"SELECT seq FROM moves WHERE game_id = 2 ORDER BY seq").executeScalarList(Integer.class));
+    		}
+    	} finally {
+    		file.delete();
+    	}
+    }
+ 
+    @Test
+    public void testMoveTransactions() throws Exception {
+    	File file = File.createTempFile("dots-writes", ".db");
+    	SQLiteDataSource dataSource = new SQLiteDataSource();
+    	dataSource.setUrl("jdbc:sqlite:" + file.getPath());
+    	try {
+    		SqliteGameRepository repository = new SqliteGameRepository(dataSource);
+    		
+    		//Box (0, 0) of game 2 is already taken, so blue's capture there cannot be stored
+    		try (Connection conn = new Sql2o(dataSource).open()) {
+    			conn.createQuery("INSERT INTO blocks (game_id, color, row, col) VALUES (2, 'RED', 0, 0);").executeUpdate();
+    		}
+    		
+    		//Both games play the same moves, blue takes box (0, 0) with the last one
+    		for (int gameId = 1; gameId <= 2; gameId++) {
+    			Player red = new Player(String.valueOf(gameId * 2 - 1), "RED");
+    			Player blue = new Player(String.valueOf(gameId * 2), "BLUE");
+    			Game game = new Game(String.valueOf(gameId), red, null, 2, 2);
+    			repository.createGame(game);
+    			game.setPlayerTwo(blue);
+    			game.setState("IN_PROGRESS");
+    			game.setVersion(1);
+    			repository.joinGame(game);
+    			
+    			String[][] moves = { { "VERT", "0", "0" }, { "HOR", "0", "0" }, { "HOR", "1", "0" }, { "VERT", "0", "1" } };
+    			for (String[] move : moves) {
+    				Player player = game.getWhoseTurn().equals("RED") ? red : blue;
+    				int row = Integer.valueOf(move[1]);
+    				int col = Integer.valueOf(move[2]);
+    				int winBoxes = game.play(move[0], row, col, player.getType());
+    				game.setVersion(game.getVersion() + 1);
+    				repository.addMove(game, player, move[0], row, col, winBoxes);
+    			}
+    		}
+    		//The lost capture is reported, and only its game is marked failed
+    		try {
+    			repository.close();
+    			fail("Lost write not reported");
+    		} catch (IllegalStateException ex) {
+    			assertTrue("Incorrect message", ex.getMessage().startsWith("1 writes"));
+    		}
+    		assertFalse("Game marked failed", repository.isFailed(1));
+    		assertTrue("Game not marked failed", repository.isFailed(2));
+    		
+    		try (Connection conn = new Sql2o(dataSource).open()) {
+    			//The capture is stored whole: the move, its box, the score and the game row
+    			assertEquals("Incorrect moves", 4, (int) conn.createQuery(
+    					"SELECT COUNT(*) FROM moves WHERE game_id = 1").executeScalar(Integer.class));
+    			assertEquals("Incorrect box", "BLUE", conn.createQuery(
+    					"SELECT color FROM blocks WHERE game_id = 1 AND row = 0 AND col = 0").executeScalar(String.class));
+    			assertEquals("Incorrect score", 1, (int) conn.createQuery(
+    					"SELECT score FROM player WHERE id = 2").executeScalar(Integer.class));
+    			List<Map<String, Object>> rows = conn.createQuery("SELECT whose_turn, blue_score, captured_boxes, " + 
+    					"version FROM game ORDER BY id").executeAndFetchTable().asList();
+    			assertEquals("Incorrect turn", "BLUE", rows.get(0).get("whose_turn"));
+    			assertEquals("Incorrect score", 1, ((Number) rows.get(0).get("blue_score")).intValue());
+    			assertEquals("Incorrect boxes", 1, ((Number) rows.get(0).get("captured_boxes")).intValue());
+    			assertEquals("Incorrect version", 5, ((Number) rows.get(0).get("version")).intValue());
+    			
+    			//The failed capture left nothing behind, the game row is still the one after the move before
+    			assertEquals("Incorrect moves", 3, (int) conn.createQuery(
+    					"SELECT COUNT(*) FROM moves WHERE game_id = 2").executeScalar(Integer.class));
+    			assertEquals("Incorrect score", 0, (int) conn.createQuery(
+    					"SELECT score FROM player WHERE id = 4").executeScalar(Integer.class));
+    			assertEquals("Incorrect turn", "BLUE", rows.get(1).get("whose_turn"));
+    			assertEquals("Incorrect score", 0, ((Number) rows.get(1).get("blue_score")).intValue());
+    			assertEquals("Incorrect version", 4, ((Number) rows.get(1).get("version")).intValue());
+    		}
+    	} finally {
+    		file.delete();
+    	}
+    }
+ 
+    @Test
+    public void testWriteBehindFailure() throws Exception {
+    	File file = File.createTempFile("dots-failed", ".db");
+    	SQLiteDataSource dataSource = new SQLiteDataSource();
+    	dataSource.setUrl("jdbc:sqlite:" + file.getPath());
+    	try {
+    		Sql2o database = new Sql2o(dataSource);
+    		try (Connection conn = database.open()) {
+    			conn.createQuery("CREATE TABLE note (game_id INTEGER, text TEXT);").executeUpdate();
+    		}
+    		
+    		//A queue of one, so each submit waits for the writer to take the one before
+    		WriteBehindQueue queue = new WriteBehindQueue(database, 1);
+    		String noteSql = "INSERT INTO note (game_id, text) VALUES (:gameId, :text);";
+    		queue.submit(7, "bad write", conn -> conn.createQuery("INSERT INTO missing VALUES (1);").executeUpdate());
+    		queue.submit(7, "later write", conn -> conn.createQuery(noteSql)
+    				.addParameter("gameId", 7).addParameter("text", "later").executeUpdate());
+    		queue.submit(8, "other game", conn -> conn.createQuery(noteSql)
+    				.addParameter("gameId", 8).addParameter("text", "other").executeUpdate());
+    		
+    		//The failed write and the one after it are lost and reported
+    		try {
+    			queue.close();
+    			fail("Lost writes not reported");
+    		} catch (IllegalStateException ex) {
+    			assertTrue("Incorrect message", ex.getMessage().startsWith("2 writes"));
+    		}
+    		assertEquals("Incorrect lost writes", 2, queue.getLostWrites());
+    		assertTrue("Game not marked failed", queue.isFailed(7));
+    		assertFalse("Game marked failed", queue.isFailed(8));
+    		
+    		//The failed game's later write never landed, the other game's did
+    		try (Connection conn = database.open()) {
+    			List<String> notes = conn.createQuery("SELECT text FROM note ORDER BY game_id")
+    					.executeAndFetch(String.class);
+    			assertEquals("Incorrect notes", Collections.singletonList("other"), notes);
+    		}
+    	} finally {
+    		file.delete();
+    	}
+    }
+ 
+    @Test
+    public void testReadViews() {
+    	//A 2x3 game where blue took box (0, 0)
+    	JsonObject param = new JsonObject();
+    	param.addProperty("playerType", "RED");
+    	param.addProperty("rows", 2);
+    	param.addProperty("cols", 3);
+    	Response create = request("POST", "/dots/api/games", param);
+    	JsonObject createJson = create.getContentAsObject(JsonObject.class);
+    	String gameId = createJson.get("gameId").getAsString();
+    	String redId = createJson.get("playerId").getAsString();
+    	Response join = request("PUT", "/dots/api/games/" + gameId, null);
+    	JsonObject joinJson = join.getContentAsObject(JsonObject.class);
+    	String blueId = joinJson.get("playerId").getAsString();
+    	String[][] moves = { { "vmove", "0", "0" }, { "hmove", "0", "0" }, { "hmove", "1", "0" }, { "vmove", "0", "1" } };
+    	for (int i = 0; i < moves.length; i++) {
+    		Response move = request("POST", "/dots/api/games/" + gameId + "/" + moves[i][0], 
+    				JsonTransformer.parseObject(moveBody(i % 2 == 0 ? redId : blueId, moves[i])));
+    		assertEquals("Failed to add move", 200, move.httpStatus);
+    	}
+    	
+    	//Boards and states read back to the same JSON
+    	String board = request("GET", "/dots/api/games/" + gameId + "/board", null).content;
+    	BoardView boardView = JsonTransformer.GSON.fromJson(board, BoardView.class);
+    	assertEquals("Incorrect board", board, JsonTransformer.GSON.toJson(boardView));
+    	String state = request("GET", "/dots/api/games/" + gameId + "/state", null).content;
+    	GameState gameState = JsonTransformer.GSON.fromJson(state, GameState.class);
+    	assertEquals("Incorrect turn", "BLUE", gameState.getWhoseTurn());
+    	assertEquals("Incorrect state", state, JsonTransformer.GSON.toJson(gameState));
+    	
+    	//So does a whole board sent for an unknown version, but not the changes since a known one
+    	String since = request("GET", "/dots/api/games/" + gameId + "/board?sinceVersion=99", null).content;
+    	assertEquals("Incorrect board", since, JsonTransformer.GSON.toJson(JsonTransformer.GSON.fromJson(since, BoardView.class)));
+    	String changes = request("GET", "/dots/api/games/" + gameId + "/board?sinceVersion=4", null).content;
+    	try {
+    		JsonTransformer.GSON.fromJson(changes, BoardView.class);
+    		fail("Read the changes since a version as a board");
+    	} catch (JsonParseException ex) {
+    		// Expected, the changes do not say how big the board is
+    	}
+    }
+ 
+    @Test
+    public void testSingleETag() throws Exception {
+    	//Create and join game, and play one line
+    	JsonObject param = new JsonObject();
+    	param.addProperty("playerType", "RED");
+    	Response create = request("POST", "/dots/api/games", param);
+    	JsonObject createJson = create.getContentAsObject(JsonObject.class);
+    	String gameId = createJson.get("gameId").getAsString();
+    	String redId = createJson.get("playerId").getAsString();
+    	request("PUT", "/dots/api/games/" + gameId, null);
+    	Response move = request("POST", "/dots/api/games/" + gameId + "/hmove", 
+    			JsonTransformer.parseObject(moveBody(redId, new String[] { "hmove", "0", "0" })));
+    	assertEquals("Failed to add move", 200, move.httpStatus);
+    	
+    	//Every view is tagged once, with the version its body was built at and which body it is
+    	String[] views = { "state", "board", "board?format=packed", "board?sinceVersion=1", "snapshot" };
+    	String[] tags = { "\"2\"", "\"2\"", "\"2-packed\"", "\"2-since1\"", "\"2\"" };
+    	for (int i = 0; i < views.length; i++) {
+    		String view = views[i];
+    		HttpURLConnection http = conditionalGet("/dots/api/games/" + gameId + "/" + view, null);
+    		assertEquals("Failed to get " + view, 200, http.getResponseCode());
+    		List<String> etags = http.getHeaderFields().get("ETag");
+    		assertEquals("Incorrect ETags for " + view, Arrays.asList(tags[i]), etags);
+    		assertEquals("Incorrect Vary for " + view, "Accept-Encoding", http.getHeaderField("Vary"));
+    		
+    		String body = IOUtils.toString(http.getInputStream());
+    		JsonObject json = new Gson().fromJson(body, JsonObject.class);
+    		if (json.has("version")) {
+    			assertTrue("Incorrect ETag for " + view, etags.get(0).startsWith("\"" + json.get("version").getAsLong()));
+    		}
+    	}
+    	
+    	//The packed board is not the full board
+    	HttpURLConnection http = conditionalGet("/dots/api/games/" + gameId + "/board?format=packed", "\"2\"");
+    	assertEquals("Incorrectly not modified", 200, http.getResponseCode());
+    	
+    	//The gzipped body is tagged apart from the plain one
+    	http = conditionalGet("/dots/api/games/" + gameId + "/board", null);
+    	http.setRequestProperty("Accept-Encoding", "gzip");
+    	assertEquals("Failed to get board", 200, http.getResponseCode());
+    	assertEquals("Incorrect ETag", "\"2-gzip\"", http.getHeaderField("ETag"));
+    	
+    	http = conditionalGet("/dots/api/games/" + gameId + "/board", "\"2-gzip\"");
+    	assertEquals("Incorrectly not modified", 200, http.getResponseCode());
+    	
+    	http = conditionalGet("/dots/api/games/" + gameId + "/board", "\"2-gzip\"");
+    	http.setRequestProperty("Accept-Encoding", "gzip");
+    	assertEquals("Failed to revalidate", 304, http.getResponseCode());
+    }
+ 
     //------------------------------------------------------------------------//
     // Generic Helper Methods and classes
     //------------------------------------------------------------------------//
@@ -543,6 +2153,128 @@ public class TestDotsServer {
     // Dots Specific Helper Methods and classes
     //------------------------------------------------------------------------//
 
+    private HttpURLConnection conditionalGet(String path, String etag) throws IOException {
+    	URL url = new URL("http", Bootstrap.IP_ADDRESS, Bootstrap.PORT, path);
+    	HttpURLConnection http = (HttpURLConnection) url.openConnection();
+    	if (etag != null) {
+    		http.setRequestProperty("If-None-Match", etag);
+    	}
+    	return http;
+    }
+    
+    private Response movesRequest(String gameId, String playerId, String[]... moves) throws IOException {
+    	return movesRequest(gameId, playerId, false, moves);
+    }
+    
+    private Response movesRequest(String gameId, String playerId, boolean partial, String[]... moves) 
+    		throws IOException {
+    	StringBuilder body = new StringBuilder("{\"playerId\": " + playerId + ", \"partial\": " + partial + 
+    			", \"moves\": [");
+    	for (int i = 0; i < moves.length; i++) {
+    		body.append(i == 0 ? "" : ", ").append("{\"type\": \"" + moves[i][0] + "\", \"row\": " + 
+    				moves[i][1] + ", \"col\": " + moves[i][2] + "}");
+    	}
+    	body.append("]}");
+    	
+    	//The body is read for errors as well, it says where the batch stopped
+    	URL url = new URL("http", Bootstrap.IP_ADDRESS, Bootstrap.PORT, "/dots/api/games/" + gameId + "/moves");
+    	HttpURLConnection http = (HttpURLConnection) url.openConnection();
+    	http.setRequestMethod("POST");
+    	http.setDoOutput(true);
+    	http.setRequestProperty("Content-Type", "application/json");
+    	try (OutputStreamWriter output = new OutputStreamWriter(http.getOutputStream())) {
+    		output.write(body.toString());
+    	}
+    	int status = http.getResponseCode();
+    	String content = IOUtils.toString(status < 400 ? http.getInputStream() : http.getErrorStream());
+    	return new Response(status, content);
+    }
+    
+    private String listGamePages(List<String> gameIds) {
+    	//Every page but the last is full and has the cursor of the next one
+    	String firstPage = null;
+    	String path = "/dots/api/games?state=WAITING_TO_START&limit=2";
+    	List<String> listed = new ArrayList<>();
+    	while (path != null) {
+    		Response page = request("GET", path, null);
+    		assertEquals("Failed to list games", 200, page.httpStatus);
+    		if (firstPage == null) {
+    			firstPage = page.content;
+    		}
+    		JsonObject pageJson = page.getContentAsObject(JsonObject.class);
+    		for (JsonElement game : pageJson.get("games").getAsJsonArray()) {
+    			listed.add(game.getAsJsonObject().get("gameId").getAsString());
+    		}
+    		path = pageJson.has("nextCursor") ? "/dots/api/games?limit=2&cursor=" + 
+    				pageJson.get("nextCursor").getAsString() : null;
+    	}
+    	assertEquals("Incorrect games listed", gameIds, listed);
+    	return firstPage;
+    }
+    
+    /**
+     * Makes a database file with the tables the first version of the
+     * server created, at schema version 0, holding the given rows.
+     */
+    private SQLiteDataSource legacyDatabase(File file, String... inserts) {
+    	SQLiteDataSource dataSource = new SQLiteDataSource();
+    	dataSource.setUrl("jdbc:sqlite:" + file.getPath());
+    	try (Connection conn = new Sql2o(dataSource).open()) {
+    		conn.createQuery("CREATE TABLE game (id INTEGER PRIMARY KEY AUTOINCREMENT, player_one_id INTEGER, " + 
+    				"player_two_id INTEGER, state TEXT);").executeUpdate();
+    		conn.createQuery("CREATE TABLE moves (game_id INTEGER, player_id INTEGER, type TEXT, row INTEGER, " + 
+    				"col INTEGER, won_box INTEGER, time TIMESTAMP DEFAULT CURRENT_TIMESTAMP);").executeUpdate();
+    		conn.createQuery("CREATE TABLE player (id INTEGER PRIMARY KEY AUTOINCREMENT, type TEXT, " + 
+    				"score INTEGER);").executeUpdate();
+    		conn.createQuery("CREATE TABLE blocks (game_id INTEGER, color TEXT, row INTEGER, " + 
+    				"col INTEGER);").executeUpdate();
+    		for (String insert : inserts) {
+    			conn.createQuery(insert).executeUpdate();
+    		}
+    	}
+    	return dataSource;
+    }
+    
+    private String moveBody(String playerId, String[] move) {
+    	return "{\"playerId\": " + playerId + ", \"row\": " + move[1] + ", \"col\": " + move[2] + "}";
+    }
+    
+    private URI socketUri(String gameId, String playerId) {
+    	return URI.create("ws://" + Bootstrap.IP_ADDRESS + ":" + Bootstrap.PORT + GameSocket.PATH + 
+    			"?gameId=" + gameId + "&playerId=" + playerId);
+    }
+    
+    @WebSocket
+    public static class SocketMessages {
+    	private final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+    	
+    	@OnWebSocketMessage
+    	public void onMessage(String message) {
+    		messages.add(message);
+    	}
+    	
+    	public JsonObject next() throws InterruptedException {
+    		String message = messages.poll(5, TimeUnit.SECONDS);
+    		assertNotNull("No message from the socket", message);
+    		return new Gson().fromJson(message, JsonObject.class);
+    	}
+    }
+    
+    private JsonObject readEvent(BufferedReader events) throws IOException {
+    	//Skip heartbeats and read up to the blank line that ends the event
+    	String data = null;
+    	String line;
+    	while ((line = events.readLine()) != null) {
+    		if (line.startsWith("data: ")) {
+    			data = line.substring("data: ".length());
+    		} else if (line.isEmpty() && data != null) {
+    			break;
+    		}
+    	}
+    	assertNotNull("Event stream ended", data);
+    	return new Gson().fromJson(data, JsonObject.class);
+    }
+
     private void clearDB() {
         SQLiteDataSource dataSource = new SQLiteDataSource();
         dataSource.setUrl("jdbc:sqlite:dots.db");
@@ -558,6 +2290,14 @@ public class TestDotsServer {
             conn.createQuery(sql).executeUpdate();
             sql = "DROP TABLE IF EXISTS blocks" ;
             conn.createQuery(sql).executeUpdate();
+            sql = "DROP TABLE IF EXISTS game_archive" ;
+            conn.createQuery(sql).executeUpdate();
+            sql = "DROP TABLE IF EXISTS game_snapshot" ;
+            conn.createQuery(sql).executeUpdate();
+            sql = "DROP TABLE IF EXISTS last_ids" ;
+            conn.createQuery(sql).executeUpdate();
+            sql = "PRAGMA user_version = 0" ;
+            conn.createQuery(sql).executeUpdate();
             
         }
     }